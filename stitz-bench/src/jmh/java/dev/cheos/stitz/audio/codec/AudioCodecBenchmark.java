@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.codec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import dev.cheos.stitz.gsm.TestSignal;
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * One operation encodes and decodes one 20 ms frame with the registered codec
+ * for the given format, the basis for {@link AudioCodec#getCost()}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class AudioCodecBenchmark {
+	static final int FRAMES = 250;
+	
+	@Param({ "GSM_FULL_RATE", "G711_MULAW", "G711_ALAW", "LE_16_BIT_LINEAR" })
+	public MediaFrame.Format format;
+	
+	private short[][] frames;
+	private final short[] out = new short[TestSignal.FRAME_SAMPLES];
+	private byte[] frame;
+	private AudioCodec.Encoder encoder;
+	private AudioCodec.Decoder decoder;
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		AudioCodec codec = AudioCodecs.get(this.format);
+		this.frames = TestSignal.SPEECH.frames(FRAMES);
+		this.frame = new byte[codec.getFrameBytes()];
+		this.encoder = codec.newEncoder();
+		this.decoder = codec.newDecoder();
+		this.index = 0;
+	}
+	
+	@Benchmark
+	public short[] roundTrip() {
+		this.encoder.encode(this.frames[this.index], 0, this.frame, 0);
+		this.decoder.decode(this.frame, 0, this.out, 0);
+		this.index = (this.index + 1) % FRAMES;
+		return this.out;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import dev.cheos.stitz.gsm.BitEncoder.AllocationMode;
+
+/**
+ * Bit packing in isolation, with field values taken from real encoded frames.
+ * One {@code addBits} operation packs one toast frame (magic + 76 fields, MSB
+ * first), one {@code getNextBits} operation unpacks one 65 byte microsoft frame
+ * (152 fields, LSB first, the only order {@link BitDecoder} supports).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class BitCodingBenchmark {
+	/** field widths of one 160 sample frame: LARc[8], then 4x (Nc, bc, Mc, xmaxc, xmc[13]) */
+	static final int[] FIELD_BITS = new int[76];
+	
+	static {
+		int[] lar = { 6, 6, 5, 5, 4, 4, 3, 3 };
+		System.arraycopy(lar, 0, FIELD_BITS, 0, 8);
+		for (int k = 0, i = 8; k < 4; k++) {
+			FIELD_BITS[i++] = 7;
+			FIELD_BITS[i++] = 2;
+			FIELD_BITS[i++] = 2;
+			FIELD_BITS[i++] = 6;
+			for (int j = 0; j < 13; j++)
+				FIELD_BITS[i++] = 3;
+		}
+	}
+	
+	@Param({ "SPEECH", "SILENCE" })
+	public TestSignal signal;
+	
+	private int[][] fields;
+	private byte[][] msFrames;
+	private final byte[] out = new byte[33];
+	private final BitEncoder bitEncoder = new BitEncoder(this.out, AllocationMode.MSBitFirst);
+	private final BitDecoder bitDecoder = new BitDecoder(null, 0, BitDecoder.AllocationMode.LSBitFirst);
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		short[][] pcm = this.signal.frames(GSMEncoderBenchmark.FRAMES);
+		byte[][] toast = GSMDecoderBenchmark.encode(pcm, GSMFrameFormat.TOAST);
+		this.fields = new int[toast.length][];
+		for (int i = 0; i < toast.length; i++)
+			this.fields[i] = explode(toast[i]);
+		this.msFrames = GSMDecoderBenchmark.encode(pcm, GSMFrameFormat.MICROSOFT);
+		this.index = 0;
+	}
+	
+	@Benchmark
+	public byte[] addBits() {
+		int[] values = this.fields[this.index];
+		this.index = (this.index + 1) % this.fields.length;
+		this.bitEncoder.reset();
+		this.bitEncoder.addBits(0xD, 4);
+		for (int i = 0; i < FIELD_BITS.length; i++)
+			this.bitEncoder.addBits(values[i], FIELD_BITS[i]);
+		return this.out;
+	}
+	
+	@Benchmark
+	public int getNextBits() {
+		this.bitDecoder.setCodedFrame(this.msFrames[this.index], 0);
+		this.index = (this.index + 1) % this.msFrames.length;
+		int sum = 0;
+		for (int half = 0; half < 2; half++)
+			for (int i = 0; i < FIELD_BITS.length; i++)
+				sum += this.bitDecoder.getNextBits(FIELD_BITS[i]);
+		return sum;
+	}
+	
+	/**
+	 * @return the 76 field values of a toast frame, read MSB first after the magic
+	 */
+	static int[] explode(byte[] frame) {
+		int[] values = new int[FIELD_BITS.length];
+		int bit = 4;
+		for (int i = 0; i < values.length; i++)
+			for (int j = 0; j < FIELD_BITS[i]; j++, bit++)
+				values[i] = values[i] << 1 | (frame[bit >> 3] >> (7 - (bit & 7))) & 1;
+		return values;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The encoder stages individually, one operation covers one frame (the lpc and
+ * short term stages run once, long term prediction and rpe encoding run once
+ * per 40 sample subframe). Inputs are recorded by {@link EncoderStages}, stages
+ * working in place get a copy first, which costs a 40-160 element arraycopy
+ * per call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class EncoderStageBenchmark {
+	@Param({ "SPEECH", "SILENCE" })
+	public TestSignal signal;
+	
+	private EncoderStages stages;
+	private final Lpc lpc = new Lpc();
+	private final ShortTerm shortTerm = new ShortTerm();
+	private final LongTerm longTerm = new LongTerm();
+	private final Rpe rpe = new Rpe();
+	private final short[] so = new short[160];
+	private final short[] LARc = new short[8];
+	private final short[] e = new short[50];
+	private final short[] Nc = new short[4], bc = new short[4], Mc = new short[4], xmaxc = new short[4], xmc = new short[52];
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		this.stages = new EncoderStages(this.signal.frames(GSMEncoderBenchmark.FRAMES));
+		this.index = 0;
+	}
+	
+	private int next() {
+		int i = this.index;
+		this.index = (i + 1) % GSMEncoderBenchmark.FRAMES;
+		return i;
+	}
+	
+	@Benchmark
+	public short[] lpc() {
+		System.arraycopy(this.stages.lpcIn[next()], 0, this.so, 0, 160);
+		this.lpc.Gsm_LPC_Analysis(this.so, this.LARc);
+		return this.LARc;
+	}
+	
+	@Benchmark
+	public short[] shortTerm() {
+		int i = next();
+		System.arraycopy(this.stages.shortTermIn[i], 0, this.so, 0, 160);
+		this.shortTerm.Gsm_Short_Term_Analysis_Filter(this.stages.larc[i], this.so);
+		return this.so;
+	}
+	
+	@Benchmark
+	public short[] longTerm() {
+		int i = next();
+		short[] dp = this.stages.dp[i];
+		for (int k = 0; k < 4; k++)
+			this.longTerm.Gsm_Long_Term_Predictor(this.stages.residual[i], k * 40, this.e, dp, dp, 120 + k * 40, this.Nc, this.bc, k);
+		return this.e;
+	}
+	
+	@Benchmark
+	public short[] rpe() {
+		short[][] in = this.stages.rpeIn[next()];
+		for (int k = 0; k < 4; k++) {
+			System.arraycopy(in[k], 0, this.e, 0, 50);
+			this.rpe.Gsm_RPE_Encoding(this.e, this.xmaxc, this.Mc, k, this.xmc, k * 13);
+		}
+		return this.xmc;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+/**
+ * Runs a signal through the encoder pipeline once (mirroring
+ * {@link GSMEncoder}) and keeps what each stage got to see, so the stages can
+ * be benchmarked individually on realistic input.
+ */
+final class EncoderStages {
+	/** preprocessed input to {@link Lpc} */
+	final short[][] lpcIn;
+	/** LAR coefficients produced by {@link Lpc} */
+	final short[][] larc;
+	/** input to {@link ShortTerm} (lpc scales its input in place) */
+	final short[][] shortTermIn;
+	/** short term residual, input to {@link LongTerm} */
+	final short[][] residual;
+	/** reconstructed excitation history [0..279] at the end of each frame */
+	final short[][] dp;
+	/** long term residual per subframe (e[5..44]), input to {@link Rpe} */
+	final short[][][] rpeIn;
+	
+	EncoderStages(short[][] frames) {
+		int n = frames.length;
+		this.lpcIn = new short[n][];
+		this.larc = new short[n][];
+		this.shortTermIn = new short[n][];
+		this.residual = new short[n][];
+		this.dp = new short[n][];
+		this.rpeIn = new short[n][4][];
+		
+		Lpc lpc = new Lpc();
+		ShortTerm shortTerm = new ShortTerm();
+		LongTerm longTerm = new LongTerm();
+		Rpe rpe = new Rpe();
+		short[] so = new short[160], LARc = new short[8], e = new short[50];
+		short[] Nc = new short[4], bc = new short[4], Mc = new short[4], xmaxc = new short[4], xmc = new short[52];
+		short[] dp = new short[280];
+		int[] filter = new int[3];
+		
+		for (int f = 0; f < n; f++) {
+			preprocess(frames[f], so, filter);
+			this.lpcIn[f] = so.clone();
+			lpc.Gsm_LPC_Analysis(so, LARc);
+			this.larc[f] = LARc.clone();
+			this.shortTermIn[f] = so.clone();
+			shortTerm.Gsm_Short_Term_Analysis_Filter(LARc, so);
+			this.residual[f] = so.clone();
+			
+			for (int k = 0; k < 4; k++) {
+				longTerm.Gsm_Long_Term_Predictor(so, k * 40, e, dp, dp, 120 + k * 40, Nc, bc, k);
+				this.rpeIn[f][k] = e.clone();
+				rpe.Gsm_RPE_Encoding(e, xmaxc, Mc, k, xmc, k * 13);
+				for (int i = 0; i < 40; i++)
+					dp[120 + k * 40 + i] = GSMMath.GSM_ADD(e[5 + i], dp[120 + k * 40 + i]);
+			}
+			this.dp[f] = dp.clone();
+			System.arraycopy(dp, 160, dp, 0, 120);
+		}
+	}
+	
+	/**
+	 * Downscaling, offset compensation and preemphasis as in
+	 * {@link GSMEncoder}, filter state is {z1, L_z2, mp}.
+	 */
+	private static void preprocess(short[] in, short[] so, int[] filter) {
+		short z1 = (short) filter[0];
+		int L_z2 = filter[1];
+		int mp = filter[2];
+		
+		for (int k = 0; k < 160; k++) {
+			short SO = (short) (GSMMath.SASR(in[k], 3) << 2);
+			short s1 = (short) (SO - z1);
+			z1 = SO;
+			
+			int L_s2 = s1 << 15;
+			short msp = GSMMath.SASR(L_z2, 15);
+			short lsp = (short) (L_z2 - (msp << 15));
+			L_s2 += GSMMath.GSM_MULT_R(lsp, (short) 32735);
+			L_z2 = GSMMath.GSM_L_ADD(msp * 32735, L_s2);
+			
+			int L_temp = GSMMath.GSM_L_ADD(L_z2, 16384);
+			msp = GSMMath.GSM_MULT_R((short) mp, (short) -28180);
+			mp = GSMMath.SASR(L_temp, 15);
+			so[k] = GSMMath.GSM_ADD((short) mp, msp);
+		}
+		filter[0] = z1;
+		filter[1] = L_z2;
+		filter[2] = mp;
+	}
+}
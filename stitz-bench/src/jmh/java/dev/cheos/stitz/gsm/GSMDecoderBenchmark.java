@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One operation decodes one 33 byte toast frame into 160 samples, as big endian
+ * bytes, into a short array (the way incoming voice is decoded) or into a
+ * direct little endian buffer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class GSMDecoderBenchmark {
+	@Param({ "SPEECH", "SILENCE" })
+	public TestSignal signal;
+	
+	private byte[][] frames;
+	private final byte[] out = new byte[320];
+	private final short[] samples = new short[160];
+	private final ByteBuffer direct = ByteBuffer.allocateDirect(320).order(ByteOrder.LITTLE_ENDIAN);
+	private GSMDecoder decoder;
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		this.frames = encode(this.signal.frames(GSMEncoderBenchmark.FRAMES), GSMFrameFormat.TOAST);
+		this.decoder = new GSMDecoder();
+		this.index = 0;
+	}
+	
+	@Benchmark
+	public byte[] decode() throws InvalidGSMFrameException {
+		this.decoder.decode(this.frames[this.index], 0, this.out, 0, true);
+		this.index = (this.index + 1) % this.frames.length;
+		return this.out;
+	}
+	
+	@Benchmark
+	public short[] decodeShorts() throws InvalidGSMFrameException {
+		this.decoder.decode(this.frames[this.index], 0, this.samples, 0);
+		this.index = (this.index + 1) % this.frames.length;
+		return this.samples;
+	}
+	
+	@Benchmark
+	public ByteBuffer decodeDirect() throws InvalidGSMFrameException {
+		this.direct.clear();
+		this.decoder.decode(this.frames[this.index], 0, this.direct);
+		this.index = (this.index + 1) % this.frames.length;
+		return this.direct;
+	}
+	
+	static byte[][] encode(short[][] pcm, GSMFrameFormat format) {
+		GSMEncoder encoder = new GSMEncoder(format);
+		int samples = format == GSMFrameFormat.TOAST ? 160 : 320;
+		int frames = pcm.length * 160 / samples;
+		byte[][] result = new byte[frames][format == GSMFrameFormat.TOAST ? 33 : 65];
+		short[] buf = new short[samples];
+		for (int i = 0; i < frames; i++) {
+			for (int j = 0; j < samples; j += 160)
+				System.arraycopy(pcm[(i * samples + j) / 160], 0, buf, j, 160);
+			encoder.encode(buf, result[i]);
+		}
+		return result;
+	}
+}
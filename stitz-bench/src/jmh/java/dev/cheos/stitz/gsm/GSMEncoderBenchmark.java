@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One operation encodes one 20 ms frame (160 samples) into a 33 byte toast
+ * frame, cycling through 5 s of input with a single encoder.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class GSMEncoderBenchmark {
+	static final int FRAMES = 250;
+	
+	@Param({ "SPEECH", "SILENCE" })
+	public TestSignal signal;
+	
+	private short[][] frames;
+	private final byte[] out = new byte[33];
+	private GSMEncoder encoder;
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		this.frames = this.signal.frames(FRAMES);
+		this.encoder = new GSMEncoder();
+		this.index = 0;
+	}
+	
+	@Benchmark
+	public byte[] encode() {
+		this.encoder.encode(this.frames[this.index], this.out);
+		this.index = (this.index + 1) % FRAMES;
+		return this.out;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The LTP cross-correlation and LPC autocorrelation kernels, scalar and
+ * vector, on speech. One operation covers one frame: four cross-correlations
+ * (one per subframe) or one autocorrelation. The vector variant is skipped if
+ * the vector api is not available.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class KernelBenchmark {
+	@Param({ "scalar", "vector" })
+	public String kernels;
+	
+	private GSMKernels impl;
+	private EncoderStages stages;
+	private final short[] wt = new short[40];
+	private final int[] L_result = new int[GSMKernels.LAGS];
+	private final int[] L_ACF = new int[9];
+	private int index;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		if ("vector".equals(this.kernels) && !GSMKernels.VECTOR)
+			throw new IllegalStateException("vector kernels not available, run with --add-modules jdk.incubator.vector");
+		this.impl = "vector".equals(this.kernels) ? GSMKernels.create() : new GSMKernels();
+		this.stages = new EncoderStages(TestSignal.SPEECH.frames(GSMEncoderBenchmark.FRAMES));
+		this.index = 0;
+	}
+	
+	private int next() {
+		int i = this.index;
+		this.index = (i + 1) % GSMEncoderBenchmark.FRAMES;
+		return i;
+	}
+	
+	@Benchmark
+	public int[] crossCorrelation() {
+		int i = next();
+		short[] residual = this.stages.residual[i];
+		for (int k = 0; k < 4; k++) {
+			for (int j = 0; j < 40; j++)
+				this.wt[j] = (short) (residual[k * 40 + j] >> 2); // roughly the scaling LongTerm applies
+			this.impl.crossCorrelation(this.wt, this.stages.dp[i], 120 + k * 40, this.L_result);
+		}
+		return this.L_result;
+	}
+	
+	@Benchmark
+	public int[] autocorrelation() {
+		this.impl.autocorrelation(this.stages.lpcIn[next()], this.L_ACF);
+		return this.L_ACF;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Differential check of the vector kernels against the scalar ones: both
+ * kernels on the inputs the encoder really produces for long stretches of
+ * synthetic speech and noise, plus random and full-scale input for the
+ * overflow behaviour. Runs as part of {@code gradlew check}, or alone with
+ * {@code gradlew :stitz-bench:verifyKernels}, exits non-zero on the first mismatch.
+ */
+public class KernelVerifier {
+	private static final int FRAMES = 15_000; // 5 minutes per seed
+	
+	private final GSMKernels scalar = new GSMKernels();
+	private final GSMKernels vector = GSMKernels.create();
+	private final int[] expected = new int[GSMKernels.LAGS], actual = new int[GSMKernels.LAGS];
+	private final int[] expectedAcf = new int[9], actualAcf = new int[9];
+	private final short[] wt = new short[40];
+	private long checks;
+	
+	public static void main(String[] args) {
+		if (!GSMKernels.VECTOR) {
+			System.err.println("vector kernels not available, run with --add-modules jdk.incubator.vector");
+			System.exit(2);
+		}
+		new KernelVerifier().run();
+	}
+	
+	private void run() {
+		for (long seed = 0; seed < 4; seed++)
+			for (TestSignal signal : TestSignal.values()) {
+				EncoderStages stages = new EncoderStages(signal.frames(FRAMES, seed));
+				for (int f = 0; f < FRAMES; f++) {
+					checkAutocorrelation(stages.lpcIn[f], signal + " seed " + seed + " frame " + f);
+					for (int k = 0; k < 4; k++) {
+						for (int j = 0; j < 40; j++) // every scaling LongTerm may apply
+							this.wt[j] = stages.residual[f][k * 40 + j];
+						for (int scal = 0; scal <= 6; scal++) {
+							checkCrossCorrelation(stages.dp[f], 120 + k * 40, signal + " seed " + seed + " frame " + f + " subframe " + k);
+							for (int j = 0; j < 40; j++)
+								this.wt[j] >>= 1;
+						}
+					}
+				}
+			}
+		
+		Random random = new Random(137L);
+		short[] s = new short[160], dp = new short[280];
+		for (int n = 0; n < 200_000; n++) {
+			boolean extreme = n % 2 == 0;
+			for (int i = 0; i < s.length; i++)
+				s[i] = extreme ? (random.nextBoolean() ? Short.MAX_VALUE : Short.MIN_VALUE) : (short) random.nextInt();
+			for (int i = 0; i < dp.length; i++)
+				dp[i] = extreme ? (random.nextBoolean() ? Short.MAX_VALUE : Short.MIN_VALUE) : (short) random.nextInt();
+			for (int i = 0; i < 40; i++)
+				this.wt[i] = s[i];
+			checkAutocorrelation(s, "random " + n);
+			checkCrossCorrelation(dp, 120 + 40 * (n & 3), "random " + n);
+		}
+		System.out.println("vector kernels match scalar kernels, " + this.checks + " checks");
+	}
+	
+	private void checkAutocorrelation(short[] s, String what) {
+		this.scalar.autocorrelation(s, this.expectedAcf);
+		this.vector.autocorrelation(s, this.actualAcf);
+		this.checks++;
+		if (!Arrays.equals(this.expectedAcf, this.actualAcf))
+			fail("autocorrelation", what, this.expectedAcf, this.actualAcf);
+	}
+	
+	private void checkCrossCorrelation(short[] dp, int dpStart, String what) {
+		this.scalar.crossCorrelation(this.wt, dp, dpStart, this.expected);
+		this.vector.crossCorrelation(this.wt, dp, dpStart, this.actual);
+		this.checks++;
+		if (!Arrays.equals(this.expected, this.actual))
+			fail("cross-correlation", what, this.expected, this.actual);
+	}
+	
+	private static void fail(String kernel, String what, int[] expected, int[] actual) {
+		System.err.println(kernel + " mismatch at " + what);
+		System.err.println("  scalar: " + Arrays.toString(expected));
+		System.err.println("  vector: " + Arrays.toString(actual));
+		System.exit(1);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import java.util.Random;
+
+/**
+ * Deterministic 8 kHz test signals, split into 160 sample frames.
+ */
+public enum TestSignal {
+	/**
+	 * Synthetic speech: syllables of voiced segments (glottal pulse train with
+	 * drifting pitch through three formant resonators) alternating with unvoiced
+	 * fricatives and short pauses, about -27 dBFS rms with peaks around -8 dBFS.
+	 */
+	SPEECH {
+		@Override
+		protected void generate(short[] out, Random random) {
+			double[] f = { 700, 1220, 2600 };
+			double[][] vowels = { { 730, 1090, 2440 }, { 270, 2290, 3010 }, { 530, 1840, 2480 }, { 570, 840, 2410 }, { 300, 870, 2240 } };
+			Resonator[] formants = { new Resonator(), new Resonator(), new Resonator() };
+			Resonator fricative = new Resonator();
+			fricative.set(4000, 1500);
+			
+			int pos = 0;
+			double phase = 0;
+			while (pos < out.length) {
+				int kind = random.nextInt(10); // 0-6 voiced, 7-8 unvoiced, 9 pause
+				int len = Math.min(out.length - pos, (kind < 7 ? 1200 : 600) + random.nextInt(1200));
+				double[] target = vowels[random.nextInt(vowels.length)];
+				double pitch = 100 + random.nextInt(120);
+				double peak = 6000 + random.nextInt(10000);
+				
+				for (int i = 0; i < len; i++, pos++) {
+					double env = Math.sin(Math.PI * i / len);
+					double sample;
+					if (kind < 7) {
+						if (i % 80 == 0) // glide formants towards the target vowel
+							for (int j = 0; j < 3; j++) {
+								f[j] += (target[j] - f[j]) * 0.2;
+								formants[j].set(f[j], 80 + j * 40);
+							}
+						phase += (pitch + 15 * Math.sin(2 * Math.PI * pos / 4000D)) / RATE;
+						double excitation = 0;
+						if (phase >= 1) {
+							phase -= 1;
+							excitation = 1;
+						}
+						excitation += random.nextGaussian() * 0.02;
+						sample = formants[2].process(formants[1].process(formants[0].process(excitation))) * peak * 2000;
+					} else if (kind < 9) {
+						sample = fricative.process(random.nextGaussian()) * peak * 0.15;
+					} else sample = 0;
+					out[pos] = clip(sample * env + random.nextGaussian() * 8);
+				}
+			}
+		}
+	},
+	/**
+	 * Background noise around -60 dBFS, what a muted or idle microphone delivers
+	 * and what the encoder sees between talk spurts.
+	 */
+	SILENCE {
+		@Override
+		protected void generate(short[] out, Random random) {
+			double lp = 0;
+			for (int i = 0; i < out.length; i++) {
+				lp += (random.nextGaussian() - lp) * 0.3;
+				out[i] = clip(lp * 80);
+			}
+		}
+	};
+	
+	public static final int RATE = 8000;
+	public static final int FRAME_SAMPLES = 160;
+	
+	protected abstract void generate(short[] out, Random random);
+	
+	/**
+	 * @return {@code frames} frames of this signal, always the same for the same
+	 *         arguments
+	 */
+	public short[][] frames(int frames) {
+		return frames(frames, 137L);
+	}
+	
+	/**
+	 * @return {@code frames} frames of this signal, varying with the seed
+	 */
+	public short[][] frames(int frames, long seed) {
+		short[] pcm = new short[frames * FRAME_SAMPLES];
+		generate(pcm, new Random(seed));
+		short[][] result = new short[frames][FRAME_SAMPLES];
+		for (int i = 0; i < frames; i++)
+			System.arraycopy(pcm, i * FRAME_SAMPLES, result[i], 0, FRAME_SAMPLES);
+		return result;
+	}
+	
+	private static short clip(double sample) {
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample)));
+	}
+	
+	private static class Resonator {
+		private double a1, a2, gain, y1, y2;
+		
+		public void set(double freq, double bandwidth) {
+			double r = Math.exp(-Math.PI * bandwidth / RATE);
+			this.a1 = 2 * r * Math.cos(2 * Math.PI * freq / RATE);
+			this.a2 = -r * r;
+			this.gain = 1 - r;
+		}
+		
+		public double process(double x) {
+			double y = this.gain * x + this.a1 * this.y1 + this.a2 * this.y2;
+			this.y2 = this.y1;
+			this.y1 = y;
+			return y;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Line based control of a client running without the browser UI, either through stdin/stdout or a socket on the loopback interface.
+ * <p>
+ * Requests are the {@link CommandDispatcher} commands, e.g. {@code callCall 1234}, each answered by a line {@code ok <response>}
+ * or {@code error <code> <message>}. Anything the client reports to the UI is written as {@code message <message>} or
+ * {@code event <function>(<params>)} lines in between. {@code quit} exits the client.
+ */
+public class HeadlessControl implements UIBridge, AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(HeadlessControl.class);
+	private final CommandDispatcher dispatcher;
+	private final int port;
+	private final List<PrintWriter> outputs = new CopyOnWriteArrayList<>();
+	private ServerSocket server;
+	
+	/**
+	 * @param port port to listen on, or -1 to use stdin and stdout
+	 */
+	public HeadlessControl(CommandDispatcher dispatcher, int port) {
+		this.dispatcher = dispatcher;
+		this.port = port;
+	}
+	
+	public void start() throws IOException {
+		Thread thread;
+		if (this.port < 0) {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), true);
+			this.outputs.add(out);
+			thread = new Thread(() -> {
+				if (!serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), out))
+					StitzClient.exit(0); // stdin closed, nobody left to control the client
+			}, "control-stdin");
+		} else {
+			this.server = new ServerSocket(this.port, 4, InetAddress.getLoopbackAddress());
+			LOGGER.info("Listening for control connections on {}", this.server.getLocalSocketAddress());
+			thread = new Thread(this::accept, "control-server");
+		}
+		thread.start(); // keeps the client alive, there is no UI thread
+	}
+	
+	private void accept() {
+		while (!this.server.isClosed()) {
+			try {
+				Socket socket = this.server.accept();
+				Thread thread = new Thread(() -> {
+					try (socket;
+							BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+							PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+						this.outputs.add(out);
+						serve(in, out);
+						this.outputs.remove(out);
+					} catch (IOException e) {
+						LOGGER.warn("Exception on control connection {}", socket.getRemoteSocketAddress(), e);
+					}
+				}, "control-" + socket.getPort());
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				if (!this.server.isClosed())
+					LOGGER.warn("Exception accepting control connection", e);
+			}
+		}
+	}
+	
+	/**
+	 * @return whether the client is exiting as requested
+	 */
+	private boolean serve(BufferedReader in, PrintWriter out) {
+		try {
+			for (String line; (line = in.readLine()) != null; ) {
+				line = line.strip();
+				if (line.isEmpty()) continue;
+				if (line.equals("quit")) {
+					write(out, "ok ");
+					StitzClient.exit(0);
+					return true;
+				}
+				try {
+					if (!this.dispatcher.dispatch(line, new CommandDispatcher.Reply() {
+						@Override public void success(String response) { write(out, "ok " + response); }
+						@Override public void failure(int code, String message) { write(out, "error %d %s".formatted(code, message)); }
+					}))
+						write(out, "error 1 unknown command");
+				} catch (Exception e) {
+					LOGGER.error("Exception running command {}", line, e);
+					write(out, "error 3 " + e.getMessage());
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Exception reading control input", e);
+		}
+		return false;
+	}
+	
+	private static void write(PrintWriter out, String line) {
+		synchronized (out) { // responses and events come from different threads
+			out.println(line.replace('\n', ' '));
+		}
+	}
+	
+	@Override
+	public void post(String message) {
+		for (PrintWriter out : this.outputs)
+			write(out, "message " + message);
+	}
+	
+	@Override
+	public void call(String function, Object... params) {
+		String event = "event %s(%s)".formatted(function, UIBridge.formatParams(params));
+		for (PrintWriter out : this.outputs)
+			write(out, event);
+	}
+	
+	@Override
+	public void callRaw(String js) {
+		LOGGER.debug("Ignoring js without browser: {}", js);
+	}
+	
+	@Override
+	public void close() {
+		if (this.server != null)
+			try { this.server.close(); }
+			catch (IOException e) { LOGGER.warn("Exception closing control socket", e); }
+	}
+}
@@ -25,7 +25,8 @@ package dev.cheos.stitz;
 
 import java.io.*;
 import java.nio.file.*;
-import java.util.Properties;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -36,173 +37,382 @@ import org.slf4j.LoggerFactory;
 public class Persistence {
 	private static final Logger LOGGER = LoggerFactory.getLogger(Persistence.class);
 	private static final Path CONFIG_FILE = StitzClient.DATA_DIR.resolve("config.properties");
-	private static final Properties PROPS = new Properties();
+	private static final long WRITE_DELAY_MILLIS = 250; // changes are written behind, at most a few times a second
+	private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "config-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final List<Setting<?>> SETTINGS = new ArrayList<>(); // parsed once whenever the snapshot is replaced
+	private static final Setting<Integer> AUDIO_IN_IDX = setting("audio.in.idx", Integer::parseInt, () -> -1);
+	private static final Setting<Integer> AUDIO_OUT_IDX = setting("audio.out.idx", Integer::parseInt, () -> -1);
+	private static final Setting<Integer> AUDIO_CLIP_IDX = setting("audio.clip.idx", Integer::parseInt, () -> -1);
+	private static final Setting<Integer> INPUT_VOLUME = setting("audio.in.volume", Integer::parseInt, () -> 10000);
+	private static final Setting<Integer> OUTPUT_VOLUME = setting("audio.out.volume", Integer::parseInt, () -> 10000);
+	private static final Setting<Integer> CLIP_VOLUME = setting("audio.clip.volume", Integer::parseInt, () -> 10000);
+	private static final Setting<Boolean> DTX = setting("audio.in.dtx", Boolean::parseBoolean, () -> true);
+	private static final Setting<Integer> FRAMES_PER_PACKET = setting("audio.in.framesPerPacket", Integer::parseInt, () -> 0);
+	private static final Setting<Boolean> LOW_CPU_CODECS = setting("audio.codec.lowCpu", Boolean::parseBoolean, () -> false);
+	private static final Setting<Boolean> INPUT_PROCESSING = setting("audio.in.dsp", Boolean::parseBoolean, () -> true);
+	private static final Setting<Long> AUDIO_IDLE_TIMEOUT = setting("audio.idleTimeout", Long::parseLong, () -> 30_000L);
+	private static final Setting<Boolean> LOW_LATENCY_OUTPUT = setting("audio.out.lowLatency", Boolean::parseBoolean, () -> true);
+	private static final Setting<Boolean> RECORD_CALLS = setting("recording.enabled", Boolean::parseBoolean, () -> false);
+	private static final Setting<Path> RECORDING_DIR = setting("recording.dir", Path::of, () -> StitzClient.DATA_DIR.resolve("recordings"));
+	private static final Setting<Integer> WINDOW_X = setting("window.x", Integer::parseInt, () -> null);
+	private static final Setting<Integer> WINDOW_Y = setting("window.y", Integer::parseInt, () -> null);
+	private static volatile Snapshot snapshot = new Snapshot(Map.of(), null); // immutable, replaced on every change
+	private static final Set<String> dirty = new HashSet<>(); // keys changed since the last write
+	private static ScheduledFuture<?> pendingWrite;
 	
 	public static void init() throws IOException {
 		if (Files.notExists(CONFIG_FILE))
 			Files.createFile(CONFIG_FILE);
 		load();
-		save();
+		write();
+		watch();
+		StitzClient.addShutdownHook(Persistence::flush);
 	}
 	
 	public static void setUsername(String username) {
-		load();
 		setProperty("username", username);
-		save();
 	}
 	
 	public static String getUsername() {
-		load();
 		return getProperty("username");
 	}
 	
 	public static void setPassword(String password) {
-		load();
 		setProperty("password", password);
-		save();
 	}
 	
 	public static String getPassword() {
-		load();
 		return getProperty("password");
 	}
 	
 	public static void setDisplayName(String displayName) {
-		load();
 		setProperty("displayName", displayName);
-		save();
 	}
 	
 	public static String getDisplayName() {
-		load();
 		return getProperty("displayName");
 	}
 	
 	public static void setAudioInput(int idx, StitzAudioHandler handler) {
-		load();
-		setProperty("audio.in.idx", idx);
-		setProperty("audio.in.desc", handler.listIn().get(idx).getName());
-		save();
+		setProperties(Map.of(
+				AUDIO_IN_IDX.key, idx,
+				"audio.in.desc", handler.listIn().get(idx).getName()));
 	}
 	
 	public static int getAudioInput(StitzAudioHandler handler) {
-		load();
-		int storedIdx = defaulted(() -> getProperty("audio.in.idx", Integer::parseInt), () -> -1);
+		int storedIdx = get(AUDIO_IN_IDX);
 		int idx = StitzAudioHandler.findDevice(handler.listIn(), storedIdx, getProperty("audio.in.desc"));
-		if (storedIdx != idx) setAudioInput(idx, handler);
+		if (storedIdx != idx && idx >= 0) setAudioInput(idx, handler);
 		return idx;
 	}
 	
 	public static void setAudioOutput(int idx, StitzAudioHandler handler) {
-		load();
-		setProperty("audio.out.idx", idx);
-		setProperty("audio.out.desc", handler.listOut().get(idx).getName());
-		save();
+		setProperties(Map.of(
+				AUDIO_OUT_IDX.key, idx,
+				"audio.out.desc", handler.listOut().get(idx).getName()));
 	}
 	
 	public static int getAudioOutput(StitzAudioHandler handler) {
-		load();
-		int storedIdx = defaulted(() -> getProperty("audio.out.idx", Integer::parseInt), () -> -1);
+		int storedIdx = get(AUDIO_OUT_IDX);
 		int idx = StitzAudioHandler.findDevice(handler.listOut(), storedIdx, getProperty("audio.out.desc"));
-		if (storedIdx != idx) setAudioOutput(idx, handler);
+		if (storedIdx != idx && idx >= 0) setAudioOutput(idx, handler);
 		return idx;
 	}
 	
 	public static void setClipOutput(int idx, StitzAudioHandler handler) {
-		load();
-		setProperty("audio.clip.idx", idx);
-		setProperty("audio.clip.desc", handler.listClip().get(idx).getName());
-		save();
+		setProperties(Map.of(
+				AUDIO_CLIP_IDX.key, idx,
+				"audio.clip.desc", handler.listClip().get(idx).getName()));
 	}
 	
 	public static int getClipOutput(StitzAudioHandler handler) {
-		load();
-		int storedIdx = defaulted(() -> getProperty("audio.clip.idx", Integer::parseInt), () -> -1);
+		int storedIdx = get(AUDIO_CLIP_IDX);
 		int idx = StitzAudioHandler.findDevice(handler.listOut(), storedIdx, getProperty("audio.clip.desc"));
-		if (storedIdx != idx) setClipOutput(idx, handler);
+		if (storedIdx != idx && idx >= 0) setClipOutput(idx, handler);
 		return idx;
 	}
 	
 	public static void setInputVolume(int volume) {
-		load();
-		setProperty("audio.in.volume", volume);
-		save();
+		setProperty(INPUT_VOLUME.key, volume);
 	}
 	
 	public static int getInputVolume() {
-		load();
-		return defaulted(() -> getProperty("audio.in.volume", Integer::parseInt), () -> 10000);
+		return get(INPUT_VOLUME);
 	}
 	
 	public static void setOutputVolume(int volume) {
-		load();
-		setProperty("audio.out.volume", volume);
-		save();
+		setProperty(OUTPUT_VOLUME.key, volume);
 	}
 	
 	public static int getOutputVolume() {
-		load();
-		return defaulted(() -> getProperty("audio.out.volume", Integer::parseInt), () -> 10000);
+		return get(OUTPUT_VOLUME);
 	}
 	
 	public static void setClipVolume(int volume) {
-		load();
-		setProperty("audio.clip.volume", volume);
-		save();
+		setProperty(CLIP_VOLUME.key, volume);
 	}
 	
 	public static int getClipVolume() {
-		load();
-		return defaulted(() -> getProperty("audio.clip.volume", Integer::parseInt), () -> 10000);
+		return get(CLIP_VOLUME);
+	}
+	
+	public static void setDiscontinuousTransmission(boolean dtx) {
+		setProperty(DTX.key, dtx);
+	}
+	
+	public static boolean getDiscontinuousTransmission() {
+		return get(DTX);
+	}
+	
+	/**
+	 * @param frames voice frames sent per packet, 0 to adapt to the measured link conditions
+	 */
+	public static void setFramesPerPacket(int frames) {
+		setProperty(FRAMES_PER_PACKET.key, frames);
+	}
+	
+	public static int getFramesPerPacket() {
+		return get(FRAMES_PER_PACKET);
+	}
+	
+	/**
+	 * @param lowCpu whether to prefer codecs that are cheap to encode over ones saving bandwidth
+	 */
+	public static void setLowCpuCodecs(boolean lowCpu) {
+		setProperty(LOW_CPU_CODECS.key, lowCpu);
+	}
+	
+	public static boolean getLowCpuCodecs() {
+		return get(LOW_CPU_CODECS);
+	}
+	
+	public static void setInputProcessing(boolean enabled) {
+		setProperty(INPUT_PROCESSING.key, enabled);
+	}
+	
+	public static boolean getInputProcessing() {
+		return get(INPUT_PROCESSING);
+	}
+	
+	public static void setAudioIdleTimeout(long millis) {
+		setProperty(AUDIO_IDLE_TIMEOUT.key, millis);
+	}
+	
+	public static long getAudioIdleTimeout() {
+		return get(AUDIO_IDLE_TIMEOUT);
+	}
+	
+	public static void setLowLatencyOutput(boolean lowLatency) {
+		setProperty(LOW_LATENCY_OUTPUT.key, lowLatency);
+	}
+	
+	public static boolean getLowLatencyOutput() {
+		return get(LOW_LATENCY_OUTPUT);
+	}
+	
+	/**
+	 * @param record whether to record all calls to the {@link #getRecordingDirectory() recording directory}
+	 */
+	public static void setRecordCalls(boolean record) {
+		setProperty(RECORD_CALLS.key, record);
+	}
+	
+	public static boolean getRecordCalls() {
+		return get(RECORD_CALLS);
+	}
+	
+	public static void setRecordingDirectory(Path directory) {
+		setProperty(RECORDING_DIR.key, directory);
+	}
+	
+	public static Path getRecordingDirectory() {
+		return get(RECORDING_DIR);
 	}
 	
 	public static void setWindowPos(int x, int y) {
-		load();
-		setProperty("window.x", x);
-		setProperty("window.y", y);
-		save();
+		setProperties(Map.of(WINDOW_X.key, x, WINDOW_Y.key, y)); // called for every step of a window drag, writes are batched
 	}
 	
 	public static Pair<Integer, Integer> getWindowPos() {
-		load();
-		return Pair.of(
-				defaulted(() -> getProperty("window.x", Integer::parseInt), () -> null),
-				defaulted(() -> getProperty("window.y", Integer::parseInt), () -> null));
+		return Pair.of(get(WINDOW_X), get(WINDOW_Y));
 	}
+
 	
 	
+	/**
+	 * Replaces the cached configuration with the file contents, keeping changes not yet written.
+	 */
 	public static void load() {
+		Properties props = new Properties();
 		try (InputStream is = Files.newInputStream(CONFIG_FILE, StandardOpenOption.READ)) {
-			PROPS.load(is);
+			props.load(is);
 		} catch (IOException e) {
 			LOGGER.error("error loading config", e);
+			return;
+		}
+		synchronized (Persistence.class) {
+			Map<String, String> values = new HashMap<>();
+			props.forEach((key, value) -> values.put((String) key, (String) value));
+			for (String key : dirty) {
+				String value = snapshot.raw.get(key);
+				if (value == null) values.remove(key);
+				else values.put(key, value);
+			}
+			if (!values.equals(snapshot.raw))
+				snapshot = new Snapshot(Map.copyOf(values), snapshot);
 		}
 	}
 	
-	public static void save() {
-		try (OutputStream os = Files.newOutputStream(CONFIG_FILE)) {
-			PROPS.store(os, "StiTz client configuration, not meant for manual editing!\n#This file is not guaranteed to automatically reload!");
+	/**
+	 * Writes pending changes now instead of waiting for the write-behind delay.
+	 */
+	public static void flush() {
+		ScheduledFuture<?> pending;
+		synchronized (Persistence.class) {
+			pending = pendingWrite;
+			pendingWrite = null;
+		}
+		if (pending != null) {
+			pending.cancel(false);
+			write();
+		}
+	}
+	
+	private static void scheduleWrite() {
+		if (pendingWrite == null)
+			pendingWrite = WRITER.schedule(() -> {
+				synchronized (Persistence.class) {
+					pendingWrite = null;
+				}
+				write();
+			}, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	private static void write() {
+		Map<String, String> written = snapshot.raw;
+		Properties props = new Properties();
+		props.putAll(written);
+		synchronized (CONFIG_FILE) { // the writer and flush() on shutdown may overlap
+			Path tmp = CONFIG_FILE.resolveSibling(CONFIG_FILE.getFileName() + ".tmp");
+			try {
+				try (OutputStream os = Files.newOutputStream(tmp)) {
+					props.store(os, "StiTz client configuration, not meant for manual editing!\n#Changes made while the client is running are picked up, but may be overwritten.");
+				}
+				try {
+					Files.move(tmp, CONFIG_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp, CONFIG_FILE, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				LOGGER.error("error saving config", e);
+				return; // still dirty, kept over the file contents until written
+			}
+		}
+		synchronized (Persistence.class) { // until now, a reload may still have read the old file
+			Map<String, String> current = snapshot.raw;
+			dirty.removeIf(key -> Objects.equals(current.get(key), written.get(key))); // keys changed again meanwhile are written next
+		}
+	}
+	
+	private static void watch() {
+		WatchService watcher;
+		try {
+			watcher = CONFIG_FILE.getFileSystem().newWatchService();
+			CONFIG_FILE.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
 		} catch (IOException e) {
-			LOGGER.error("error saving config", e);
+			LOGGER.warn("cannot watch config for changes", e);
+			return;
 		}
+		Thread thread = new Thread(() -> {
+			try {
+				while (true) {
+					WatchKey key = watcher.take();
+					boolean changed = false;
+					for (WatchEvent<?> event : key.pollEvents())
+						changed |= CONFIG_FILE.getFileName().equals(event.context());
+					key.reset();
+					if (changed) load(); // own writes leave the snapshot unchanged
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) { }
+		}, "config-watcher");
+		thread.setDaemon(true);
+		thread.start();
 	}
 	
 	private static <T> void setProperty(String key, T value) {
-		if (value == null) PROPS.remove(key);
-		else PROPS.setProperty(key, String.valueOf(value));
+		setProperties(Collections.singletonMap(key, value));
+	}
+	
+	/**
+	 * Applies all values at once, so readers never see only some of them. Null values remove the key.
+	 */
+	private static synchronized void setProperties(Map<String, ?> values) {
+		Map<String, String> updated = new HashMap<>(snapshot.raw);
+		values.forEach((key, value) -> {
+			if (value == null) updated.remove(key);
+			else updated.put(key, String.valueOf(value));
+		});
+		if (updated.equals(snapshot.raw)) return;
+		snapshot = new Snapshot(Map.copyOf(updated), snapshot);
+		dirty.addAll(values.keySet());
+		scheduleWrite();
 	}
 	
 	private static String getProperty(String key) {
-		return PROPS.getProperty(key);
+		return snapshot.raw.get(key);
 	}
 	
-	private static <T> T getProperty(String key, Function<String, T> mapper) {
-		String value = getProperty(key);
-		return value == null ? null : mapper.apply(value);
+	@SuppressWarnings("unchecked")
+	private static <T> T get(Setting<T> setting) {
+		return (T) snapshot.values[setting.index];
+	}
+	
+	private static <T> Setting<T> setting(String key, Function<String, T> parser, Supplier<T> def) {
+		Setting<T> setting = new Setting<>(SETTINGS.size(), key, parser, def);
+		SETTINGS.add(setting);
+		return setting;
 	}
 	
 	public static <T> T defaulted(Supplier<T> fn, Supplier<T> def) {
 		T val = fn.get();
 		return val == null ? def.get() : val;
 	}
+	
+	
+	private record Setting<T>(int index, String key, Function<String, T> parser, Supplier<T> def) {
+		/**
+		 * @return the parsed value, the default if missing or malformed (e.g. edited by hand)
+		 */
+		private T parse(String value) {
+			if (value != null)
+				try {
+					return this.parser.apply(value);
+				} catch (RuntimeException e) {
+					LOGGER.warn("invalid value '{}' for {} in the config, using the default", value, this.key);
+				}
+			return this.def.get();
+		}
+	}
+	
+	/**
+	 * The configuration as stored and every setting parsed from it, values of unchanged keys are taken over from the previous snapshot.
+	 */
+	private static class Snapshot {
+		private final Map<String, String> raw;
+		private final Object[] values = new Object[SETTINGS.size()];
+		
+		private Snapshot(Map<String, String> raw, Snapshot previous) {
+			this.raw = raw;
+			for (Setting<?> setting : SETTINGS) {
+				String value = raw.get(setting.key);
+				this.values[setting.index] = previous != null && Objects.equals(value, previous.raw.get(setting.key))
+						? previous.values[setting.index]
+						: setting.parse(value);
+			}
+		}
+	}
 }
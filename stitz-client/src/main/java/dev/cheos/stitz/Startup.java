@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs the phases of startup as soon as the phases they depend on are done, independent ones in parallel,
+ * and logs a timeline of all phases once startup completed.
+ */
+public class Startup {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Startup.class);
+	private static final AtomicInteger THREAD_ID = new AtomicInteger();
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "startup-" + THREAD_ID.getAndIncrement());
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Map<String, Phase> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+	
+	/**
+	 * Runs a phase on a background thread once its dependencies are done.
+	 * @param dependencies names of phases added before
+	 */
+	public <T> CompletableFuture<T> async(String name, Callable<T> task, String... dependencies) {
+		Phase phase = new Phase(name);
+		CompletableFuture<T> future = dependencies(dependencies).thenApplyAsync(v -> phase.run(task), this.executor);
+		phase.future = future;
+		this.phases.put(name, phase);
+		return future;
+	}
+	
+	/**
+	 * Runs a phase on the calling thread, after waiting for its dependencies.
+	 */
+	public <T> T sync(String name, Callable<T> task, String... dependencies) {
+		Phase phase = new Phase(name);
+		CompletableFuture<T> future = new CompletableFuture<>();
+		phase.future = future;
+		this.phases.put(name, phase);
+		try {
+			dependencies(dependencies).join();
+			T result = phase.run(task);
+			future.complete(result);
+			return result;
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+	}
+	
+	private CompletableFuture<?> dependencies(String... names) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[names.length];
+		for (int i = 0; i < names.length; i++) {
+			Phase phase = this.phases.get(names[i]);
+			Preconditions.checkArgument(phase != null, "unknown startup phase %s", names[i]);
+			futures[i] = phase.future;
+		}
+		return CompletableFuture.allOf(futures);
+	}
+	
+	/**
+	 * @return a future completing once all phases added so far are done, failing if any of them failed
+	 */
+	public CompletableFuture<Void> done() {
+		CompletableFuture<?>[] futures;
+		synchronized (this.phases) {
+			futures = this.phases.values().stream().map(phase -> phase.future).toArray(CompletableFuture<?>[]::new);
+		}
+		return CompletableFuture.allOf(futures).whenComplete((v, e) -> {
+			logTimeline();
+			this.executor.shutdown();
+		});
+	}
+	
+	private void logTimeline() {
+		StringBuilder sb = new StringBuilder("startup timeline (ms since jvm start):");
+		synchronized (this.phases) {
+			for (Phase phase : this.phases.values())
+				sb.append("\n  %-14s %6d - %6d  %6d ms  %s%s".formatted(
+						phase.name, phase.start, phase.end, phase.end - phase.start, phase.thread,
+						phase.future.isCompletedExceptionally() ? " (failed)" : ""));
+		}
+		LOGGER.info(sb.toString());
+	}
+	
+	private static long uptime() {
+		return ManagementFactory.getRuntimeMXBean().getUptime();
+	}
+	
+	
+	private static class Phase {
+		private final String name;
+		private volatile CompletableFuture<?> future;
+		private volatile long start = -1, end = -1;
+		private volatile String thread;
+		
+		Phase(String name) {
+			this.name = name;
+		}
+		
+		<T> T run(Callable<T> task) {
+			this.thread = Thread.currentThread().getName();
+			this.start = uptime();
+			try {
+				return task.call();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			} finally {
+				this.end = uptime();
+				LOGGER.debug("startup phase {} took {} ms", this.name, this.end - this.start);
+			}
+		}
+	}
+}
@@ -34,7 +34,11 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
-import dev.cheos.stitz.gsm.GSMDecoder;
+import dev.cheos.stitz.audio.*;
+import dev.cheos.stitz.audio.codec.AudioCodec;
+import dev.cheos.stitz.audio.codec.AudioCodecs;
+import dev.cheos.stitz.audio.codec.CodecExecutor;
+import dev.cheos.stitz.audio.dsp.*;
 import dev.cheos.stitz.iax.IaxCallListener;
 import dev.cheos.stitz.iax.frame.MediaFrame.Format;
 
@@ -44,30 +48,47 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 	private static final AudioFormat IAX_FORMAT = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 8000f, 16, 1, 2, 8000f, true);
 	private static final List<String> DEFAULT_SFX_IDS = ImmutableList.of("hangup", "mute", "unmute", "deafen", "undeafen", "accept_incoming", "cancel_incoming", "call_incoming", "call_incoming_rare", "call_outgoing");
 	private static final Random RANDOM = new Random();
+	private static final int BLOCK_SIZE = 160; // 20 ms @ 8 kHz
 	private final Listener listener = new Listener();
+	private final DspChain inputChain = new DspChain(
+			new HighPassFilter(100, IAX_FORMAT.getSampleRate()),
+			new NoiseGate(-55, 12, IAX_FORMAT.getSampleRate()),
+			new AutomaticGainControl(-20, -45, 15),
+			new Limiter(-1, 50, IAX_FORMAT.getSampleRate()));
 	private List<Mixer.Info> audioIn, audioOut, clipOut;
 	private Mixer.Info inMixerInfo, outMixerInfo, clipMixerInfo;
-	private Mixer inMixer, outMixer, clipMixer;
+	private final Object micLock = new Object();
+	private final Timer timer = new Timer("audio-timer", true);
+	private Mixer inMixer;
 	private TargetDataLine inLine;
-	private SourceDataLine outLine;
-	private AudioInputStream inStream;
-	private Map<String, Clip> sfxClips = ImmutableMap.of();
+	private final Resampler inResampler = new Resampler(DEF_FORMAT.getSampleRate(), IAX_FORMAT.getSampleRate());
+	private final DriftCompensator inDrift = new DriftCompensator(IAX_FORMAT.getSampleRate(), IAX_FORMAT.getSampleRate() / 1600);
+	private final byte[] inRaw = new byte[(int) DEF_FORMAT.getSampleRate() / 100 * DEF_FORMAT.getFrameSize()]; // 10 ms
+	private final short[] inRawSamples = new short[this.inRaw.length / 2];
+	private long inStart, inCaptured;
+	private TimerTask micCloseTask;
+	private boolean inFailed;
+	private long inOpenNanos = -1, idleTimeout;
+	private final StreamSource voice = new StreamSource(IAX_FORMAT.getSampleRate(), 40, 200);
+	private volatile Map<String, SampleSource> sfx = ImmutableMap.of(); // set once decoded, see setSounds
+	private final Map<Mixer.Info, SoftwareMixer> mixers = new HashMap<>();
 	private boolean muted, deafened, wasMuted;
 	private int inVolume, outVolume, clipVolume;
-	private float /*inGain,*/ outGain, clipGain;
 	
 	public StitzAudioHandler() {
 		refreshDeviceLists();
+		this.inputChain.setBypassed(!Persistence.getInputProcessing());
 		
 		this.inVolume = Persistence.getInputVolume();
 		this.outVolume = Persistence.getOutputVolume();
 		this.clipVolume = Persistence.getClipVolume();
-//		this.inGain = linearToDB(this.inVolume * 0.0001f);
-		this.outGain = linearToDB(this.outVolume * 0.0001f);
-		this.clipGain = linearToDB(this.clipVolume * 0.0001f);
-		onInDeviceChanged(this.audioIn.get(Persistence.getAudioInput(this)));
-		onOutDeviceChanged(this.audioOut.get(Persistence.getAudioOutput(this)));
-		onClipDeviceChanged(this.clipOut.get(Persistence.getClipOutput(this)));
+		this.idleTimeout = Persistence.getAudioIdleTimeout();
+		
+		updateGains();
+		
+		onInDeviceChanged(device(this.audioIn, Persistence.getAudioInput(this)));
+		onOutDeviceChanged(device(this.audioOut, Persistence.getAudioOutput(this)));
+		onClipDeviceChanged(device(this.clipOut, Persistence.getClipOutput(this)));
 	}
 	
 	public void setIn(int idx) {
@@ -88,7 +109,6 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 	public void setInVolume(int volume) {
 		Persistence.setInputVolume(volume);
 		this.inVolume = volume;
-//		this.inGain = linearToDB(volume * 0.0001f);
 	}
 	
 	public int getInVolume() {
@@ -113,11 +133,7 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 	public void setOutVolume(int volume) {
 		Persistence.setOutputVolume(volume);
 		this.outVolume = volume;
-		this.outGain = linearToDB(volume * 0.0001f);
-		if (this.outLine != null) {
-			FloatControl gain = (FloatControl) this.outLine.getControl(FloatControl.Type.MASTER_GAIN);
-			gain.setValue(this.outGain);
-		}
+		updateGains();
 	}
 	
 	public int getOutVolume() {
@@ -142,11 +158,7 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 	public void setClipVolume(int volume) {
 		Persistence.setClipVolume(volume);
 		this.clipVolume = volume;
-		this.clipGain = linearToDB(volume * 0.0001f);
-		this.sfxClips.values().forEach(clip -> {
-			FloatControl gain = (FloatControl) clip.getControl(FloatControl.Type.MASTER_GAIN);
-			gain.setValue(this.clipGain);
-		});
+		updateGains();
 	}
 	
 	public int getClipVolume() {
@@ -156,6 +168,7 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 	public void setMute(boolean mute, boolean silent) {
 		if (this.muted == mute) return;
 		this.muted = mute;
+		StitzClient.getUIState().set(UIState.MUTED, mute);
 		
 		if (this.deafened && !mute) setDeafen(false, false);
 		else if (!silent) playSound(mute ? "mute" : "unmute");
@@ -168,6 +181,7 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 	public void setDeafen(boolean deafen, boolean silent) {
 		if (this.deafened == deafen) return;
 		this.deafened = deafen;
+		StitzClient.getUIState().set(UIState.DEAFENED, deafen);
 		
 		if (deafen) {
 			if (!silent) playSound("deafen");
@@ -179,11 +193,7 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 				this.wasMuted = false;
 			else setMute(false, true);
 		}
-		if (this.outLine != null)
-			synchronized (this.outLine) {
-				BooleanControl ctrl = (BooleanControl) this.outLine.getControl(BooleanControl.Type.MUTE);
-				ctrl.setValue(deafen);
-			}
+		updateGains();
 	}
 	
 	public boolean getDeafen() {
@@ -194,7 +204,6 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 		Mixer.Info[] mixerInfos = AudioSystem.getMixerInfo();
 		List<Mixer.Info> audioIn = new LinkedList<>();
 		List<Mixer.Info> audioOut = new LinkedList<>();
-		List<Mixer.Info> clipOut = new LinkedList<>();
 		
 		for (Mixer.Info mixerInfo : mixerInfos) {
 			Mixer mixer = AudioSystem.getMixer(mixerInfo);
@@ -208,245 +217,394 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 					audioOut.add(mixerInfo);
 					break;
 				}
-			for (Line.Info lineInfo : mixer.getSourceLineInfo())
-				if (lineInfo.getLineClass() == Clip.class) {
-					clipOut.add(mixerInfo);
-					break;
-				}
 		}
 		
 		if (!audioIn.equals(this.audioIn))
 			this.audioIn = ImmutableList.copyOf(audioIn);
 		if (!audioOut.equals(this.audioOut))
 			this.audioOut = ImmutableList.copyOf(audioOut);
-		if (!clipOut.equals(this.clipOut))
-			this.clipOut = ImmutableList.copyOf(clipOut);
+		this.clipOut = this.audioOut; // sound effects are mixed in software, any output line will do
 	}
 	
 	public IaxCallListener.AudioListener getListener() {
 		return this.listener;
 	}
 	
-	private Clip getSound(String id) {
-		Clip clip = this.sfxClips.get(id);
-		if (clip == null) LOGGER.warn("Unknown sound effect {}", id);
-		return clip;
+	/**
+	 * Hands the call audio output over to a {@link ConferenceBridge}, {@link #getListener()} has to be removed from all calls before.
+	 */
+	public StreamSource beginConference() {
+		this.listener.lane.flush().join(); // the bridge is the only producer from now on
+		this.voice.setEnabled(true);
+		return this.voice;
+	}
+	
+	public void endConference() {
+		this.voice.setEnabled(false);
+	}
+	
+	private SampleSource getSound(String id) {
+		SampleSource sound = this.sfx.get(id);
+		if (sound == null) LOGGER.warn("Unknown sound effect {}", id);
+		return sound;
 	}
 	
 	public void playSound(String id) {
-		Clip clip = getSound(id);
-		if (clip == null) return;
-		clip.stop();
-		clip.setMicrosecondPosition(0);
-		clip.start();
+		SampleSource sound = getSound(id);
+		if (sound == null) return;
+		sound.play();
 	}
 	
 	public void loopSound(String id) {
 		if ("call_incoming".equals(id) && RANDOM.nextInt(10_000) == 0)
 			id = "call_incoming_rare";
-		Clip clip = getSound(id);
-		if (clip == null) return;
-		clip.setMicrosecondPosition(0);
-		clip.loop(Clip.LOOP_CONTINUOUSLY);
+		SampleSource sound = getSound(id);
+		if (sound == null) return;
+		sound.loop();
 	}
 	
 	public void cancelLoopSound(String id) {
 		if ("call_incoming".equals(id))
 			cancelLoopSound("call_incoming_rare");
-		Clip clip = getSound(id);
-		if (clip == null) return;
-		clip.loop(0);
-		clip.stop();
+		SampleSource sound = getSound(id);
+		if (sound == null) return;
+		sound.stop();
 	}
 	
 	public int readMic(byte[] buf, short[] sbuf) {
-		try {
-			if (this.inStream == null || buf.length != 2 * sbuf.length) {
-				Arrays.fill(buf, (byte) 0);
-				Arrays.fill(sbuf, (short) 0);
-				return buf.length;
-			}
-			
-			int read = this.inStream.read(buf);
-			
-			if (this.muted) { // if muted, pretend like we read data and return
-				Arrays.fill(buf, (byte) 0);
-				Arrays.fill(sbuf, (short) 0);
-				return buf.length;
+		synchronized (this.micLock) {
+			try {
+				if (!openMic() || buf.length != 2 * sbuf.length) {
+					Arrays.fill(buf, (byte) 0);
+					Arrays.fill(sbuf, (short) 0);
+					this.micLock.wait(buf.length / 16); // no device, pretend to have read in real time instead of spinning
+					return buf.length;
+				}
+				
+				int read = readResampled(sbuf);
+				
+				if (this.muted) { // if muted, pretend like we read data and return
+					Arrays.fill(buf, (byte) 0);
+					Arrays.fill(sbuf, (short) 0);
+					return buf.length;
+				}
+				
+				scaleAudio(sbuf, buf, read, this.inVolume);
+				for (int i = 0; i + BLOCK_SIZE <= read; i += BLOCK_SIZE)
+					this.inputChain.process(sbuf, i, BLOCK_SIZE);
+				return read << 1;
+			} catch (InterruptedException e) {
+				return -1;
 			}
-			
-			scaleAudio(buf, sbuf, 0, read, this.inVolume);
-			return read;
-		} catch (IOException e) {
-			LOGGER.error("Exception reading audio input", e);
-			return -1;
 		}
 	}
 	
+	private int readResampled(short[] sbuf) { // converts to 8 kHz, compensating drift between the device and the wall clock
+		int produced = this.inResampler.read(sbuf, 0, sbuf.length);
+		while (produced < sbuf.length) {
+			int read = this.inLine.read(this.inRaw, 0, this.inRaw.length);
+			if (read <= 0) break; // line got closed
+			for (int i = 0; i < read >> 1; i++) // 16 bit big endian
+				this.inRawSamples[i] = (short) (((this.inRaw[2*i] << 8) & 0xFF00) | (this.inRaw[2*i+1] & 0xFF));
+			this.inResampler.write(this.inRawSamples, 0, read >> 1);
+			produced += this.inResampler.read(sbuf, produced, sbuf.length - produced);
+		}
+		
+		long now = System.nanoTime();
+		if (this.inStart == 0)
+			this.inStart = now;
+		this.inCaptured += produced;
+		double expected = (now - this.inStart) * (double) IAX_FORMAT.getSampleRate() / 1e9;
+		this.inResampler.setRatio(this.inDrift.update(this.inCaptured + this.inResampler.getPending() - expected));
+		return produced;
+	}
+	
+	private void resetCapture() {
+		this.inResampler.reset();
+		this.inDrift.reset();
+		this.inStart = this.inCaptured = 0;
+	}
+	
+	/**
+	 * @return measured latency of the voice output device, -1 if unknown
+	 */
+	public float getOutputLatencyMillis() {
+		synchronized (this.mixers) {
+			SoftwareMixer mixer = this.mixers.get(this.outMixerInfo);
+			return mixer == null ? -1 : mixer.getLatencyMillis();
+		}
+	}
+	
+	/**
+	 * @return drift between the input device and the wall clock currently being compensated, in ppm
+	 */
+	public double getInputDriftPpm() {
+		return this.inDrift.getDriftPpm();
+	}
+	
+	/**
+	 * @return drift between the remote side and the output device currently being compensated, in ppm
+	 */
+	public double getOutputDriftPpm() {
+		return this.voice.getDriftPpm();
+	}
+	
 	public void flushMic() {
-		if (this.inLine != null)
-			this.inLine.flush();
+		synchronized (this.micLock) {
+			if (this.inLine != null)
+				this.inLine.flush();
+			resetCapture();
+			this.inputChain.reset();
+			this.inputChain.resetStats();
+		}
 	}
 	
-	@Override
-	public void close() {
-		if (this.inLine != null) {
-			this.inLine.stop();
-			this.inLine.flush();
-			this.inLine.close();
+	/**
+	 * Opens the audio devices ahead of time, to be called as soon as a call starts ringing or dialing.
+	 */
+	public void prepare() {
+		this.timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				synchronized (StitzAudioHandler.this.micLock) {
+					StitzAudioHandler.this.inFailed = false; // retry a device that failed to open on the last call
+					openMic();
+				}
+			}
+		}, 0);
+		synchronized (this.mixers) {
+			this.mixers.values().forEach(SoftwareMixer::prepare);
 		}
-		
-		if (this.outLine != null) {
-			this.outLine.stop();
-			this.outLine.close();
+	}
+	
+	/**
+	 * Closes the audio input after the configured idle period, unless it gets used again in the meantime.
+	 */
+	public void releaseMic() {
+		synchronized (this.micLock) {
+			if (this.micCloseTask != null)
+				this.micCloseTask.cancel();
+			this.micCloseTask = new TimerTask() {
+				@Override
+				public void run() {
+					synchronized (StitzAudioHandler.this.micLock) {
+						if (StitzAudioHandler.this.micCloseTask == this)
+							closeMic();
+					}
+				}
+			};
+			this.timer.schedule(this.micCloseTask, this.idleTimeout);
 		}
-		
-		for (Clip clip : this.sfxClips.values()) {
-			clip.stop();
-			clip.close();
+	}
+	
+	/**
+	 * @return time it took to open the audio input the last time, -1 if it was never opened
+	 */
+	public long getInputOpenLatencyMillis() {
+		return this.inOpenNanos < 0 ? -1 : this.inOpenNanos / 1_000_000;
+	}
+	
+	/**
+	 * @return time it took to open the voice output the last time, -1 if it was never opened
+	 */
+	public long getOutputOpenLatencyMillis() {
+		synchronized (this.mixers) {
+			SoftwareMixer mixer = this.mixers.get(this.outMixerInfo);
+			return mixer == null ? -1 : mixer.getOpenLatencyMillis();
 		}
 	}
 	
-	private void scaleAudio(byte[] buf, short[] sbuf, int start, int end, int volume) { // hardcoded for frameSize = 2 (bytes), mono, big endian, PCM_SIGNED
-		if (volume == 10000) { // skip scaling if scale = 1, but fill short buffer
-			for (int i = start; i < end; i += 2)
-				sbuf[i>>1] = (short) (((buf[i] << 8) & 0xFF00) | (buf[i+1] & 0xFF));
-			return;
+	public DspChain getInputChain() {
+		return this.inputChain;
+	}
+	
+	@Override
+	public void close() {
+		this.timer.cancel();
+		closeMic();
+		
+		synchronized (this.mixers) {
+			this.mixers.values().forEach(SoftwareMixer::close);
+			this.mixers.clear();
 		}
-		for (int i = start; i < end; i += 2) {
-			short value = (short) (((buf[i] << 8) & 0xFF00) | (buf[i+1] & 0xFF));
-			float fvalue = value * 0.0001f * volume;
-			value = (short) Math.round(fvalue);
-			sbuf[i>>1] = (short) (value & 0xFFFF);
-			buf[i] = (byte) ((value >> 8) & 0xFF);
-			buf[i+1] = (byte) (value & 0xFF);
+	}
+	
+	private void scaleAudio(short[] sbuf, byte[] buf, int len, int volume) { // also fills buf, 16 bit big endian
+		if (volume != 10000) // skip scaling if scale = 1
+			for (int i = 0; i < len; i++)
+				sbuf[i] = (short) Math.round(sbuf[i] * 0.0001f * volume);
+		for (int i = 0; i < len; i++) {
+			buf[2*i] = (byte) (sbuf[i] >> 8);
+			buf[2*i+1] = (byte) sbuf[i];
 		}
 	}
 	
 	private void onInDeviceChanged(Mixer.Info newInfo) {
 		if (!listIn().contains(newInfo))
-			newInfo = listIn().get(0);
+			newInfo = device(listIn(), 0);
+		if (newInfo == null) { // e.g. headless machines
+			LOGGER.warn("No audio input device available");
+			return;
+		}
 		if (this.inMixerInfo == newInfo || newInfo.equals(this.inMixerInfo))
 			return;
 		
-		this.inMixerInfo = newInfo;
-		this.inMixer = AudioSystem.getMixer(newInfo);
-		
-		DataLine.Info lineInfo = new DataLine.Info(TargetDataLine.class, DEF_FORMAT);
-		try {
-			TargetDataLine oldLine = this.inLine;
-			TargetDataLine line = (TargetDataLine) this.inMixer.getLine(lineInfo);
-			AudioInputStream oldStream = this.inStream;
-			synchronized (line) {
-				if (oldLine != null)
-					oldLine.drain();
-				this.inLine = line;
-				line.open();
-				line.start();
-				this.inStream = AudioSystem.getAudioInputStream(IAX_FORMAT, new AudioInputStream(line));
+		synchronized (this.micLock) {
+			this.inMixerInfo = newInfo;
+			this.inMixer = AudioSystem.getMixer(newInfo);
+			this.inFailed = false;
+			if (this.inLine != null) { // switch devices mid-call, otherwise the line gets opened on demand
+				closeMic();
+				openMic();
+			}
+		}
+	}
+	
+	private boolean openMic() {
+		synchronized (this.micLock) {
+			if (this.micCloseTask != null) {
+				this.micCloseTask.cancel();
+				this.micCloseTask = null;
 			}
+			if (this.inLine != null) return true;
+			if (this.inFailed || this.inMixer == null) return false;
 			
-			if (oldLine != null) {
-				oldLine.stop();
-				oldLine.close();
+			try {
+				long start = System.nanoTime();
+				TargetDataLine line = (TargetDataLine) this.inMixer.getLine(new DataLine.Info(TargetDataLine.class, DEF_FORMAT));
+				line.open();
+				line.start();
+				this.inLine = line;
+				resetCapture();
+				this.inOpenNanos = System.nanoTime() - start;
+				LOGGER.info("Opened input line on {} in {} ms", this.inMixerInfo.getName(), getInputOpenLatencyMillis());
+				return true;
+			} catch (LineUnavailableException | IllegalArgumentException e) {
+				this.inFailed = true;
+				LOGGER.error("Exception opening input line", e);
+				StitzClient.showError("Error configuring voice audio input device, please restart the application.");
+				return false;
 			}
-			if (oldStream != null)
-				oldStream.close();
-		} catch (LineUnavailableException e) {
-			LOGGER.error("Exception opening input line", e);
-			StitzClient.showError("Error configuring voice audio input device, please restart the application.");
-		} catch (IOException e) {
-			LOGGER.warn("Exception closing old audio input stream", e);
+		}
+	}
+	
+	private void closeMic() {
+		synchronized (this.micLock) {
+			if (this.inLine == null) return;
+			this.inLine.stop();
+			this.inLine.flush();
+			this.inLine.close();
+			this.inLine = null;
+			LOGGER.debug("Closed idle input line on {}", this.inMixerInfo.getName());
 		}
 	}
 	
 	private void onOutDeviceChanged(Mixer.Info newInfo) {
 		if (!listOut().contains(newInfo))
-			newInfo = listOut().get(0);
+			newInfo = device(listOut(), 0);
+		if (newInfo == null) { // e.g. headless machines
+			LOGGER.warn("No audio output device available");
+			return;
+		}
 		if (this.outMixerInfo == newInfo || newInfo.equals(this.outMixerInfo))
 			return;
 		
 		this.outMixerInfo = newInfo;
-		this.outMixer = AudioSystem.getMixer(newInfo);
-		
-		DataLine.Info lineInfo = new DataLine.Info(SourceDataLine.class, IAX_FORMAT);
-		try {
-			SourceDataLine oldLine = this.outLine;
-			SourceDataLine line = (SourceDataLine) this.outMixer.getLine(lineInfo);
-			synchronized (line) {
-				this.outLine = line;
-				line.open();
-				FloatControl gain = (FloatControl) line.getControl(FloatControl.Type.MASTER_GAIN);
-				gain.setValue(this.outGain);
-				if (this.listener.enabled)
-					line.start();
-			}
-			
-			if (oldLine != null) {
-				oldLine.drain();
-				oldLine.stop();
-				oldLine.close();
-			}
-		} catch (LineUnavailableException e) {
-			LOGGER.error("Exception opening output line", e);
-			StitzClient.showError("Error configuring voice audio output device, please restart the application.");
-		}
+		updateMixers();
 	}
 	
 	private void onClipDeviceChanged(Mixer.Info newInfo) {
 		if (!listClip().contains(newInfo))
-			newInfo = listClip().get(0);
+			newInfo = device(listClip(), 0);
+		if (newInfo == null) { // e.g. headless machines
+			LOGGER.warn("No audio sound effect output device available");
+			return;
+		}
 		if (this.clipMixerInfo == newInfo || newInfo.equals(this.clipMixerInfo))
 			return;
 		
 		this.clipMixerInfo = newInfo;
-		this.clipMixer = AudioSystem.getMixer(newInfo);
-		
-		ImmutableMap.Builder<String, Clip> sfxClipBuilder = ImmutableMap.builder();
-		DEFAULT_SFX_IDS.forEach(s -> sfxClipBuilder.put(s, loadClip(s)));
-		/*
-		 * +mute
-		 * +unmute
-		 * +deafen
-		 * +undeafen
-		 * +hangup
-		 * +call_outgoing
-		 * +call_incoming
-		 * +cancel_incoming
-		 * +accept_incoming
-		 */
-		
-		Map<String, Clip> sfxClips = sfxClipBuilder.build();
-		
-		sfxClips.values().forEach(clip -> {
-			clip.setLoopPoints(0, -1);
-			FloatControl gain = (FloatControl) clip.getControl(FloatControl.Type.MASTER_GAIN);
-			gain.setValue(this.clipGain);
-		});
-		
-		synchronized (sfxClips) {
-			Map<String, Clip> oldSfxClips = this.sfxClips;
-			for (Clip clip : oldSfxClips.values()) {
-				clip.stop();
-				clip.close();
+		updateMixers();
+	}
+	
+	private void updateMixers() { // voice and sound effects share a single mixer (and line) if they play on the same device
+		synchronized (this.mixers) {
+			SoftwareMixer voiceMixer = getMixer(this.outMixerInfo);
+			SoftwareMixer sfxMixer = getMixer(this.clipMixerInfo);
+			for (SoftwareMixer mixer : this.mixers.values()) {
+				if (mixer != voiceMixer) mixer.removeSource(this.voice);
+				if (mixer != sfxMixer) this.sfx.values().forEach(mixer::removeSource);
 			}
-			this.sfxClips = sfxClips;
+			if (voiceMixer != null) voiceMixer.addSource(this.voice);
+			if (sfxMixer != null) this.sfx.values().forEach(sfxMixer::addSource);
+			
+			this.mixers.values().removeIf(mixer -> {
+				if (mixer == voiceMixer || mixer == sfxMixer) return false;
+				mixer.close();
+				return true;
+			});
+		}
+	}
+	
+	private SoftwareMixer getMixer(Mixer.Info device) {
+		if (device == null) return null;
+		SoftwareMixer mixer = this.mixers.get(device);
+		if (mixer != null) return mixer;
+		mixer = new SoftwareMixer(device, this.idleTimeout, Persistence.getLowLatencyOutput());
+		mixer.setErrorHandler(e -> StitzClient.showError("Error configuring audio output device, please restart the application."));
+		mixer.open(); // the line itself is only opened once something plays
+		this.mixers.put(device, mixer);
+		return mixer;
+	}
+	
+	private void updateGains() {
+		this.voice.setGain(this.deafened ? 0 : this.outVolume * 0.0001f);
+		float clipGain = this.clipVolume * 0.0001f;
+		this.sfx.values().forEach(sound -> sound.setGain(clipGain));
+	}
+	
+	/**
+	 * Decodes the sound effects, which takes a while, to be passed to {@link #setSounds(Map)}.
+	 */
+	public static Map<String, SampleSource> loadSounds() {
+		ImmutableMap.Builder<String, SampleSource> sfxBuilder = ImmutableMap.builder();
+		for (String id : DEFAULT_SFX_IDS) {
+			short[] pcm = loadSound(id);
+			if (pcm != null) sfxBuilder.put(id, new SampleSource(pcm));
 		}
+		return sfxBuilder.build();
 	}
 	
-	private Clip loadClip(String name) {
-		try {
-			Clip clip = (Clip) this.clipMixer.getLine(new DataLine.Info(Clip.class, DEF_FORMAT));
-			InputStream is = new BufferedInputStream(getClass().getResourceAsStream("/sfx/%s.wav".formatted(name)));
-			clip.open(AudioSystem.getAudioInputStream(is));
-			return clip;
+	/**
+	 * Sets the sound effects to play, until then playing any just logs a warning.
+	 */
+	public void setSounds(Map<String, SampleSource> sounds) {
+		synchronized (this.mixers) {
+			this.sfx = ImmutableMap.copyOf(sounds);
+			updateGains();
+			updateMixers();
+		}
+	}
+	
+	private static short[] loadSound(String name) { // decoded once, converted to the mixer format
+		try (AudioInputStream source = AudioSystem.getAudioInputStream(new BufferedInputStream(StitzAudioHandler.class.getResourceAsStream("/sfx/%s.wav".formatted(name))));
+				AudioInputStream stream = AudioSystem.getAudioInputStream(SoftwareMixer.FORMAT, source)) {
+			byte[] data = stream.readAllBytes();
+			short[] pcm = new short[data.length / 2];
+			for (int i = 0; i < pcm.length; i++) // 16 bit little endian
+				pcm[i] = (short) ((data[2*i] & 0xFF) | (data[2*i+1] << 8));
+			return pcm;
 		} catch (Exception e) {
-			LOGGER.error("Exception loading clip " + name, e);
+			LOGGER.error("Exception loading sound " + name, e);
 			return null;
 		}
 	}
 	
+	/**
+	 * @return index of the device, 0 for the system default if not found or -1 if there are no devices at all
+	 */
 	public static int findDevice(List<Mixer.Info> available, int expectedIdx, String desc) {
+		if (available.isEmpty()) return -1;
 		if (expectedIdx < 0) return 0; // default on invalid index
 		if (available.size() > expectedIdx && available.get(expectedIdx).getName().equals(desc))
 			return expectedIdx; // element is located where expected
@@ -457,40 +615,66 @@ public class StitzAudioHandler implements AutoCloseable { // TODO allow for cust
 		return 0; // element not found => default to system default
 	}
 	
-	private static float linearToDB(float linear) {
-		return (float) (20 * Math.log10(linear == 0 ? 0.0001 : linear));
+	private static Mixer.Info device(List<Mixer.Info> available, int idx) {
+		return idx >= 0 && idx < available.size() ? available.get(idx) : null;
 	}
 	
 	
-	private final class Listener implements IaxCallListener.AudioListener {
-		private final GSMDecoder decoder = new GSMDecoder();
-		private final byte[] buf = new byte[320];
-		private boolean enabled, inactive;
+	private final class Listener implements IaxCallListener.AudioListener { // decodes on the shared codec pool, off the packet handler thread
+		private final CodecExecutor.Lane lane = CodecExecutor.shared().newLane("playback");
+		private AudioCodec codec;
+		private short[] sbuf;
+		private volatile boolean inactive;
 		
 		@Override
 		public void onSetEnabled(boolean enabled) {
-			if (this.inactive) return;
-			synchronized (StitzAudioHandler.this.outLine) {
-				if (this.enabled = enabled)
-					StitzAudioHandler.this.outLine.start();
-				else {
-					StitzAudioHandler.this.outLine.stop();
-					StitzAudioHandler.this.outLine.flush(); // discard remaining buffer
-				}
-			}
+			this.lane.execute(() -> {
+				if (this.inactive) return;
+				if (enabled) this.lane.resetCodecs(); // start every call with fresh decoder state
+				StitzAudioHandler.this.voice.setEnabled(enabled); // disabling discards remaining audio
+			});
 		}
 		
 		@Override
 		public void onAudioReceived(byte[] data, Format format) {
-			if (!this.enabled || this.inactive) return;
-			synchronized (StitzAudioHandler.this.outLine) {
-				try {
-					this.decoder.decode(data, 0, this.buf, 0, true);
-					StitzAudioHandler.this.outLine.write(this.buf, 0, this.buf.length);
-				} catch (Exception e) {
-					LOGGER.error("Exception decoding audio data", e);
+			if (this.inactive) return;
+			this.lane.execute(() -> decode(data, format)); // data is never reused by the caller
+		}
+		
+		private void decode(byte[] data, Format format) {
+			if (!StitzAudioHandler.this.voice.isEnabled() || this.inactive) return;
+			if (this.codec == null || this.codec.getFormat() != format) {
+				AudioCodec codec = AudioCodecs.get(format);
+				if (codec == null) {
+					LOGGER.warn("received audio in unsupported format {}, dropping", format);
+					return;
 				}
+				LOGGER.debug("decoding audio using {}", codec);
+				this.codec = codec;
+				this.sbuf = new short[codec.getFrameSamples()];
 			}
+			
+			AudioCodec.Decoder decoder = this.lane.decoder(this.codec);
+			int frameBytes = this.codec.getFrameBytes();
+			if (data.length % frameBytes != 0)
+				LOGGER.warn("received {} bytes of audio data, which is not a multiple of the frame size, ignoring trailing bytes", data.length);
+			try {
+				StitzAudioHandler.this.voice.setComfortNoise(-1);
+				for (int off = 0; off + frameBytes <= data.length; off += frameBytes) { // peers may pack several frames into one packet
+					decoder.decode(data, off, this.sbuf, 0);
+					StitzAudioHandler.this.voice.write(this.sbuf, 0, this.sbuf.length);
+				}
+			} catch (Exception e) {
+				LOGGER.error("Exception decoding audio data", e);
+			}
+		}
+		
+		@Override
+		public void onComfortNoiseReceived(int level) { // generated locally by the voice source, so silence costs no decoding at all
+			this.lane.execute(() -> { // keep ordered with the audio received before
+				if (!StitzAudioHandler.this.voice.isEnabled() || this.inactive) return;
+				StitzAudioHandler.this.voice.setComfortNoise(level);
+			});
 		}
 	}
 }
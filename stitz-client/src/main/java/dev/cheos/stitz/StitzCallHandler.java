@@ -25,39 +25,61 @@ package dev.cheos.stitz;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import dev.cheos.stitz.gsm.GSMEncoder;
+import dev.cheos.stitz.audio.ConferenceBridge;
+import dev.cheos.stitz.audio.MediaFile;
+import dev.cheos.stitz.audio.VoiceActivityDetector;
+import dev.cheos.stitz.audio.VoicePacketizer;
+import dev.cheos.stitz.audio.codec.AudioCodec;
+import dev.cheos.stitz.audio.codec.AudioCodecs;
+import dev.cheos.stitz.audio.codec.CodecExecutor;
+import dev.cheos.stitz.audio.record.CallRecorder;
+import dev.cheos.stitz.audio.record.Recording;
+import dev.cheos.stitz.history.CallRecord;
 import dev.cheos.stitz.iax.*;
 import dev.cheos.stitz.iax.frame.Frame;
 import dev.cheos.stitz.iax.frame.MediaFrame;
 
 public class StitzCallHandler implements AutoCloseable {
 	private static final Logger LOGGER = LoggerFactory.getLogger(StitzCallHandler.class);
+	public static final String SERVER_HOST = "stitz.stellwerksim.de";
 	private static final AtomicInteger CLIENT_CALL_NUMBER = new AtomicInteger(1);
+	private static final int COMFORT_NOISE_INTERVAL_BLOCKS = 25; // refresh comfort noise every 500 ms during silence
+	private static final int MIC_BLOCK_BUFFERS = 4;
+	private static final DateTimeFormatter RECORDING_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
 	private final Object loginLock = new Object(), callIncomingLock = new Object();
 	private IaxClient client;
 	private IaxCall call;
 	private IaxCall.Pending pending;
+	private CallRecorder recorder;
+	private volatile ConferenceBridge conference;
 	private final IaxCallListener listener = new CallListener();
+	private final Map<IaxCall, CallDetail> callDetails = new ConcurrentHashMap<>(); // added to the history once ended
 	private boolean loggedIn, loginSuccess, inCall;
-	private Timer timer = new Timer();
-	private TimerTask timestampUpdateTask;
 	private ExecutorService voicePushExecutor;
 	private Map<ExecutorService, Boolean> shutdownExecutors = new ConcurrentHashMap<>();
 	
-	public StitzCallHandler() {
+	/**
+	 * Logs in using the persisted credentials, blocking until registered or failed.
+	 * @return whether the login succeeded, the user has to log in otherwise
+	 */
+	public boolean loginPersisted() {
 		try {
-			if (!login(Persistence.getUsername(), Persistence.getPassword(), false))
-				StitzClient.postUIMessage("require-login");
+			return login(Persistence.getUsername(), Persistence.getPassword(), false);
 		} catch (IOException e) {
 			LOGGER.error("Exception logging in using persisted credentials", e);
-			StitzClient.postUIMessage("require-login");
+			return false;
 		}
 	}
 	
@@ -71,7 +93,7 @@ public class StitzCallHandler implements AutoCloseable {
 						getDisplayName(),
 						username,
 						password,
-						InetAddress.getByName("stitz.stellwerksim.de"),
+						InetAddress.getByName(SERVER_HOST),
 						4569,
 						10,
 						StitzClient.debug,
@@ -91,14 +113,6 @@ public class StitzCallHandler implements AutoCloseable {
 		if (persistCredentials)
 			Persistence.setPassword(password);
 		this.loggedIn = true;
-		this.timestampUpdateTask = new TimerTask() {
-			@Override
-			public void run() {
-				if (StitzCallHandler.this.call != null)
-					StitzClient.callUI("updateCallTimestamp", StitzCallHandler.this.call.getTimestampRelative());
-			}
-		};
-		this.timer.scheduleAtFixedRate(this.timestampUpdateTask, 200, 200);
 		return true;
 	}
 	
@@ -109,8 +123,6 @@ public class StitzCallHandler implements AutoCloseable {
 	}
 	
 	public void logout() {
-		if (this.timestampUpdateTask != null)
-			this.timestampUpdateTask.cancel();
 		if (this.voicePushExecutor != null) {
 			this.shutdownExecutors.put(this.voicePushExecutor, true);
 			this.voicePushExecutor.shutdownNow();
@@ -118,12 +130,15 @@ public class StitzCallHandler implements AutoCloseable {
 			catch (InterruptedException e) { }
 		}
 		this.voicePushExecutor = null;
+		stopRecording();
+		endConference();
 		this.loggedIn = false;
 		this.inCall = false;
 		if (this.client != null)
 			try { this.client.close(); }
 			catch (IOException e) { LOGGER.error("Exception closing iax client", e); }
 		this.client = null;
+		this.callDetails.keySet().forEach(this::finishCall);
 		this.call = null;
 		this.pending = null;
 		synchronized (StitzCallHandler.this.loginLock) {
@@ -146,15 +161,19 @@ public class StitzCallHandler implements AutoCloseable {
 	public void call(String number) {
 		if (this.inCall || this.client == null) return;
 		this.inCall = true;
-		this.call = this.client.call(number, MediaFrame.Format.GSM_FULL_RATE);
+		StitzClient.getAudioHandler().prepare();
+		this.call = this.client.call(number, AudioCodecs.getFormats(Persistence.getLowCpuCodecs()));
+		trackCall(this.call, CallRecord.Direction.OUTGOING, number, StitzClient.getDirectory().getContactName(number));
 		this.call.addListener(this.listener);
 		this.call.addListener(StitzClient.getAudioHandler().getListener());
 		this.call.start();
+		if (Persistence.getRecordCalls())
+			startRecording(number);
 		StitzClient.getAudioHandler().flushMic();
 		StitzCallHandler.this.voicePushExecutor = Executors.newSingleThreadExecutor();
 		StitzCallHandler.this.voicePushExecutor.execute(() -> pushMic(this.voicePushExecutor));
 		StitzClient.getAudioHandler().loopSound("call_outgoing");
-		StitzClient.callUI("showCallOutgoing", this.call.getCalledNumber() /* TODO display name if in contacts */, this.call.getCalledNumber());
+		StitzClient.callUI("showCallOutgoing", StitzClient.getDirectory().getDisplayName(number, null), this.call.getCalledNumber());
 	}
 	
 	public void hangup() {
@@ -162,8 +181,18 @@ public class StitzCallHandler implements AutoCloseable {
 	}
 	
 	public void hangup(boolean silent) {
+		stopRecording();
+		ConferenceBridge conference = this.conference;
+		if (conference != null)
+			for (IaxCall call : conference.getCalls())
+				if (call != this.call) {
+					call.stop();
+					call.removeListener(this.listener);
+					finishCall(call);
+				}
 		this.call.stop(); // call listener takes care of the rest
 		this.call.removeListener(this.listener);
+		finishCall(this.call);
 		this.call = null;
 		this.inCall = false;
 		if (this.voicePushExecutor != null) {
@@ -173,7 +202,9 @@ public class StitzCallHandler implements AutoCloseable {
 			catch (InterruptedException e) { }
 		}
 		this.voicePushExecutor = null;
+		endConference();
 		StitzClient.callUI("setInCall", false);
+		clearCallState();
 		StitzClient.getAudioHandler().cancelLoopSound("call_outgoing");
 		if (!silent)
 			StitzClient.getAudioHandler().playSound("hangup");
@@ -181,24 +212,43 @@ public class StitzCallHandler implements AutoCloseable {
 	
 	public void accept() {
 		if (this.pending == null || this.client == null) return;
-		if (this.inCall) hangup(true);
+		if (this.inCall && this.conference == null) hangup(true); // joins the conference otherwise
 		
 		LOGGER.debug("accepting incoming call");
 		
+		CallDetail detail = this.callDetails.remove(this.pending); // no longer missed once accepted
 		this.pending.accept().thenAccept(call -> {
 			LOGGER.debug("processing accepted call");
 			if (call == null) {
+				if (detail != null)
+					StitzClient.getDirectory().record(detail.toRecord(null));
+				releaseUnusedMic();
 				StitzClient.getAudioHandler().playSound("cancel_incoming");
 				return;
 			}
+			if (detail != null) {
+				detail.answered();
+				this.callDetails.put(call, detail);
+			}
+			ConferenceBridge conference = this.conference;
+			if (conference != null) {
+				call.addListener(this.listener);
+				conference.add(call);
+				StitzClient.getAudioHandler().playSound("accept_incoming");
+				this.pending = null;
+				return;
+			}
 			this.inCall = true;
 			this.call = call;
 			call.addListener(this.listener);
 			call.addListener(StitzClient.getAudioHandler().getListener());
+			if (Persistence.getRecordCalls())
+				startRecording(this.pending.getUsername());
 			StitzClient.getAudioHandler().flushMic();
 			this.voicePushExecutor = Executors.newSingleThreadExecutor();
 			this.voicePushExecutor.execute(() -> pushMic(this.voicePushExecutor));
-			StitzClient.callUI("setInCall", true, this.pending.getCallingName(), this.pending.getUsername());
+			StitzClient.callUI("setInCall", true, StitzClient.getDirectory().getDisplayName(this.pending.getUsername(), this.pending.getCallingName()), this.pending.getUsername());
+			showCallStart(call);
 			StitzClient.getAudioHandler().playSound("accept_incoming");
 			this.pending = null;
 		});
@@ -211,8 +261,12 @@ public class StitzCallHandler implements AutoCloseable {
 	
 	public void decline() {
 		if (this.pending == null) return;
+		CallDetail detail = this.callDetails.remove(this.pending);
+		if (detail != null)
+			StitzClient.getDirectory().record(detail.toRecord(CallRecord.Outcome.DECLINED));
 		this.pending.decline();
 		StitzCallHandler.this.pending = null;
+		releaseUnusedMic();
 		StitzClient.getAudioHandler().playSound("cancel_incoming");
 		
 		synchronized (StitzCallHandler.this.callIncomingLock) {
@@ -225,34 +279,334 @@ public class StitzCallHandler implements AutoCloseable {
 		return this.inCall;
 	}
 	
+	/**
+	 * Calls another number and mixes it into a local conference with the current call,
+	 * every participant hears everyone else. Further incoming calls join the conference once accepted.
+	 * @return whether the call was placed
+	 */
+	public synchronized boolean conferenceCall(String number) {
+		IaxCall current = this.call;
+		if (!this.inCall || current == null || this.client == null) return false;
+		if (this.conference == null) {
+			current.removeListener(StitzClient.getAudioHandler().getListener());
+			ConferenceBridge conference = new ConferenceBridge(StitzClient.getAudioHandler().beginConference(), Persistence.getDiscontinuousTransmission(), framesPerPacket());
+			conference.add(current);
+			this.conference = conference;
+			LOGGER.debug("started conference with {}", current);
+		}
+		IaxCall call = this.client.call(number, AudioCodecs.getFormats(Persistence.getLowCpuCodecs()));
+		trackCall(call, CallRecord.Direction.OUTGOING, number, StitzClient.getDirectory().getContactName(number));
+		call.addListener(this.listener);
+		this.conference.add(call);
+		call.start();
+		return true;
+	}
+	
+	public boolean isInConference() {
+		return this.conference != null;
+	}
+	
+	/**
+	 * @return whether the call was one of several in the conference, which goes on without it
+	 */
+	private synchronized boolean leaveConference(IaxCall call) {
+		ConferenceBridge conference = this.conference;
+		if (conference == null || !conference.remove(call)) return false;
+		if (conference.isEmpty()) return false; // last one, ends like any other call
+		call.removeListener(this.listener);
+		if (call == this.call) { // the remaining participants stay, one of them takes the place of the hung up call
+			stopRecording();
+			this.call = conference.getCalls().get(0);
+		}
+		LOGGER.debug("{} left the conference", call);
+		return true;
+	}
+	
+	private synchronized void endConference() {
+		ConferenceBridge conference = this.conference;
+		if (conference == null) return;
+		this.conference = null;
+		conference.close();
+		StitzClient.getAudioHandler().endConference();
+		LOGGER.debug("conference ended, {}", conference.getStats());
+	}
+	
+	/**
+	 * Plays an announcement into the current call in place of the mic, the mic takes over again once it ended.
+	 * @param file raw GSM (.gsm) or any audio file readable by java sound
+	 * @param loop whether to repeat the file until stopped
+	 * @return whether playback started
+	 */
+	public boolean play(Path file, boolean loop) {
+		IaxCall call = this.call;
+		if (call == null || !call.isAudioActive()) {
+			LOGGER.warn("cannot play {}, no call in progress", file);
+			return false;
+		}
+		AudioCodec codec = AudioCodecs.get(call.getSelectedCodec());
+		if (codec == null) {
+			LOGGER.warn("cannot play {}, selected codec {} is not supported", file, call.getSelectedCodec());
+			return false;
+		}
+		try {
+			call.play(MediaFile.open(file, codec).newSource(loop));
+			return true;
+		} catch (Exception e) {
+			LOGGER.warn("Exception playing " + file, e);
+			return false;
+		}
+	}
+	
+	public void stopPlaying() {
+		IaxCall call = this.call;
+		if (call != null)
+			call.stopMedia();
+	}
+	
+	/**
+	 * Records both directions of the current call to the {@link Persistence#getRecordingDirectory() recording directory}.
+	 * @param peer name of the other side, part of the file name
+	 * @return whether recording started
+	 */
+	public synchronized boolean startRecording(String peer) {
+		IaxCall call = this.call;
+		if (call == null || this.recorder != null) return false;
+		String name = "%s-%s%s".formatted(LocalDateTime.now().format(RECORDING_NAME_FORMAT), String.valueOf(peer).replaceAll("[^\\w+-]", "_"), Recording.EXTENSION);
+		try {
+			this.recorder = CallRecorder.start(call, Persistence.getRecordingDirectory().resolve(name));
+			return true;
+		} catch (IOException e) {
+			LOGGER.error("Exception starting to record call {}", call, e);
+			return false;
+		}
+	}
+	
+	public synchronized void stopRecording() {
+		if (this.recorder == null) return;
+		this.recorder.close();
+		this.recorder = null;
+	}
+	
+	public synchronized boolean isRecording() {
+		return this.recorder != null;
+	}
+	
 	@Override
 	public void close() {
 		logout();
 		StitzClient.callUI("setInCall", false);
+		clearCallState();
 		StitzClient.postUIMessage("require-login");
 	}
 	
 	private void pushMic(ExecutorService service) {
-		short[] sbuf = new short[1600];
-		short[] sbufGSM = new short[160];
 		byte[] buf = new byte[3200];
-		byte[] enc = new byte[33];
-		GSMEncoder encoder = new GSMEncoder();
+		BlockingQueue<short[]> free = new ArrayBlockingQueue<>(MIC_BLOCK_BUFFERS); // blocks are handed to the codec pool, recycle them once encoded
+		for (int i = 0; i < MIC_BLOCK_BUFFERS; i++)
+			free.add(new short[buf.length / 2]);
+		short[] skipped = new short[buf.length / 2]; // read into while all blocks are queued, the mic has to be drained regardless
+		long dropped = 0;
+		MicEncoder encoder = new MicEncoder(CodecExecutor.shared().newLane("mic"));
 		for (;;) {
-			if (this.shutdownExecutors.containsKey(service)) return; // task got cancelled
-			int read = StitzClient.getAudioHandler().readMic(buf, sbuf);
+			if (this.shutdownExecutors.containsKey(service)) break; // task got cancelled
+			short[] block = free.poll();
+			boolean drop = block == null; // the codec pool is behind, don't let the backlog and with it our latency grow
+			if (drop) block = skipped;
+			int read = StitzClient.getAudioHandler().readMic(buf, block);
+			boolean muted = StitzClient.getAudioHandler().getMute();
+			IaxCall call = this.call;
+			ConferenceBridge conference = this.conference;
+			if (call != null && call.isAudioActive()) { // only pushed to the ui if changed
+				UIState state = StitzClient.getUIState();
+				state.set(UIState.MIC_LEVEL, micLevel(block, muted));
+				state.set(UIState.ROUND_TRIP, call.getRoundTripMillis());
+				state.set(UIState.LOSS, call.getRemoteLossPercent());
+			}
 			
-			if (this.call != null && this.call.isAudioActive()) // discard data if call isn't ready yet
-				for (int i = 0; i < 10; i++) {
-					System.arraycopy(sbuf, i * sbufGSM.length, sbufGSM, 0, sbufGSM.length);
-					encoder.encode(sbufGSM, enc);
-					this.call.sendAudioData(enc);
-				}
+			short[] submitted = block;
+			if (drop) {
+				if (dropped++ == 0)
+					LOGGER.warn("codec pool is behind, dropping mic blocks ({})", CodecExecutor.shared().getStats());
+			} else encoder.lane.execute(() -> {
+				try { encoder.process(submitted, call, conference, muted); }
+				finally { free.offer(submitted); }
+			});
 			
 			if (read < buf.length) {
 				LOGGER.debug("reached end of mic input stream, terminating mic push thread (read {} of {} bytes)", read, buf.length);
-				return; // end of stream reached
+				break; // end of stream reached
+			}
+		}
+		encoder.lane.close();
+		LOGGER.debug("mic push thread done, sent {} {} voice frames and {} media frames in {} packets ({} frames per packet{}) and suppressed {} voice frames",
+				encoder.sentBlocks, encoder.codec, encoder.mediaBlocks, encoder.sentPackets,
+				encoder.packetizer != null ? encoder.packetizer.getFramesPerPacket() : 0,
+				encoder.packetizer != null && encoder.packetizer.isAdaptive() ? ", adaptive" : "",
+				encoder.suppressedBlocks);
+		LOGGER.debug("encoding: {}, {} mic blocks dropped, codec pool: {}", encoder.lane.getStats(), dropped, CodecExecutor.shared().getStats());
+		LOGGER.debug("input processing: {}", StitzClient.getAudioHandler().getInputChain().getStats());
+		LOGGER.debug("drift compensation: input {} ppm, output {} ppm", (int) StitzClient.getAudioHandler().getInputDriftPpm(), (int) StitzClient.getAudioHandler().getOutputDriftPpm());
+		LOGGER.debug("measured output latency {} ms", StitzClient.getAudioHandler().getOutputLatencyMillis());
+		StitzClient.getAudioHandler().releaseMic();
+	}
+	
+	/**
+	 * Lets the mic opened for a ringing call close again if no call ended up using it.
+	 */
+	private void releaseUnusedMic() {
+		if (!this.inCall)
+			StitzClient.getAudioHandler().releaseMic();
+	}
+	
+	private void trackCall(IaxCall call, CallRecord.Direction direction, String number, @Nullable String name) {
+		this.callDetails.put(call, new CallDetail(direction, number, name));
+	}
+	
+	/**
+	 * Adds the call to the history, if not done yet.
+	 */
+	private void finishCall(IaxCall call) {
+		CallDetail detail = this.callDetails.remove(call);
+		if (detail != null)
+			StitzClient.getDirectory().record(detail.toRecord(null));
+	}
+	
+	private static void showCallStart(IaxCall call) { // the page counts the call duration itself
+		StitzClient.getUIState().set(UIState.CALL_START, System.currentTimeMillis() - call.getTimestampRelative());
+	}
+	
+	private static void clearCallState() {
+		UIState state = StitzClient.getUIState();
+		state.set(UIState.CALL_START, null);
+		state.set(UIState.ROUND_TRIP, null);
+		state.set(UIState.LOSS, null);
+		state.set(UIState.MIC_LEVEL, null);
+	}
+	
+	/**
+	 * @return peak level of the block in steps of 10 from 0 (-60 dBFS or below) to 100 (full scale), for the ui meter
+	 */
+	private static int micLevel(short[] block, boolean muted) {
+		if (muted) return 0;
+		int peak = 0;
+		for (short sample : block)
+			peak = Math.max(peak, Math.abs(sample));
+		if (peak == 0) return 0;
+		double db = 20 * Math.log10(peak / 32768d);
+		return (int) Math.round(Math.max(0, Math.min(1, (db + 60) / 60)) * 10) * 10;
+	}
+	
+	private static int framesPerPacket() {
+		int frames = Persistence.getFramesPerPacket();
+		if (frames >= VoicePacketizer.ADAPTIVE && frames <= VoicePacketizer.MAX_FRAMES)
+			return frames;
+		LOGGER.warn("ignoring invalid frames per packet setting {}, adapting to link conditions instead", frames);
+		return VoicePacketizer.ADAPTIVE;
+	}
+	
+	
+	/**
+	 * Voice activity detection, encoding and packetization of mic blocks, only ever run on its codec lane.
+	 * Media playing into the call replaces the mic frame by frame, so it is paced by the mic as well.
+	 */
+	private static class MicEncoder {
+		private final CodecExecutor.Lane lane;
+		private final VoiceActivityDetector vad = new VoiceActivityDetector();
+		private final boolean dtx = Persistence.getDiscontinuousTransmission();
+		private final int framesPerPacket = framesPerPacket();
+		private AudioCodec codec;
+		private VoicePacketizer packetizer;
+		private boolean silent;
+		private int silentBlocks, noiseLevel = -1, mediaSlots;
+		private volatile long sentBlocks, suppressedBlocks, sentPackets, mediaBlocks;
+		
+		MicEncoder(CodecExecutor.Lane lane) {
+			this.lane = lane;
+		}
+		
+		void process(short[] block, IaxCall call, ConferenceBridge conference, boolean muted) {
+			if (conference != null) { // mixed and encoded per participant by the bridge
+				byte[] rest = this.packetizer != null && call != null ? this.packetizer.drain() : null;
+				if (rest != null)
+					call.sendAudioData(rest);
+				conference.process(block, muted);
+				return;
+			}
+			if (call == null || !call.isAudioActive()) { // discard data if call isn't ready yet
+				if (this.packetizer != null) this.packetizer.reset();
+				return;
 			}
+			
+			if (this.codec == null || this.codec.getFormat() != call.getSelectedCodec()) { // negotiated codec is only known once the call is up
+				byte[] rest = this.packetizer != null ? this.packetizer.drain() : null; // never mix codecs within a packet
+				if (rest != null)
+					call.sendAudioData(rest);
+				this.codec = AudioCodecs.get(call.getSelectedCodec());
+				if (this.codec == null) {
+					LOGGER.error("selected codec {} is not supported, not sending any audio", call.getSelectedCodec());
+					this.packetizer = null;
+					return;
+				}
+				LOGGER.debug("encoding audio using {}", this.codec);
+				this.packetizer = new VoicePacketizer(this.codec.getFrameBytes(), this.framesPerPacket);
+			}
+			
+			AudioCodec.Encoder encoder = this.lane.encoder(this.codec);
+			int frameSamples = this.codec.getFrameSamples();
+			for (int off = 0; off + frameSamples <= block.length; off += frameSamples) {
+				if (call.isPlayingMedia() && playMedia(call))
+					continue;
+				
+				boolean voice = !muted && this.vad.process(block, off, frameSamples); // keep the last measured noise level while muted
+				
+				if (!this.dtx || voice) {
+					this.packetizer.adapt(call.getRoundTripMillis(), call.getRemoteLossPercent());
+					encoder.encode(block, off, this.packetizer.buffer(), this.packetizer.offset());
+					if (this.packetizer.commit()) {
+						call.sendAudioData(this.packetizer.drain());
+						this.sentPackets++;
+					}
+					this.silent = false;
+					this.sentBlocks++;
+					continue;
+				}
+				
+				byte[] rest = this.packetizer.drain(); // don't hold back the end of a talkspurt
+				if (rest != null) {
+					call.sendAudioData(rest);
+					this.sentPackets++;
+				}
+				this.suppressedBlocks++;
+				int level = this.vad.getNoiseLevel();
+				if (!this.silent || ++this.silentBlocks >= COMFORT_NOISE_INTERVAL_BLOCKS || Math.abs(level - this.noiseLevel) >= 3) {
+					call.sendComfortNoise(level);
+					this.noiseLevel = level;
+					this.silentBlocks = 0;
+				}
+				this.silent = true;
+			}
+		}
+		
+		/**
+		 * @return whether this frame slot was taken by media, false once it ended
+		 */
+		private boolean playMedia(IaxCall call) {
+			byte[] rest = this.packetizer.drain();
+			if (rest != null) {
+				call.sendAudioData(rest);
+				this.sentPackets++;
+			}
+			this.packetizer.adapt(call.getRoundTripMillis(), call.getRemoteLossPercent());
+			if (++this.mediaSlots < this.packetizer.getFramesPerPacket())
+				return true; // sent in packets of the same size as voice, once enough slots passed
+			int frames = this.mediaSlots;
+			this.mediaSlots = 0;
+			if (!call.sendMedia(frames))
+				return false;
+			this.mediaBlocks += frames;
+			this.sentPackets++;
+			this.silent = false;
+			return true;
 		}
 	}
 	
@@ -274,13 +628,8 @@ public class StitzCallHandler implements AutoCloseable {
 			try { client.close(); }
 			catch (IOException e) { LOGGER.error("Exception closing iax client", e); }
 			StitzCallHandler.this.client = null;
-			try {
-				if (!login(Persistence.getUsername(), Persistence.getPassword(), false))
-					StitzClient.postUIMessage("require-login");
-			} catch (IOException e) {
-				LOGGER.error("Exception logging in using persisted credentials", e);
+			if (!loginPersisted())
 				StitzClient.postUIMessage("require-login");
-			}
 		}
 		
 		@Override
@@ -291,7 +640,9 @@ public class StitzCallHandler implements AutoCloseable {
 		@Override
 		public void onCallIncoming(IaxClient client, IaxCall.Pending call) {
 			StitzCallHandler.this.pending = call;
-			StitzClient.callUI("callIncoming", call.getCallingName(), call.getUsername());
+			trackCall(call, CallRecord.Direction.INCOMING, call.getUsername(), call.getCallingName());
+			StitzClient.getAudioHandler().prepare();
+			StitzClient.callUI("callIncoming", StitzClient.getDirectory().getDisplayName(call.getUsername(), call.getCallingName()), call.getUsername());
 			StitzClient.getAudioHandler().loopSound("call_incoming");
 			
 			synchronized (StitzCallHandler.this.callIncomingLock) {
@@ -300,35 +651,80 @@ public class StitzCallHandler implements AutoCloseable {
 				catch (InterruptedException e) { }
 			}
 			
+			if (StitzCallHandler.this.callDetails.containsKey(call)) // neither accepted nor declined
+				releaseUnusedMic();
+			finishCall(call); // missed if neither accepted nor declined
 			StitzClient.getAudioHandler().cancelLoopSound("call_incoming");
 			StitzClient.postUIMessage("cancel-incoming-call");
 		}
 		
 		@Override
 		public boolean onCheckCodecSupported(IaxClient client, MediaFrame.Format codec) {
-			return codec == MediaFrame.Format.GSM_FULL_RATE;
+			return AudioCodecs.isSupported(codec);
 		}
 		
 		@Override
 		public MediaFrame.Format onQueryPreferredCodec(IaxClient client, Set<MediaFrame.Format> codecs) {
-			return codecs.contains(MediaFrame.Format.GSM_FULL_RATE)
-					? MediaFrame.Format.GSM_FULL_RATE
-					: null;
+			return AudioCodecs.preferred(codecs, Persistence.getLowCpuCodecs());
+		}
+	}
+	
+	/**
+	 * What is known about a call until it ended and gets added to the history.
+	 */
+	private static class CallDetail {
+		private final long start = System.currentTimeMillis();
+		private final CallRecord.Direction direction;
+		private final String number;
+		private final @Nullable String name;
+		private volatile long answered;
+		
+		private CallDetail(CallRecord.Direction direction, String number, @Nullable String name) {
+			this.direction = direction;
+			this.number = number;
+			this.name = name;
+		}
+		
+		private void answered() {
+			if (this.answered == 0)
+				this.answered = System.currentTimeMillis();
+		}
+		
+		/**
+		 * @param outcome null to derive it from whether the call was answered
+		 */
+		private CallRecord toRecord(@Nullable CallRecord.Outcome outcome) {
+			long answered = this.answered;
+			if (outcome == null)
+				outcome = answered == 0 ? CallRecord.Outcome.UNANSWERED : CallRecord.Outcome.ANSWERED;
+			int duration = answered == 0 ? 0 : (int) (System.currentTimeMillis() - answered);
+			return new CallRecord(this.start, duration, this.direction, outcome, this.number, this.name);
 		}
 	}
 	
 	private class CallListener implements IaxCallListener {
-		@Override public void onCongestion(IaxCall call) { hangup(); }
-		@Override public void onBusy(IaxCall call) { hangup(); }
+		@Override public void onCongestion(IaxCall call) { finishCall(call); if (!leaveConference(call)) hangup(); }
+		@Override public void onBusy(IaxCall call) { finishCall(call); if (!leaveConference(call)) hangup(); }
 		
 		@Override
 		public void onAnswered(IaxCall call) {
-			StitzClient.callUI("setInCall", true, call.getCalledNumber() /* TODO display name if in contacts */, call.getCalledNumber());
+			CallDetail detail = StitzCallHandler.this.callDetails.get(call);
+			if (detail != null)
+				detail.answered();
+			if (call != StitzCallHandler.this.call) return; // joined the conference
+			StitzClient.callUI("setInCall", true, StitzClient.getDirectory().getDisplayName(call.getCalledNumber(), null), call.getCalledNumber());
+			showCallStart(call);
 			StitzClient.getAudioHandler().cancelLoopSound("call_outgoing");
 		}
 		
 		@Override
 		public void onRemoteHangup(IaxCall call) {
+			finishCall(call);
+			if (leaveConference(call)) {
+				StitzClient.getAudioHandler().playSound("hangup");
+				return;
+			}
+			stopRecording();
 			StitzCallHandler.this.call.removeListener(StitzCallHandler.this.listener);
 			StitzCallHandler.this.call = null;
 			StitzCallHandler.this.inCall = false;
@@ -339,7 +735,9 @@ public class StitzCallHandler implements AutoCloseable {
 				catch (InterruptedException e) { }
 			}
 			StitzCallHandler.this.voicePushExecutor = null;
+			endConference();
 			StitzClient.callUI("setInCall", false);
+			clearCallState();
 			StitzClient.getAudioHandler().cancelLoopSound("call_outgoing");
 			StitzClient.getAudioHandler().playSound("hangup");
 		}
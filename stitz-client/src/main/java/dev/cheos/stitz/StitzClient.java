@@ -23,10 +23,14 @@
 
 package dev.cheos.stitz;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import org.cef.CefApp;
 import org.cef.CefApp.CefAppState;
@@ -37,6 +41,8 @@ import org.cef.browser.CefMessageRouter.CefMessageRouterConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dev.cheos.stitz.audio.SampleSource;
+import dev.cheos.stitz.history.Directory;
 import dev.cheos.stitz.logging.LoggerImpl;
 import me.friwi.jcefmaven.CefAppBuilder;
 import me.friwi.jcefmaven.MavenCefAppHandlerAdapter;
@@ -48,74 +54,168 @@ public class StitzClient { // TODO fix: lock ui interaction until login panel ap
 	private static final List<Runnable> SHUTDOWN_HOOKS = new LinkedList<>();
 	private static final Object CEF_TERMINATION_LOCK = new Object();
 	private static StitzCallHandler callHandler;
-	private static StitzAudioHandler audioHandler;
+	private static final PendingUI UI = new PendingUI();
+	private static final UIState UI_STATE = new UIState();
+	private static final Directory DIRECTORY = new Directory(DATA_DIR.resolve("history")); // opened on first use
+	private static CompletableFuture<StitzAudioHandler> audioHandler;
 	private static CefApp cefApp;
 	private static CefClient client;
-	private static UIMessageRouter router;
-	private static CefBrowser browser;
-	public static boolean debug, verbose;
+	public static boolean debug, verbose, headless;
+	private static int controlPort = -1;
 	
 	public static void main(String[] args) {
+		String controlPortArg = null;
 		for (String arg : args)
 			switch (arg) {
 				case "--debug" -> debug = true;
 				case "--verbose", "-v" -> verbose = true;
-				default -> { }
+				case "--headless" -> headless = true;
+				default -> {
+					if (arg.startsWith("--control-port="))
+						controlPortArg = arg.substring("--control-port=".length());
+				}
 			}
 		
 		try {
 			if (Files.notExists(LOG_DIR))
 				Files.createDirectories(LOG_DIR);
 			LoggerImpl.logTo(LOG_DIR, debug);
-			LoggerImpl.addGlobalPrintStream(System.out, debug);
-			Persistence.init();
-			
-			CefAppBuilder builder = new CefAppBuilder();
-			builder.getCefSettings().windowless_rendering_enabled = false;
-			builder.setAppHandler(new MavenCefAppHandlerAdapter() {
-				@Override public boolean onBeforeTerminate() { return false; }
-				@Override public void stateHasChanged(CefAppState state) {
-					if (state == CefAppState.TERMINATED)
-						synchronized (CEF_TERMINATION_LOCK) {
-							CEF_TERMINATION_LOCK.notifyAll();
-						}
-				}
-			});
-			builder.setProgressHandler((state, percentage) ->
-				LOGGER.info("{} > {}", state, percentage == -1 ? "in progress" : percentage)
-			);
+			LoggerImpl.addGlobalPrintStream(headless ? System.err : System.out, debug); // stdout may carry the control protocol
+			if (controlPortArg != null && (controlPort = parsePort(controlPortArg)) < 0) {
+				LOGGER.error("invalid --control-port '{}', expected a port from 1 to 65535", controlPortArg);
+				exit(2);
+				return;
+			}
+			Persistence.init(); // everything else depends on the configuration
 			
-			cefApp = builder.build();
-			addShutdownHook(cefApp::dispose);
-			client = cefApp.createClient();
+			Startup startup = new Startup();
+			startup.async("dns", StitzClient::resolveServer);
+			CompletableFuture<StitzAudioHandler> audio = startup.async("audio", StitzAudioHandler::new);
+			CompletableFuture<Map<String, SampleSource>> sounds = startup.async("sounds", StitzAudioHandler::loadSounds);
+			startup.async("sound-setup", () -> { audio.join().setSounds(sounds.join()); return null; }, "audio", "sounds");
+			audioHandler = audio;
+			callHandler = new StitzCallHandler();
+			CompletableFuture<Boolean> registration = startup.async("registration", callHandler::loginPersisted, "dns");
 			
-			CefMessageRouter cefRouter = CefMessageRouter.create(new CefMessageRouterConfig("javaCall", "cancelJavaCall"));
-			cefRouter.addHandler(router = new UIMessageRouter(debug), true);
-			client.addMessageRouter(cefRouter);
+			String ready;
+			if (headless) {
+				ready = "control";
+				startup.sync(ready, () -> { startHeadless(); return null; });
+			} else {
+				ready = "window";
+				startup.sync("cef", () -> { initCef(); return null; });
+				startup.sync(ready, () -> { initWindow(); return null; }, "cef");
+				addShutdownHook(callHandler::close);
+				addShutdownHook(StitzClient::closeAudio);
+				addShutdownHook(StitzClient::awaitCefTermination); // await termination last, all other tasks should complete first so cef can shutdown in the meantime
+			}
+			startup.async("login-prompt", () -> {
+				if (!registration.join())
+					postUIMessage("require-login");
+				return null;
+			}, "registration", ready);
 			
-			browser = client.createBrowser(Path.of("").resolve("static").resolve("index.html").toAbsolutePath().toString(), false, false);
-			StitzUI.init(browser.getUIComponent());
-			audioHandler = new StitzAudioHandler();
-			callHandler = new StitzCallHandler();
-			addShutdownHook(callHandler::close);
-			addShutdownHook(audioHandler::close);
-			addShutdownHook(StitzClient::awaitCefTermination); // await termination last, all other tasks should complete first so cef can shutdown in the meantime
+			startup.done().exceptionally(e -> {
+				LOGGER.error("caught exception during startup", e);
+				exit(-1);
+				return null;
+			});
 		} catch (Exception e) {
 			LOGGER.error("caught exception during startup", e);
 			exit(-1);
 		}
 	}
 	
+	/**
+	 * @return the port, or -1 if it is no valid port number
+	 */
+	private static int parsePort(String port) {
+		try {
+			int value = Integer.parseInt(port.strip());
+			return value > 0 && value <= 0xFFFF ? value : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static void initCef() throws Exception {
+		CefAppBuilder builder = new CefAppBuilder();
+		builder.getCefSettings().windowless_rendering_enabled = false;
+		builder.setAppHandler(new MavenCefAppHandlerAdapter() {
+			@Override public boolean onBeforeTerminate() { return false; }
+			@Override public void stateHasChanged(CefAppState state) {
+				if (state == CefAppState.TERMINATED)
+					synchronized (CEF_TERMINATION_LOCK) {
+						CEF_TERMINATION_LOCK.notifyAll();
+					}
+			}
+		});
+		builder.setProgressHandler((state, percentage) ->
+			LOGGER.info("{} > {}", state, percentage == -1 ? "in progress" : percentage)
+		);
+		
+		cefApp = builder.build();
+		addShutdownHook(cefApp::dispose);
+		client = cefApp.createClient();
+	}
+	
+	private static void initWindow() {
+		UIMessageRouter router = new UIMessageRouter(debug);
+		CefMessageRouter cefRouter = CefMessageRouter.create(new CefMessageRouterConfig("javaCall", "cancelJavaCall"));
+		cefRouter.addHandler(router, true);
+		client.addMessageRouter(cefRouter);
+		
+		CefBrowser browser = client.createBrowser(Path.of("").resolve("static").resolve("index.html").toAbsolutePath().toString(), false, false);
+		router.setBrowser(browser);
+		UI.attach(router);
+		StitzUI.init(browser.getUIComponent());
+	}
+	
+	/**
+	 * Runs telephony and audio only, controlled through {@link HeadlessControl} instead of the browser UI.
+	 */
+	private static void startHeadless() throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		HeadlessControl control = new HeadlessControl(new CommandDispatcher(debug), controlPort);
+		UI.attach(control);
+		addShutdownHook(callHandler::close);
+		addShutdownHook(StitzClient::closeAudio);
+		addShutdownHook(control::close);
+		control.start();
+	}
+	
+	private static InetAddress resolveServer() { // cached by the time registration starts, which reports failures itself
+		try {
+			return InetAddress.getByName(StitzCallHandler.SERVER_HOST);
+		} catch (UnknownHostException e) {
+			LOGGER.warn("Could not resolve {}", StitzCallHandler.SERVER_HOST);
+			return null;
+		}
+	}
+	
+	private static void closeAudio() {
+		if (audioHandler.isDone() && !audioHandler.isCompletedExceptionally())
+			audioHandler.join().close();
+	}
+	
 	public static void postUIMessage(String message) {
-		router.post(browser, message);
+		UI.post(message);
 	}
 	
 	public static void callUI(String function, Object... params) {
-		router.call(browser, function, params);
+		UI.call(function, params);
 	}
 	
 	public static void callUIRaw(String js) {
-		router.callRaw(browser, js);
+		UI.callRaw(js);
+	}
+	
+	public static UIState getUIState() {
+		return UI_STATE;
+	}
+	
+	public static Directory getDirectory() {
+		return DIRECTORY;
 	}
 	
 	public static void showError(String message) {
@@ -126,8 +226,11 @@ public class StitzClient { // TODO fix: lock ui interaction until login panel ap
 		return callHandler;
 	}
 	
+	/**
+	 * Waits for the audio handler to start if it didn't yet.
+	 */
 	public static StitzAudioHandler getAudioHandler() {
-		return audioHandler;
+		return audioHandler.join();
 	}
 	
 	public static void addShutdownHook(Runnable callback) {
@@ -152,4 +255,37 @@ public class StitzClient { // TODO fix: lock ui interaction until login panel ap
 			}
 		}
 	}
+	
+	
+	/**
+	 * Holds back everything reported to the UI until it is up, then passes it on in order.
+	 */
+	private static class PendingUI implements UIBridge {
+		private final List<Consumer<UIBridge>> pending = new ArrayList<>();
+		private volatile UIBridge target;
+		
+		void attach(UIBridge target) {
+			synchronized (this.pending) {
+				this.pending.forEach(action -> action.accept(target));
+				this.pending.clear();
+				this.target = target;
+			}
+		}
+		
+		private void run(Consumer<UIBridge> action) {
+			UIBridge target = this.target;
+			if (target == null)
+				synchronized (this.pending) {
+					if ((target = this.target) == null) {
+						this.pending.add(action);
+						return;
+					}
+				}
+			action.accept(target);
+		}
+		
+		@Override public void post(String message) { run(ui -> ui.post(message)); }
+		@Override public void call(String function, Object... params) { run(ui -> ui.call(function, params)); }
+		@Override public void callRaw(String js) { run(ui -> ui.callRaw(js)); }
+	}
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where the client reports to, the browser UI or the headless control.
+ */
+public interface UIBridge {
+	/**
+	 * Posts a message to the UI's message handler.
+	 */
+	void post(String message);
+	
+	/**
+	 * Calls a UI function.
+	 */
+	void call(String function, Object... params);
+	
+	/**
+	 * Runs javascript in the browser UI, ignored without one.
+	 */
+	void callRaw(String js);
+	
+	/**
+	 * @return the params as comma separated javascript literals
+	 */
+	static String formatParams(Object... params) {
+		StringBuilder sb = new StringBuilder();
+		String sep = "";
+		for (Object param : params) {
+			sb.append(sep);
+			sep = ", ";
+			if (param instanceof String str)
+				sb.append("'").append(str.replaceAll("\\\\", "\\\\\\\\").replaceAll("'", "\\\\'")).append("'");
+			else if (param != null && param.getClass().isArray()) {
+				String str = Arrays.deepToString(new Object[] { param });
+				sb.append(str, 1, str.length() - 1);
+			} else if (param instanceof Collection<?> coll)
+				sb.append("[").append(formatParams(coll.toArray())).append("]");
+			else if (param instanceof Map<?, ?> map) {
+				sb.append("{");
+				String entrySep = "";
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					sb.append(entrySep).append(formatParams(String.valueOf(entry.getKey()))).append(": ").append(formatParams(entry.getValue()));
+					entrySep = ", ";
+				}
+				sb.append("}");
+			} else sb.append(param);
+		}
+		return sb.toString();
+	}
+}
@@ -23,11 +23,9 @@
 
 package dev.cheos.stitz;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.function.Function;
-
-import javax.sound.sampled.Mixer;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.cef.browser.CefBrowser;
 import org.cef.browser.CefFrame;
@@ -36,201 +34,129 @@ import org.cef.handler.CefMessageRouterHandlerAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class UIMessageRouter extends CefMessageRouterHandlerAdapter {
+import com.google.gson.*;
+
+/**
+ * Connects the browser UI to the client. Queries are json objects {@code {"command": ..., "args": [...]}} run off the
+ * CEF thread, one at a time in the order they came in, and answered once done. Commands that may block for a while
+ * (e.g. login or switching audio devices) run in order on their own thread, so they don't hold up e.g. mute or hangup.
+ * Anything reported to the UI is pushed to the persistent {@code subscribe} query as json {@code {"message": ...}}
+ * or {@code {"function": ..., "args": [...]}}.
+ */
+public class UIMessageRouter extends CefMessageRouterHandlerAdapter implements UIBridge {
 	private static final Logger LOGGER = LoggerFactory.getLogger(UIMessageRouter.class);
-	private final boolean debug;
+	private static final Gson GSON = new GsonBuilder().serializeNulls().create(); // null arguments are passed on as such
+	private static final int MAX_PENDING_EVENTS = 100;
+	private final CommandDispatcher dispatcher;
+	private final ExecutorService executor = newExecutor("ui-commands"), blockingExecutor = newExecutor("ui-commands-blocking");
+	private final Map<Long, CefQueryCallback> subscriptions = new LinkedHashMap<>();
+	private final Deque<String> pendingEvents = new ArrayDeque<>(); // until the page subscribed
+	private CefBrowser browser;
 	
 	public UIMessageRouter(boolean debug) {
-		this.debug = debug;
+		this.dispatcher = new CommandDispatcher(debug);
+	}
+	
+	public void setBrowser(CefBrowser browser) {
+		this.browser = browser;
 	}
 	
-	/*
-	 * failure codes:
-	 *  0 - not in debug mode
-	 *  1 - arg expectation failed
-	 *  2 - invalid credentials
-	 *  3 - internal error
-	 */
 	@Override
 	public boolean onQuery(CefBrowser browser, CefFrame frame, long queryId, String request, boolean persistent, CefQueryCallback callback) {
-		String[] args = request.split(" ");
-		String command = args[0];
-		args = args.length == 1 ? new String[0] : Arrays.copyOfRange(args, 1, args.length);
-		
-		switch (command) {
-			/*
-			 * debug
-			 */
-			case "debug" -> {
-				if (!this.debug)
-					callback.failure(0, "not in debug mode");
-				else callback.success("");
-				return true;
-			}
-			case "debuglog" -> {
-				if (this.debug && args.length > 0) {
-					if (args.length == 1)
-						LOGGER.debug(args[0]);
-					else LOGGER.debug(args[0], (Object[]) Arrays.copyOfRange(args, 1, args.length));
-				}
-			}
-			/*
-			 * login
-			 */
-			case "login" -> {
-				if (args.length < 2) {
-					callback.failure(1, "login requires 2 argument");
-					return true;
-				}
-				boolean persistCredentials = false;
-				if (args.length > 2)
-					persistCredentials = Boolean.parseBoolean(args[2]);
-				try {
-					if (!StitzClient.getCallHandler().login(args[0], args[1], persistCredentials)) {
-						callback.failure(2, "invalid credentials or stitz server is unavailable");
-						return true;
-					}
-				} catch (Exception e) {
-					LOGGER.error("Exception while logging in", e);
-					callback.failure(3, e.getMessage());
-				}
-			}
-			case "logout" -> StitzClient.getCallHandler().logoutUI();
-			case "setDisplayName" -> {
-				if (args.length < 1) {
-					callback.failure(1, "setDisplayName requires 1 argument");
-					return true;
-				}
-				StitzClient.getCallHandler().setDisplayName(args[0]);
+		String command;
+		String[] args;
+		try {
+			JsonObject json = JsonParser.parseString(request).getAsJsonObject();
+			command = json.get("command").getAsString();
+			JsonArray array = json.has("args") ? json.getAsJsonArray("args") : new JsonArray();
+			args = new String[array.size()];
+			for (int i = 0; i < args.length; i++) {
+				JsonElement arg = array.get(i);
+				args[i] = arg.isJsonNull() ? null : arg.isJsonPrimitive() ? arg.getAsString() : arg.toString();
 			}
-			case "getUsername" -> { return success(callback, Persistence.defaulted(Persistence::getUsername, () -> "")); }
-			case "getDisplayName" -> { return success(callback, StitzClient.getCallHandler().getDisplayName()); }
-			/*
-			 * call management
-			 */
-			case "callCall" -> {
-				if (args.length < 1) {
-					callback.failure(1, "callCall requires 1 argument");
-					return true;
-				}
-				StitzClient.getCallHandler().call(args[0]);
-			}
-			case "callHangup" -> StitzClient.getCallHandler().hangup();
-			case "callAccept" -> StitzClient.getCallHandler().accept();
-			case "callDecline" -> StitzClient.getCallHandler().decline();
-			case "callInCall" -> { return success(callback, StitzClient.getCallHandler().isInCall()); }
-			/*
-			 * audio device management
-			 */
-			case "audioSetIn" -> {
-				if (args.length < 1) {
-					callback.failure(1, "audioSetIn requires 1 argument");
-					return true;
-				}
-				StitzClient.getAudioHandler().setIn(Integer.parseInt(args[0]));
-			}
-			case "audioGetIn" -> { return success(callback, StitzClient.getAudioHandler().getIn()); }
-			case "audioListIn" -> { return success(callback, Mixer.Info::getName, StitzClient.getAudioHandler().listIn()); }
-			case "audioSetInVolume" -> {
-				if (args.length < 1) {
-					callback.failure(1, "audioSetInVolume requires 1 argument");
-					return true;
-				}
-				StitzClient.getAudioHandler().setInVolume(Integer.parseInt(args[0]));
-			}
-			case "audioGetInVolume" -> { return success(callback, StitzClient.getAudioHandler().getInVolume()); }
-			case "audioSetOut" -> {
-				if (args.length < 1) {
-					callback.failure(1, "audioSetOut requires 1 argument");
-					return true;
-				}
-				StitzClient.getAudioHandler().setOut(Integer.parseInt(args[0]));
-			}
-			case "audioGetOut" -> { return success(callback, StitzClient.getAudioHandler().getOut()); }
-			case "audioListOut" -> { return success(callback, Mixer.Info::getName, StitzClient.getAudioHandler().listOut()); }
-			case "audioSetOutVolume" -> {
-				if (args.length < 1) {
-					callback.failure(1, "audioSetOutVolume requires 1 argument");
-					return true;
-				}
-				StitzClient.getAudioHandler().setOutVolume(Integer.parseInt(args[0]));
-			}
-			case "audioGetOutVolume" -> { return success(callback, StitzClient.getAudioHandler().getOutVolume()); }
-			case "audioSetClip" -> {
-				if (args.length < 1) {
-					callback.failure(1, "audioSetClip requires 1 argument");
-					return true;
-				}
-				StitzClient.getAudioHandler().setClip(Integer.parseInt(args[0]));
-			}
-			case "audioGetClip" -> { return success(callback, StitzClient.getAudioHandler().getClip()); }
-			case "audioListClip" -> { return success(callback, Mixer.Info::getName, StitzClient.getAudioHandler().listClip()); }
-			case "audioSetClipVolume" -> {
-				if (args.length < 1) {
-					callback.failure(1, "audioSetClipVolume requires 1 argument");
-					return true;
-				}
-				StitzClient.getAudioHandler().setClipVolume(Integer.parseInt(args[0]));
-			}
-			case "audioGetClipVolume" -> { return success(callback, StitzClient.getAudioHandler().getClipVolume()); }
-			case "audioSetMute" -> StitzClient.getAudioHandler().setMute(args.length > 0 ? Boolean.parseBoolean(args[0]) : !StitzClient.getAudioHandler().getMute(), false);
-			case "audioGetMute" -> { return success(callback, StitzClient.getAudioHandler().getMute()); }
-			case "audioSetDeafen" -> StitzClient.getAudioHandler().setDeafen(args.length > 0 ? Boolean.parseBoolean(args[0]) : !StitzClient.getAudioHandler().getDeafen(), false);
-			case "audioGetDeafen" -> { return success(callback, StitzClient.getAudioHandler().getDeafen()); }
-			case "audioRefreshDevices" -> StitzClient.getAudioHandler().refreshDeviceLists();
-			default -> { return false; } // didn't handle command
+		} catch (RuntimeException e) { // malformed json or missing command
+			callback.failure(1, "malformed request " + request);
+			return true;
+		}
+		
+		if (command.equals("subscribe") && persistent) {
+			subscribe(queryId, callback);
+			return true;
 		}
-		callback.success("");
+		
+		(CommandDispatcher.isBlocking(command) ? this.blockingExecutor : this.executor).execute(() -> {
+			try {
+				if (!this.dispatcher.dispatch(command, args, new CommandDispatcher.Reply() {
+					@Override public void success(String response) { callback.success(response); }
+					@Override public void failure(int code, String message) { callback.failure(code, message); }
+				}))
+					callback.failure(1, "unknown command " + command);
+			} catch (Exception e) {
+				LOGGER.error("Exception running command {}", command, e);
+				callback.failure(3, String.valueOf(e.getMessage()));
+			}
+		});
 		return true;
 	}
 	
-	public void post(CefBrowser browser, String message) {
-		callRaw(browser, "handle('%s');".formatted(message.replaceAll("\\\\", "\\\\\\\\").replaceAll("'", "\\\\'")));
+	private static ExecutorService newExecutor(String name) {
+		return Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 	
-	public void call(CefBrowser browser, String function, Object... params) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(function);
-		sb.append('(');
-		String sep = "";
-		for (Object param : params) {
-			sb.append(sep);
-			sep = ", ";
-			if (param instanceof String str)
-				sb.append("'").append(str.replaceAll("\\\\", "\\\\\\\\").replaceAll("'", "\\\\'")).append("'");
-			else if (param != null && param.getClass().isArray()) {
-				String str = Arrays.deepToString(new Object[] { param });
-				sb.append(str, 1, str.length() - 1);
-			} else sb.append(param);
+	@Override
+	public void onQueryCanceled(CefBrowser browser, CefFrame frame, long queryId) {
+		synchronized (this.subscriptions) { // e.g. page reloaded
+			this.subscriptions.remove(queryId);
 		}
-		sb.append(");");
-		callRaw(browser, sb.toString());
 	}
 	
-	public void callRaw(CefBrowser browser, String js) {
+	private void subscribe(long queryId, CefQueryCallback callback) {
+		synchronized (this.subscriptions) {
+			this.subscriptions.put(queryId, callback);
+			for (String event; (event = this.pendingEvents.poll()) != null; )
+				callback.success(event);
+		}
+		StitzClient.getUIState().resend(); // the page starts from scratch
+	}
+	
+	private void push(JsonObject event) {
+		String json = GSON.toJson(event);
 		if (StitzClient.verbose)
-			LOGGER.debug("Executing js {}", js);
-		browser.executeJavaScript(js, null, 0);
+			LOGGER.debug("Pushing {}", json);
+		synchronized (this.subscriptions) {
+			if (this.subscriptions.isEmpty()) {
+				if (this.pendingEvents.size() >= MAX_PENDING_EVENTS)
+					this.pendingEvents.poll();
+				this.pendingEvents.add(json);
+				return;
+			}
+			this.subscriptions.values().forEach(subscription -> subscription.success(json));
+		}
 	}
 	
-	private static boolean success(CefQueryCallback callback, Object param) {
-		if (param instanceof Collection<?> coll) return success(callback, coll.toArray());
-		callback.success(String.valueOf(param));
-		return true;
+	@Override
+	public void post(String message) {
+		JsonObject event = new JsonObject();
+		event.addProperty("message", message);
+		push(event);
 	}
 	
-	private static boolean success(CefQueryCallback callback, Object... params) {
-		String param = Arrays.deepToString(params);
-		return success(callback, param.substring(1, param.length() - 1));
+	@Override
+	public void call(String function, Object... params) {
+		JsonObject event = new JsonObject();
+		event.addProperty("function", function);
+		event.add("args", GSON.toJsonTree(params));
+		push(event);
 	}
 	
-	private static <T> boolean success(CefQueryCallback callback, Function<T, String> stringifier, Iterable<T> params) {
-		StringBuilder sb = new StringBuilder();
-		String sep = "";
-		for (T param : params) {
-			sb.append(sep).append(stringifier.apply(param));
-			sep = ", ";
-		}
-		return success(callback, sb.toString());
+	@Override
+	public void callRaw(String js) {
+		if (StitzClient.verbose)
+			LOGGER.debug("Executing js {}", js);
+		this.browser.executeJavaScript(js, null, 0);
 	}
 }
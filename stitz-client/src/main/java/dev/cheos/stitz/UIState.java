@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * State shown by the UI, e.g. call start, mute and meters. Only changed entries are pushed, bursts of changes
+ * are collected into a single {@code updateState(changes, clearedKeys)} call and those are sent at most every {@link #MIN_INTERVAL_MILLIS}.
+ * Cleared entries are listed by key instead of sent as null values, which JSON serialization might drop.
+ */
+public class UIState {
+	public static final String CALL_START = "callStart", MUTED = "muted", DEAFENED = "deafened", ROUND_TRIP = "roundTrip", LOSS = "loss", MIC_LEVEL = "micLevel";
+	private static final long MIN_INTERVAL_MILLIS = 100;
+	private final Map<String, Object> state = new HashMap<>();
+	private final Map<String, Object> changed = new HashMap<>();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ui-state");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private boolean scheduled;
+	private long lastPushNanos;
+	
+	/**
+	 * @param value anything the UI bridge can pass on, null clears the entry
+	 */
+	public synchronized void set(String key, @Nullable Object value) {
+		if (Objects.equals(this.state.get(key), value)) return;
+		if (value == null) this.state.remove(key);
+		else this.state.put(key, value);
+		this.changed.put(key, value);
+		if (this.scheduled) return;
+		this.scheduled = true;
+		long wait = Math.max(0, TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MILLIS) - (System.nanoTime() - this.lastPushNanos));
+		this.scheduler.schedule(this::push, wait, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Sends the whole state again, e.g. once the page got reloaded.
+	 */
+	public synchronized void resend() {
+		this.changed.putAll(this.state);
+		if (this.scheduled) return;
+		this.scheduled = true;
+		this.scheduler.execute(this::push);
+	}
+	
+	private void push() {
+		Map<String, Object> changes = new HashMap<>();
+		List<String> cleared = new ArrayList<>();
+		synchronized (this) {
+			this.changed.forEach((key, value) -> {
+				if (value == null) cleared.add(key);
+				else changes.put(key, value);
+			});
+			this.changed.clear();
+			this.scheduled = false;
+			this.lastPushNanos = System.nanoTime();
+		}
+		if (!changes.isEmpty() || !cleared.isEmpty())
+			StitzClient.callUI("updateState", changes, cleared);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+/**
+ * Generates comfort noise at a level given in -dBov, as signalled by IAX
+ * comfort noise frames. Slightly low-passed white noise, which sounds closer to
+ * typical background noise than plain white noise does.
+ */
+public class ComfortNoiseGenerator {
+	private static final double GAIN_COMPENSATION = Math.sqrt(3); // the one-pole low-pass below keeps 1/3 of the noise power
+	private int seed = 0x2545F491;
+	private int last, level = -1, amplitude;
+	
+	public void fill(short[] buf, int off, int len, int level) {
+		for (int i = off; i < off + len; i++)
+			buf[i] = next(level);
+	}
+	
+	public short next(int level) {
+		if (level != this.level) {
+			double rms = 32768 * Math.pow(10, -level / 20d);
+			this.amplitude = (int) Math.min(Short.MAX_VALUE, rms * Math.sqrt(3) * GAIN_COMPENSATION); // uniform noise: peak = rms * sqrt(3)
+			this.level = level;
+		}
+		int x = this.seed;
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		this.seed = x;
+		int sample = (int) (((long) x * this.amplitude) >> 31);
+		this.last += (sample - this.last) >> 1;
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, this.last));
+	}
+}
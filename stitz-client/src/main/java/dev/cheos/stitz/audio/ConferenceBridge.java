@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.MoreObjects;
+
+import dev.cheos.stitz.audio.codec.AudioCodec;
+import dev.cheos.stitz.audio.codec.AudioCodecs;
+import dev.cheos.stitz.audio.codec.CodecExecutor;
+import dev.cheos.stitz.iax.IaxCall;
+import dev.cheos.stitz.iax.IaxCallListener;
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * Local conference of several calls and the local user. Everyone hears everyone else: all voice
+ * is summed up once per 20 ms frame and each participant gets the sum minus its own voice, encoded
+ * separately, which keeps mixing linear in the amount of participants. Participants without voice
+ * activity are left out of the mix, and nothing is encoded for those nobody else is talking to.
+ * <p>
+ * Received audio is decoded on a codec lane per participant, mixing and encoding runs once per frame
+ * of mic audio via {@link #process(short[], boolean)}, so it is paced by the mic.
+ */
+public class ConferenceBridge implements AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConferenceBridge.class);
+	private static final int FRAME_SAMPLES = 160; // 20 ms @ 8 kHz
+	private static final int COMFORT_NOISE_INTERVAL_FRAMES = 25;
+	private final StreamSource localOut;
+	private final boolean dtx;
+	private final int framesPerPacket;
+	private final List<Participant> participants = new CopyOnWriteArrayList<>();
+	private final VoiceActivityDetector micVad = new VoiceActivityDetector();
+	private final int[] total = new int[FRAME_SAMPLES];
+	private final short[] local = new short[FRAME_SAMPLES];
+	private volatile long frames, mixed, encoded, skipped;
+	
+	/**
+	 * @param localOut output of the mix for the local user, the bridge becomes its only producer
+	 * @param dtx whether to signal comfort noise instead of encoding silence to participants nobody is talking to
+	 * @param framesPerPacket see {@link VoicePacketizer}
+	 */
+	public ConferenceBridge(StreamSource localOut, boolean dtx, int framesPerPacket) {
+		this.localOut = localOut;
+		this.dtx = dtx;
+		this.framesPerPacket = framesPerPacket;
+	}
+	
+	public void add(IaxCall call) {
+		if (find(call) != null) return;
+		Participant participant = new Participant(call);
+		this.participants.add(participant);
+		call.addListener(participant);
+		LOGGER.debug("{} joined the conference, {} participants", call, this.participants.size());
+	}
+	
+	/**
+	 * @return whether the call took part in the conference
+	 */
+	public boolean remove(IaxCall call) {
+		Participant participant = find(call);
+		if (participant == null) return false;
+		this.participants.remove(participant);
+		call.removeListener(participant);
+		participant.lane.close();
+		LOGGER.debug("{} left the conference, {} participants", call, this.participants.size());
+		return true;
+	}
+	
+	private Participant find(IaxCall call) {
+		for (Participant participant : this.participants)
+			if (participant.call == call) return participant;
+		return null;
+	}
+	
+	public List<IaxCall> getCalls() {
+		return this.participants.stream().map(p -> p.call).toList();
+	}
+	
+	public boolean isEmpty() {
+		return this.participants.isEmpty();
+	}
+	
+	/**
+	 * Mixes and sends one block of mic audio worth of frames, only to be called from a single thread.
+	 */
+	public void process(short[] mic, boolean muted) {
+		for (int off = 0; off + FRAME_SAMPLES <= mic.length; off += FRAME_SAMPLES)
+			mixFrame(mic, off, muted);
+	}
+	
+	private void mixFrame(short[] mic, int off, boolean muted) {
+		int[] total = this.total;
+		Arrays.fill(total, 0);
+		int active = 0;
+		boolean micActive = !muted && this.micVad.process(mic, off, FRAME_SAMPLES);
+		if (micActive) {
+			for (int i = 0; i < FRAME_SAMPLES; i++)
+				total[i] += mic[off + i];
+			active++;
+		}
+		for (Participant participant : this.participants) {
+			participant.active = participant.receive();
+			if (!participant.active) continue;
+			short[] frame = participant.in;
+			for (int i = 0; i < FRAME_SAMPLES; i++)
+				total[i] += frame[i];
+			active++;
+		}
+		
+		for (Participant participant : this.participants) {
+			if (!participant.call.isAudioActive()) continue;
+			if (active - (participant.active ? 1 : 0) == 0 && this.dtx) { // nobody to hear, skip encoding
+				participant.sendSilence(this.micVad.getNoiseLevel());
+				this.skipped++;
+				continue;
+			}
+			short[] out = participant.out, self = participant.active ? participant.in : null;
+			for (int i = 0; i < FRAME_SAMPLES; i++)
+				out[i] = clamp(self == null ? total[i] : total[i] - self[i]);
+			participant.send(out);
+			this.encoded++;
+		}
+		
+		if (active - (micActive ? 1 : 0) > 0) {
+			for (int i = 0; i < FRAME_SAMPLES; i++)
+				this.local[i] = clamp(micActive ? total[i] - mic[off + i] : total[i]);
+			this.localOut.write(this.local, 0, FRAME_SAMPLES);
+		} else {
+			Arrays.fill(this.local, (short) 0);
+			this.localOut.write(this.local, 0, FRAME_SAMPLES);
+		}
+		this.frames++;
+		this.mixed += active;
+	}
+	
+	private static short clamp(int sample) {
+		return (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample);
+	}
+	
+	public String getStats() {
+		return "%d frames, %.2f active participants per frame, %d frames encoded, %d skipped".formatted(
+				this.frames, this.frames == 0 ? 0 : (double) this.mixed / this.frames, this.encoded, this.skipped);
+	}
+	
+	/**
+	 * Removes all participants, without hanging up their calls.
+	 */
+	@Override
+	public void close() {
+		for (Participant participant : this.participants)
+			remove(participant.call);
+		LOGGER.debug("conference closed, mixed {}", getStats());
+	}
+	
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this)
+				.add("participants", this.participants.size())
+				.add("dtx", this.dtx)
+				.add("framesPerPacket", this.framesPerPacket)
+				.toString();
+	}
+	
+	
+	/**
+	 * A call taking part in the conference. Decodes on its own lane into a jitter buffer,
+	 * the mixing thread takes a frame from it and encodes the mix sent back.
+	 */
+	private class Participant implements IaxCallListener.AudioListener {
+		private static final int BUFFER = 8192, PREBUFFER = 2 * FRAME_SAMPLES, MAX_BUFFERED = 10 * FRAME_SAMPLES;
+		private final IaxCall call;
+		private final CodecExecutor.Lane lane;
+		private final VoiceActivityDetector vad = new VoiceActivityDetector();
+		private final short[] buffer = new short[BUFFER], decoded = new short[FRAME_SAMPLES], in = new short[FRAME_SAMPLES], out = new short[FRAME_SAMPLES];
+		private volatile long writePos, readPos;
+		private boolean buffering = true, active, silent;
+		private int silentFrames;
+		private AudioCodec decodeCodec, encodeCodec; // decoding on the lane, encoding on the mixing thread
+		private AudioCodec.Encoder encoder;
+		private VoicePacketizer packetizer;
+		
+		Participant(IaxCall call) {
+			this.call = call;
+			this.lane = CodecExecutor.shared().newLane("conference-" + call.getName());
+		}
+		
+		@Override
+		public void onAudioReceived(byte[] data, MediaFrame.Format format) {
+			this.lane.execute(() -> decode(data, format)); // data is never reused by the caller
+		}
+		
+		@Override
+		public void onSetEnabled(boolean enabled) {
+			this.lane.execute(this.lane::resetCodecs);
+		}
+		
+		private void decode(byte[] data, MediaFrame.Format format) {
+			if (this.decodeCodec == null || this.decodeCodec.getFormat() != format) {
+				this.decodeCodec = AudioCodecs.get(format);
+				if (this.decodeCodec == null || this.decodeCodec.getFrameSamples() != FRAME_SAMPLES) {
+					LOGGER.warn("{} sent audio in unsupported format {}, dropping", this.call, format);
+					this.decodeCodec = null;
+					return;
+				}
+			}
+			AudioCodec.Decoder decoder = this.lane.decoder(this.decodeCodec);
+			int frameBytes = this.decodeCodec.getFrameBytes();
+			try {
+				for (int off = 0; off + frameBytes <= data.length; off += frameBytes) {
+					decoder.decode(data, off, this.decoded, 0);
+					write(this.decoded);
+				}
+			} catch (IllegalArgumentException e) {
+				LOGGER.warn("Exception decoding audio of {}", this.call, e);
+			}
+		}
+		
+		private void write(short[] frame) { // single producer, the lane
+			long write = this.writePos;
+			if (write + FRAME_SAMPLES - this.readPos > BUFFER) return; // mixing stalled, drop
+			int start = (int) (write & (BUFFER - 1)); // frames never wrap, BUFFER is a multiple of the frame size
+			System.arraycopy(frame, 0, this.buffer, start, FRAME_SAMPLES);
+			this.writePos = write + FRAME_SAMPLES;
+		}
+		
+		/**
+		 * Takes the next frame from the jitter buffer.
+		 * @return whether the frame contains voice
+		 */
+		boolean receive() {
+			long read = this.readPos, write = this.writePos;
+			if (write - read > MAX_BUFFERED) // fell behind, drop audio to keep latency bounded
+				read = write - PREBUFFER;
+			if (this.buffering && write - read >= PREBUFFER)
+				this.buffering = false;
+			if (this.buffering || write - read < FRAME_SAMPLES) {
+				this.buffering = true;
+				this.readPos = read;
+				return false;
+			}
+			System.arraycopy(this.buffer, (int) (read & (BUFFER - 1)), this.in, 0, FRAME_SAMPLES);
+			this.readPos = read + FRAME_SAMPLES;
+			return this.vad.process(this.in, 0, FRAME_SAMPLES);
+		}
+		
+		void send(short[] frame) {
+			if (!prepareEncoder()) return;
+			this.encoder.encode(frame, 0, this.packetizer.buffer(), this.packetizer.offset());
+			this.packetizer.adapt(this.call.getRoundTripMillis(), this.call.getRemoteLossPercent());
+			if (this.packetizer.commit())
+				this.call.sendAudioData(this.packetizer.drain());
+			this.silent = false;
+		}
+		
+		void sendSilence(int noiseLevel) {
+			if (this.packetizer != null) {
+				byte[] rest = this.packetizer.drain(); // don't hold back the end of a talkspurt
+				if (rest != null) this.call.sendAudioData(rest);
+			}
+			if (!this.silent || ++this.silentFrames >= COMFORT_NOISE_INTERVAL_FRAMES) {
+				this.call.sendComfortNoise(noiseLevel);
+				this.silentFrames = 0;
+			}
+			this.silent = true;
+		}
+		
+		private boolean prepareEncoder() {
+			MediaFrame.Format format = this.call.getSelectedCodec();
+			if (this.encodeCodec != null && this.encodeCodec.getFormat() == format)
+				return true;
+			if (this.packetizer != null) {
+				byte[] rest = this.packetizer.drain(); // never mix codecs within a packet
+				if (rest != null) this.call.sendAudioData(rest);
+			}
+			this.encodeCodec = AudioCodecs.get(format);
+			if (this.encodeCodec == null || this.encodeCodec.getFrameSamples() != FRAME_SAMPLES) {
+				LOGGER.error("selected codec {} of {} is not supported, not sending any audio", format, this.call);
+				this.encodeCodec = null;
+				this.packetizer = null;
+				return false;
+			}
+			this.encoder = this.encodeCodec.newEncoder();
+			this.packetizer = new VoicePacketizer(this.encodeCodec.getFrameBytes(), ConferenceBridge.this.framesPerPacket);
+			return true;
+		}
+	}
+}
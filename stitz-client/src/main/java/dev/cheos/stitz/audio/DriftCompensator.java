@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+/**
+ * Estimates the clock drift between a producer and a consumer of audio from the trend of the
+ * amount of audio buffered between them, and turns it into a resampling ratio adjustment that
+ * keeps the buffer level stable. The level the buffer settles at after (re)starting is taken as
+ * target, so constant offsets like packet jitter do not count as drift.
+ */
+public class DriftCompensator {
+	private static final double SMOOTHING_SECONDS = 5;
+	private static final double CALIBRATION_SECONDS = 2;
+	private static final double GAIN = 0.05; // ratio adjustment per second of buffered audio off target
+	private static final double MAX_ADJUSTMENT = 0.005; // 5000 ppm, far beyond any real crystal
+	private final double sampleRate, smoothing;
+	private final int calibrationUpdates;
+	private double level, target, ratio = 1;
+	private int updates;
+	
+	/**
+	 * @param sampleRate sample rate the buffer level is given in
+	 * @param updatesPerSecond how often {@link #update(double)} gets called
+	 */
+	public DriftCompensator(double sampleRate, double updatesPerSecond) {
+		this.sampleRate = sampleRate;
+		this.smoothing = 1 - Math.exp(-1 / (updatesPerSecond * SMOOTHING_SECONDS));
+		this.calibrationUpdates = (int) Math.ceil(updatesPerSecond * CALIBRATION_SECONDS);
+	}
+	
+	/**
+	 * @param level current buffer level in samples
+	 * @return the resampling ratio to apply, > 1 means the buffer is filling up and should be consumed faster
+	 */
+	public double update(double level) {
+		if (this.updates++ < this.calibrationUpdates) {
+			this.level = this.target += (level - this.target) / this.updates; // running mean
+			return this.ratio = 1;
+		}
+		this.level += (level - this.level) * this.smoothing;
+		double error = (this.level - this.target) / this.sampleRate;
+		return this.ratio = 1 + Math.max(-MAX_ADJUSTMENT, Math.min(MAX_ADJUSTMENT, error * GAIN));
+	}
+	
+	public double getRatio() {
+		return this.ratio;
+	}
+	
+	/**
+	 * @return the currently compensated drift in parts per million
+	 */
+	public double getDriftPpm() {
+		return (this.ratio - 1) * 1e6;
+	}
+	
+	public boolean isCalibrated() {
+		return this.updates > this.calibrationUpdates;
+	}
+	
+	public void reset() {
+		this.level = this.target = 0;
+		this.ratio = 1;
+		this.updates = 0;
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import dev.cheos.stitz.audio.codec.AudioCodec;
+import dev.cheos.stitz.audio.codec.GSMCodec;
+import dev.cheos.stitz.iax.MediaSource;
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * Audio encoded ahead of time, played into calls without encoding anything while playing.
+ * Raw GSM files (.gsm, 33 byte frames) are memory-mapped and sent straight from the mapping,
+ * anything else java sound can read is decoded, resampled and encoded once and cached until the file changes.
+ * Only the most recently used files are kept cached.
+ */
+public class MediaFile {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MediaFile.class);
+	private static final int SAMPLE_RATE = 8000;
+	private static final int MAX_CACHED = 32;
+	private static final Cache<Key, MediaFile> CACHE = CacheBuilder.newBuilder().maximumSize(MAX_CACHED).build();
+	private final Path path;
+	private final AudioCodec codec;
+	private final ByteBuffer data; // read-only, frames back to back
+	private final int frames;
+	private final FileTime modified;
+	private final long size;
+	
+	private MediaFile(Path path, AudioCodec codec, ByteBuffer data, BasicFileAttributes attributes) {
+		this.path = path;
+		this.codec = codec;
+		this.data = data.asReadOnlyBuffer();
+		this.frames = data.remaining() / codec.getFrameBytes();
+		this.modified = attributes.lastModifiedTime();
+		this.size = attributes.size();
+	}
+	
+	/**
+	 * @param codec codec the audio is to be sent with
+	 * @throws IOException if the file cannot be read or is not a supported audio file
+	 */
+	public static MediaFile open(Path path, AudioCodec codec) throws IOException {
+		Path file = path.toAbsolutePath().normalize();
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		Key key = new Key(file, codec.getFormat());
+		MediaFile cached = CACHE.getIfPresent(key);
+		if (cached != null) {
+			if (cached.modified.equals(attributes.lastModifiedTime()) && cached.size == attributes.size())
+				return cached;
+			CACHE.invalidate(key); // changed, don't keep a stale mapping around if loading fails
+		}
+		
+		long start = System.nanoTime();
+		MediaFile media = isRawGSM(file) && codec.getFormat() == MediaFrame.Format.GSM_FULL_RATE
+				? new MediaFile(file, codec, map(file), attributes)
+				: new MediaFile(file, codec, encode(isRawGSM(file) ? decodeRawGSM(file) : decode(file), codec), attributes);
+		LOGGER.debug("loaded {} in {} ms", media, (System.nanoTime() - start) / 1_000_000);
+		CACHE.put(key, media);
+		return media;
+	}
+	
+	public static void clearCache() {
+		CACHE.invalidateAll();
+	}
+	
+	/**
+	 * @param loop whether to start over once the end is reached instead of finishing
+	 * @return a new source playing this file from the start, sources are independent of each other
+	 */
+	public MediaSource newSource(boolean loop) {
+		return new Source(loop);
+	}
+	
+	public Path getPath() {
+		return this.path;
+	}
+	
+	public AudioCodec getCodec() {
+		return this.codec;
+	}
+	
+	public int getFrames() {
+		return this.frames;
+	}
+	
+	public long getDurationMillis() {
+		return this.frames * this.codec.getFrameSamples() * 1000L / SAMPLE_RATE;
+	}
+	
+	private static boolean isRawGSM(Path file) {
+		return file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".gsm");
+	}
+	
+	private static ByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) { // the mapping stays valid after closing
+			long frames = channel.size() / GSMCodec.INSTANCE.getFrameBytes();
+			if (channel.size() % GSMCodec.INSTANCE.getFrameBytes() != 0)
+				LOGGER.warn("{} ends in a partial frame, ignoring the last {} bytes", file, channel.size() % GSMCodec.INSTANCE.getFrameBytes());
+			if (frames * GSMCodec.INSTANCE.getFrameBytes() > Integer.MAX_VALUE)
+				throw new IOException("%s is too large to be mapped".formatted(file));
+			return channel.map(MapMode.READ_ONLY, 0, frames * GSMCodec.INSTANCE.getFrameBytes());
+		}
+	}
+	
+	private static short[] decodeRawGSM(Path file) throws IOException {
+		AudioCodec.Decoder decoder = GSMCodec.INSTANCE.newDecoder();
+		int frameBytes = GSMCodec.INSTANCE.getFrameBytes(), frameSamples = GSMCodec.INSTANCE.getFrameSamples();
+		byte[] data = Files.readAllBytes(file);
+		short[] pcm = new short[data.length / frameBytes * frameSamples];
+		try {
+			for (int i = 0; i < data.length / frameBytes; i++)
+				decoder.decode(data, i * frameBytes, pcm, i * frameSamples);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("%s is not a valid GSM file".formatted(file), e);
+		}
+		return pcm;
+	}
+	
+	private static short[] decode(Path file) throws IOException { // to 8 kHz mono, whatever the file contains
+		short[] samples;
+		float rate;
+		try (AudioInputStream source = AudioSystem.getAudioInputStream(file.toFile());
+				AudioInputStream stream = AudioSystem.getAudioInputStream(
+						new AudioFormat(source.getFormat().getSampleRate(), 16, source.getFormat().getChannels(), true, false), source)) {
+			int channels = stream.getFormat().getChannels();
+			byte[] data = stream.readAllBytes();
+			samples = new short[data.length / (2 * channels)];
+			for (int i = 0; i < samples.length; i++) { // 16 bit little endian, channels averaged
+				int sum = 0;
+				for (int c = 0; c < channels; c++) {
+					int j = 2 * (i * channels + c);
+					sum += (short) ((data[j] & 0xFF) | (data[j+1] << 8));
+				}
+				samples[i] = (short) (sum / channels);
+			}
+			rate = stream.getFormat().getSampleRate();
+		} catch (UnsupportedAudioFileException | IllegalArgumentException e) {
+			throw new IOException("%s is not a supported audio file".formatted(file), e);
+		}
+		return rate == SAMPLE_RATE ? samples : resample(samples, rate);
+	}
+	
+	private static short[] resample(short[] samples, float rate) {
+		Resampler resampler = new Resampler(rate, SAMPLE_RATE);
+		short[] out = new short[(int) Math.ceil(samples.length * SAMPLE_RATE / rate) + 1];
+		int chunk = (int) rate / 2, produced = 0; // the resampler buffers about a second at most
+		for (int off = 0; off < samples.length + chunk; off += chunk) {
+			if (off < samples.length) resampler.write(samples, off, Math.min(chunk, samples.length - off));
+			else resampler.write(new short[chunk], 0, chunk); // flush the filter
+			produced += resampler.read(out, produced, out.length - produced);
+		}
+		return Arrays.copyOf(out, produced);
+	}
+	
+	private static ByteBuffer encode(short[] pcm, AudioCodec codec) {
+		int frameSamples = codec.getFrameSamples(), frameBytes = codec.getFrameBytes();
+		int frames = (pcm.length + frameSamples - 1) / frameSamples;
+		short[] padded = pcm.length == frames * frameSamples ? pcm : Arrays.copyOf(pcm, frames * frameSamples);
+		byte[] data = new byte[frames * frameBytes];
+		AudioCodec.Encoder encoder = codec.newEncoder();
+		for (int i = 0; i < frames; i++)
+			encoder.encode(padded, i * frameSamples, data, i * frameBytes);
+		return ByteBuffer.wrap(data);
+	}
+	
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this)
+				.add("path", this.path)
+				.add("codec", this.codec)
+				.add("frames", this.frames)
+				.add("mapped", this.data.isDirect())
+				.toString();
+	}
+	
+	
+	private record Key(Path path, MediaFrame.Format format) { }
+	
+	private class Source implements MediaSource {
+		private final boolean loop;
+		private int position; // in frames
+		
+		Source(boolean loop) {
+			this.loop = loop;
+		}
+		
+		@Override
+		public MediaFrame.Format getFormat() {
+			return MediaFile.this.codec.getFormat();
+		}
+		
+		@Override
+		public int getFrameBytes() {
+			return MediaFile.this.codec.getFrameBytes();
+		}
+		
+		@Override
+		public ByteBuffer read(int frames) {
+			if (this.loop && this.position == MediaFile.this.frames)
+				this.position = 0;
+			int count = Math.min(frames, MediaFile.this.frames - this.position);
+			if (count <= 0) return null;
+			int frameBytes = getFrameBytes();
+			ByteBuffer slice = MediaFile.this.data.slice(this.position * frameBytes, count * frameBytes);
+			this.position += count;
+			return slice;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+/**
+ * Something that can be played through a {@link SoftwareMixer}.
+ * Sources are pulled by the mixer thread, one block at a time.
+ */
+public abstract class MixerSource {
+	private volatile float gain = 1;
+	private volatile SoftwareMixer mixer;
+	
+	public void setGain(float gain) {
+		this.gain = gain;
+	}
+	
+	public float getGain() {
+		return this.gain;
+	}
+	
+	void attach(SoftwareMixer mixer) {
+		this.mixer = mixer;
+	}
+	
+	/**
+	 * To be called whenever the source may have become active, wakes up an idling mixer.
+	 */
+	protected void activated() {
+		SoftwareMixer mixer = this.mixer;
+		if (mixer != null)
+			mixer.wakeUp();
+	}
+	
+	public abstract boolean isActive();
+	
+	/**
+	 * Adds the next {@code frames} frames to the interleaved accumulator. Called on the mixer thread only,
+	 * must not block or allocate. A source with a gain of 0 still has to advance.
+	 */
+	protected abstract void mixInto(float[] mix, int frames, int channels, float gain);
+}
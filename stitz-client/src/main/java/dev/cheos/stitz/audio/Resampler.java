@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+import java.util.Arrays;
+
+/**
+ * Streaming mono sample rate converter for downsampling with a fractional, adjustable ratio.
+ * Input is band-limited by a windowed-sinc low-pass, evaluated only at the input positions
+ * needed for the output, then linearly interpolated.
+ */
+public class Resampler {
+	private static final int TAPS = 48;
+	private final float[] taps = new float[TAPS];
+	private final short[] history;
+	private final int mask;
+	private final double step;
+	private double ratio = 1, position = TAPS - 1; // absolute input position of the next output sample
+	private long written;
+	
+	public Resampler(float inRate, float outRate) {
+		this.step = inRate / outRate;
+		this.history = new short[Integer.highestOneBit((int) inRate) << 1];
+		this.mask = this.history.length - 1;
+		
+		double cutoff = Math.min(1, outRate / inRate) * 0.45; // a bit below nyquist of the output
+		double sum = 0;
+		for (int i = 0; i < TAPS; i++) {
+			double x = i - (TAPS - 1) / 2d;
+			double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+			double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (TAPS - 1)) + 0.08 * Math.cos(4 * Math.PI * i / (TAPS - 1)); // blackman
+			sum += this.taps[i] = (float) (sinc * window);
+		}
+		for (int i = 0; i < TAPS; i++)
+			this.taps[i] /= sum;
+	}
+	
+	/**
+	 * @param ratio adjustment of the conversion ratio, > 1 consumes input faster
+	 */
+	public void setRatio(double ratio) {
+		this.ratio = ratio;
+	}
+	
+	/**
+	 * Appends input, at most about a second may be buffered.
+	 */
+	public void write(short[] buf, int off, int len) {
+		for (int i = 0; i < len; i++)
+			this.history[(int) (this.written++ & this.mask)] = buf[off + i];
+	}
+	
+	/**
+	 * @return amount of samples written to {@code buf}, limited by the available input
+	 */
+	public int read(short[] buf, int off, int len) {
+		double step = this.step * this.ratio;
+		int produced = 0;
+		while (produced < len) {
+			long index = (long) this.position;
+			if (index + 1 >= this.written) break; // need the next input sample to interpolate
+			float frac = (float) (this.position - index);
+			float a = filter(index), b = filter(index + 1);
+			int sample = Math.round(a + (b - a) * frac);
+			buf[off + produced++] = (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample);
+			this.position += step;
+		}
+		return produced;
+	}
+	
+	/**
+	 * @return buffered input not yet converted, in output samples
+	 */
+	public double getPending() {
+		return Math.max(0, this.written - 1 - this.position) / (this.step * this.ratio);
+	}
+	
+	private float filter(long index) {
+		float sum = 0;
+		for (int i = 0; i < TAPS; i++)
+			sum += this.taps[i] * this.history[(int) ((index - i) & this.mask)];
+		return sum;
+	}
+	
+	public void reset() {
+		this.written = 0;
+		this.position = TAPS - 1;
+		this.ratio = 1;
+		Arrays.fill(this.history, (short) 0);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+/**
+ * Plays back PCM decoded ahead of time, in the mixer's format.
+ */
+public class SampleSource extends MixerSource {
+	private final short[] pcm;
+	private final int frames;
+	private int position;
+	private boolean playing, looping;
+	
+	/**
+	 * @param pcm interleaved samples, in {@link SoftwareMixer#FORMAT}
+	 */
+	public SampleSource(short[] pcm) {
+		this.pcm = pcm;
+		this.frames = pcm.length / SoftwareMixer.FORMAT.getChannels();
+	}
+	
+	public synchronized void play() {
+		this.position = 0;
+		this.playing = true;
+		this.looping = false;
+		activated();
+	}
+	
+	public synchronized void loop() {
+		this.position = 0;
+		this.playing = true;
+		this.looping = true;
+		activated();
+	}
+	
+	public synchronized void stop() {
+		this.playing = false;
+		this.looping = false;
+	}
+	
+	@Override
+	public synchronized boolean isActive() {
+		return this.playing;
+	}
+	
+	@Override
+	protected synchronized void mixInto(float[] mix, int frames, int channels, float gain) {
+		for (int f = 0; f < frames; f++) {
+			if (this.position >= this.frames) {
+				if (!this.looping || this.frames == 0) {
+					this.playing = false;
+					return;
+				}
+				this.position = 0;
+			}
+			int src = this.position++ * channels, dst = f * channels;
+			for (int c = 0; c < channels; c++)
+				mix[dst + c] += this.pcm[src + c] * gain;
+		}
+	}
+}
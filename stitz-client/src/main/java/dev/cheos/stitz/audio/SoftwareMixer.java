@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import javax.sound.sampled.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Mixes any number of {@link MixerSource}s into a single output line, so only one native line per
+ * device is held open. Mixing happens on a dedicated thread in blocks of {@value #BLOCK_MILLIS} ms,
+ * paced by the line itself. The line is only opened once a source becomes active (or on
+ * {@link #prepare()}), stopped while no source is active and closed after being idle for a while.
+ * <p>
+ * In low latency mode the line is opened with a small explicit buffer, which grows (reopening the
+ * line) after underruns and shrinks again on the next open once playback has been stable for a while.
+ */
+public class SoftwareMixer implements AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SoftwareMixer.class);
+	public static final AudioFormat FORMAT = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 44100f, 16, 2, 4, 44100f, false);
+	static final int BLOCK_MILLIS = 10;
+	private static final int BUFFER_MILLIS = 100, MIN_BUFFER_MILLIS = 20, MAX_BUFFER_MILLIS = 200;
+	private static final long STABLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+	private final Mixer.Info device;
+	private final List<MixerSource> sources = new CopyOnWriteArrayList<>();
+	private final int blockFrames = (int) (FORMAT.getFrameRate() * BLOCK_MILLIS / 1000);
+	private final float[] mix = new float[this.blockFrames * FORMAT.getChannels()];
+	private final byte[] out = new byte[this.blockFrames * FORMAT.getFrameSize()];
+	private volatile SourceDataLine line;
+	private Thread thread;
+	private volatile boolean running, prepare;
+	private volatile long idleTimeoutNanos, openNanos = -1;
+	private volatile boolean lowLatency;
+	private volatile int bufferMillis = BUFFER_MILLIS;
+	private volatile float latencyMillis = -1;
+	private long framesWritten, underruns, lastUnderrun;
+	private boolean streaming, resize;
+	private Consumer<Exception> errorHandler = e -> { };
+	
+	public SoftwareMixer(Mixer.Info device, long idleTimeoutMillis, boolean lowLatency) {
+		this.device = device;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		setLowLatency(lowLatency);
+	}
+	
+	public Mixer.Info getDevice() {
+		return this.device;
+	}
+	
+	public void setIdleTimeout(long millis) {
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+	
+	/**
+	 * Takes effect the next time the line gets opened.
+	 */
+	public void setLowLatency(boolean lowLatency) {
+		this.lowLatency = lowLatency;
+		this.bufferMillis = lowLatency ? MIN_BUFFER_MILLIS * 2 : BUFFER_MILLIS;
+		this.lastUnderrun = System.nanoTime();
+	}
+	
+	public boolean isLowLatency() {
+		return this.lowLatency;
+	}
+	
+	/**
+	 * @return buffer size the line is (or will be) opened with
+	 */
+	public int getBufferMillis() {
+		return this.bufferMillis;
+	}
+	
+	/**
+	 * @return measured latency from writing audio to the line to it being played by the device, -1 if unknown
+	 */
+	public float getLatencyMillis() {
+		return this.latencyMillis;
+	}
+	
+	public long getUnderruns() {
+		return this.underruns;
+	}
+	
+	/**
+	 * @param errorHandler called on the mixer thread if the line cannot be opened, once per failure streak
+	 */
+	public void setErrorHandler(Consumer<Exception> errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+	
+	/**
+	 * @return time it took to open and start the line the last time, -1 if it was never opened
+	 */
+	public long getOpenLatencyMillis() {
+		return this.openNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(this.openNanos);
+	}
+	
+	public boolean isLineOpen() {
+		return this.line != null;
+	}
+	
+	/**
+	 * Opens the line ahead of time (if not open already), so the first sound does not have to wait for the device.
+	 */
+	public void prepare() {
+		this.prepare = true;
+		wakeUp();
+	}
+	
+	public synchronized void open() {
+		if (this.running) return;
+		this.running = true;
+		this.thread = new Thread(this::run, "audio-mixer-" + this.device.getName());
+		this.thread.setDaemon(true);
+		this.thread.setPriority(Thread.MAX_PRIORITY);
+		this.thread.start();
+	}
+	
+	public boolean isOpen() {
+		return this.running;
+	}
+	
+	public void addSource(MixerSource source) {
+		if (this.sources.contains(source)) return;
+		source.attach(this);
+		this.sources.add(source);
+		wakeUp();
+	}
+	
+	public void removeSource(MixerSource source) {
+		if (this.sources.remove(source))
+			source.attach(null);
+	}
+	
+	public List<MixerSource> getSources() {
+		return this.sources;
+	}
+	
+	void wakeUp() {
+		Thread thread = this.thread;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+	
+	private void run() {
+		long idleSince = System.nanoTime();
+		boolean failed = false;
+		while (this.running) {
+			boolean active = false;
+			for (MixerSource source : this.sources)
+				if (source.isActive()) {
+					active = true;
+					break;
+				}
+			
+			SourceDataLine line = this.line;
+			if (line == null && (active || this.prepare)) {
+				try {
+					line = openLine();
+					failed = false;
+				} catch (LineUnavailableException | IllegalArgumentException e) {
+					LOGGER.error("Exception opening output line on " + this.device.getName(), e);
+					if (!failed) this.errorHandler.accept(e);
+					failed = true;
+					LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1)); // retry while sources want to play
+					continue;
+				}
+			}
+			if (this.prepare) {
+				this.prepare = false;
+				idleSince = System.nanoTime();
+			}
+			
+			if (!active) {
+				this.streaming = false;
+				if (line != null && line.isRunning()) {
+					line.drain();
+					line.stop();
+					idleSince = System.nanoTime();
+				} else if (line != null && System.nanoTime() - idleSince > this.idleTimeoutNanos)
+					closeLine();
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+				continue;
+			}
+			
+			for (int i = 0; i < this.mix.length; i++)
+				this.mix[i] = 0;
+			for (MixerSource source : this.sources)
+				if (source.isActive())
+					source.mixInto(this.mix, this.blockFrames, FORMAT.getChannels(), source.getGain());
+			
+			for (int i = 0, j = 0; i < this.mix.length; i++) { // 16 bit little endian
+				int sample = Math.round(this.mix[i]);
+				sample = sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample;
+				this.out[j++] = (byte) sample;
+				this.out[j++] = (byte) (sample >> 8);
+			}
+			if (!line.isRunning())
+				line.start();
+			if (this.streaming && line.available() >= line.getBufferSize())
+				onUnderrun();
+			line.write(this.out, 0, this.out.length);
+			this.framesWritten += this.blockFrames;
+			this.streaming = true;
+			
+			float latency = (this.framesWritten - line.getLongFramePosition()) * 1000 / FORMAT.getFrameRate();
+			this.latencyMillis = this.latencyMillis < 0 ? latency : this.latencyMillis + (latency - this.latencyMillis) * 0.05f;
+			if (this.resize) { // reopened with the new size right away, as sources are active
+				this.resize = false;
+				closeLine();
+			}
+		}
+	}
+	
+	private void onUnderrun() {
+		this.underruns++;
+		this.lastUnderrun = System.nanoTime();
+		if (!this.lowLatency || this.bufferMillis >= MAX_BUFFER_MILLIS) return;
+		this.bufferMillis = Math.min(MAX_BUFFER_MILLIS, this.bufferMillis + Math.max(10, this.bufferMillis / 2));
+		this.resize = true;
+		LOGGER.debug("Output underrun on {}, growing buffer to {} ms", this.device.getName(), this.bufferMillis);
+	}
+	
+	private SourceDataLine openLine() throws LineUnavailableException {
+		long start = System.nanoTime();
+		if (this.lowLatency && this.bufferMillis > MIN_BUFFER_MILLIS && start - this.lastUnderrun > STABLE_NANOS) // no underruns for a while, try a smaller buffer
+			this.bufferMillis = Math.max(MIN_BUFFER_MILLIS, this.bufferMillis - 10);
+		
+		SourceDataLine line = (SourceDataLine) AudioSystem.getMixer(this.device).getLine(new DataLine.Info(SourceDataLine.class, FORMAT));
+		line.open(FORMAT, (int) (FORMAT.getFrameRate() * this.bufferMillis / 1000) * FORMAT.getFrameSize());
+		line.start();
+		this.openNanos = System.nanoTime() - start;
+		this.framesWritten = line.getLongFramePosition();
+		this.streaming = false;
+		this.latencyMillis = -1;
+		LOGGER.info("Opened output line on {} in {} ms with a {} ms buffer ({} bytes)", this.device.getName(), getOpenLatencyMillis(), this.bufferMillis, line.getBufferSize());
+		return this.line = line;
+	}
+	
+	private void closeLine() {
+		SourceDataLine line = this.line;
+		if (line == null) return;
+		this.line = null;
+		line.stop();
+		line.flush();
+		line.close();
+		LOGGER.debug("Closed idle output line on {}", this.device.getName());
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (!this.running) return;
+		this.running = false;
+		wakeUp();
+		SourceDataLine line = this.line;
+		if (line != null) {
+			line.stop();
+			line.flush(); // unblocks a pending write
+		}
+		try { this.thread.join(1000); }
+		catch (InterruptedException e) { }
+		closeLine();
+		this.thread = null;
+	}
+	
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this)
+				.add("device", this.device.getName())
+				.add("open", this.running)
+				.add("lineOpen", this.line != null)
+				.add("lowLatency", this.lowLatency)
+				.add("bufferMillis", this.bufferMillis)
+				.add("latencyMillis", this.latencyMillis)
+				.add("underruns", this.underruns)
+				.add("sources", this.sources.size())
+				.toString();
+	}
+}
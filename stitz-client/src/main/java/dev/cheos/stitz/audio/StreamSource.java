@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+/**
+ * Streamed mono audio at an arbitrary sample rate, e.g. decoded voice. Fed by a single producer
+ * through a lock-free ring buffer and resampled to the mixer's rate while mixing. Gaps are filled
+ * with comfort noise (if signalled) or silence, then playback waits for a few ms of audio to
+ * rebuffer. Drift between the producer's and the output device's clock is compensated by slightly
+ * adjusting the resampling ratio.
+ */
+public class StreamSource extends MixerSource {
+	private final ComfortNoiseGenerator noiseGenerator = new ComfortNoiseGenerator();
+	private final DriftCompensator drift;
+	private final short[] ring;
+	private final int mask, prebuffer, maxBuffered;
+	private final double step;
+	private volatile long writePos, readPos;
+	private volatile boolean enabled, clear;
+	private volatile int comfortNoiseLevel = -1;
+	private double phase;
+	private float current, next;
+	private boolean buffering = true;
+	private long underruns, overruns, skips;
+	
+	/**
+	 * @param sampleRate sample rate of the written audio
+	 * @param prebufferMillis amount of audio to wait for before (re)starting playback
+	 * @param maxBufferedMillis amount of buffered audio after which audio is skipped to catch up
+	 */
+	public StreamSource(float sampleRate, int prebufferMillis, int maxBufferedMillis) {
+		this.ring = new short[Integer.highestOneBit((int) sampleRate) << 1]; // >1 s
+		this.mask = this.ring.length - 1;
+		this.prebuffer = (int) (sampleRate * prebufferMillis / 1000);
+		this.maxBuffered = (int) (sampleRate * maxBufferedMillis / 1000);
+		this.step = sampleRate / SoftwareMixer.FORMAT.getSampleRate();
+		this.drift = new DriftCompensator(sampleRate, 1000d / SoftwareMixer.BLOCK_MILLIS);
+	}
+	
+	public void setEnabled(boolean enabled) {
+		if (!enabled) {
+			this.clear = true;
+			this.comfortNoiseLevel = -1;
+		}
+		this.enabled = enabled;
+		if (enabled) activated();
+	}
+	
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+	
+	/**
+	 * @param level comfort noise level to fill gaps with in -dBov, -1 for silence
+	 */
+	public void setComfortNoise(int level) {
+		this.comfortNoiseLevel = level;
+	}
+	
+	/**
+	 * Appends audio, only to be called by a single producer thread. Audio not fitting into the buffer is dropped.
+	 */
+	public void write(short[] buf, int off, int len) {
+		long write = this.writePos;
+		int free = this.ring.length - (int) (write - this.readPos);
+		if (len > free) {
+			this.overruns++;
+			len = free;
+		}
+		int start = (int) (write & this.mask);
+		int first = Math.min(len, this.ring.length - start);
+		System.arraycopy(buf, off, this.ring, start, first);
+		System.arraycopy(buf, off + first, this.ring, 0, len - first);
+		this.writePos = write + len;
+	}
+	
+	/**
+	 * @return amount of buffered, not yet played samples
+	 */
+	public int getBuffered() {
+		return (int) (this.writePos - this.readPos);
+	}
+	
+	public long getUnderruns() {
+		return this.underruns;
+	}
+	
+	public long getOverruns() {
+		return this.overruns;
+	}
+	
+	public long getSkips() {
+		return this.skips;
+	}
+	
+	/**
+	 * @return drift between producer and output device currently being compensated, in ppm
+	 */
+	public double getDriftPpm() {
+		return this.drift.getDriftPpm();
+	}
+	
+	@Override
+	public boolean isActive() {
+		return this.enabled;
+	}
+	
+	@Override
+	protected void mixInto(float[] mix, int frames, int channels, float gain) {
+		if (this.clear) {
+			this.clear = false;
+			this.readPos = this.writePos;
+			this.buffering = true;
+			this.current = this.next = 0;
+			this.drift.reset();
+		}
+		
+		long read = this.readPos, write = this.writePos;
+		if (write - read > this.maxBuffered) { // fell too far behind, drop audio to keep latency bounded
+			read = write - this.prebuffer;
+			this.skips++;
+			this.drift.reset();
+		}
+		int noiseLevel = this.comfortNoiseLevel;
+		double step = this.buffering ? this.step : this.step * this.drift.getRatio();
+		
+		for (int f = 0, dst = 0; f < frames; f++) {
+			float sample = (float) (this.current + (this.next - this.current) * this.phase) * gain;
+			for (int c = 0; c < channels; c++)
+				mix[dst++] += sample;
+			
+			for (this.phase += step; this.phase >= 1; this.phase -= 1) {
+				this.current = this.next;
+				if (this.buffering && write - read >= this.prebuffer)
+					this.buffering = false;
+				if (!this.buffering && write > read)
+					this.next = this.ring[(int) (read++ & this.mask)];
+				else {
+					if (!this.buffering) {
+						this.buffering = true;
+						this.underruns++;
+						this.drift.reset();
+					}
+					this.next = noiseLevel < 0 ? 0 : this.noiseGenerator.next(noiseLevel);
+				}
+			}
+		}
+		this.readPos = read;
+		if (!this.buffering)
+			this.drift.update(write - read);
+	}
+}
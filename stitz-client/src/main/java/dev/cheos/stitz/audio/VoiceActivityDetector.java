@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+/**
+ * Energy and zero-crossing based voice activity detector working on blocks of
+ * 16 bit PCM. Tracks the background noise floor while no voice is detected, the
+ * measured floor is what gets signalled to the peer as comfort noise level.
+ */
+public class VoiceActivityDetector {
+	private static final double FULL_SCALE_SQUARED = 32768d * 32768d;
+	private static final double MIN_LEVEL_DB = -127, MAX_NOISE_FLOOR_DB = -20, MIN_NOISE_FLOOR_DB = -90;
+	private static final double VOICE_MARGIN_DB = 9, UNVOICED_MARGIN_DB = 3, UNVOICED_ZCR = 0.25;
+	private static final int TRAINING_BLOCKS = 10; // the first blocks are assumed to be background noise
+	private final int hangoverBlocks;
+	private double noiseFloor = -60, level = MIN_LEVEL_DB, zcr;
+	private int hangover, trained;
+	private boolean active;
+	
+	public VoiceActivityDetector() {
+		this(10); // 200 ms at 20 ms blocks
+	}
+	
+	public VoiceActivityDetector(int hangoverBlocks) {
+		this.hangoverBlocks = hangoverBlocks;
+	}
+	
+	/**
+	 * @return whether the given block contains voice (including hangover after the last voiced block)
+	 */
+	public boolean process(short[] buf, int off, int len) {
+		long energy = 0;
+		int crossings = 0;
+		short prev = buf[off];
+		for (int i = off; i < off + len; i++) {
+			short sample = buf[i];
+			energy += sample * sample;
+			if ((sample ^ prev) < 0) crossings++;
+			prev = sample;
+		}
+		
+		this.level = energy == 0 ? MIN_LEVEL_DB : Math.max(MIN_LEVEL_DB, 10 * Math.log10(energy / (len * FULL_SCALE_SQUARED)));
+		this.zcr = (double) crossings / len;
+		
+		if (this.trained < TRAINING_BLOCKS) {
+			this.noiseFloor = this.trained == 0 ? this.level : this.noiseFloor + (this.level - this.noiseFloor) / (this.trained + 1);
+			this.noiseFloor = Math.max(MIN_NOISE_FLOOR_DB, Math.min(MAX_NOISE_FLOOR_DB, this.noiseFloor));
+			this.trained++;
+			return this.active = false;
+		}
+		
+		boolean voice = this.level > this.noiseFloor + VOICE_MARGIN_DB // voiced speech
+				|| this.level > this.noiseFloor + UNVOICED_MARGIN_DB && this.zcr > UNVOICED_ZCR; // fricatives are quiet but cross zero often
+		
+		if (this.level < this.noiseFloor) // follow drops in background noise quickly
+			this.noiseFloor += (this.level - this.noiseFloor) * 0.2;
+		else if (!voice)
+			this.noiseFloor += (this.level - this.noiseFloor) * 0.02;
+		else this.noiseFloor += 0.05; // creep up slowly in case the background got permanently louder, speech pauses pull it back down
+		this.noiseFloor = Math.max(MIN_NOISE_FLOOR_DB, Math.min(MAX_NOISE_FLOOR_DB, this.noiseFloor));
+		
+		if (voice) this.hangover = this.hangoverBlocks;
+		else if (this.hangover > 0) this.hangover--;
+		return this.active = voice || this.hangover > 0;
+	}
+	
+	public boolean isActive() {
+		return this.active;
+	}
+	
+	/**
+	 * @return level of the last processed block in dBov
+	 */
+	public double getLevel() {
+		return this.level;
+	}
+	
+	public double getZeroCrossingRate() {
+		return this.zcr;
+	}
+	
+	/**
+	 * @return the current noise floor as comfort noise level, in -dBov (0-127)
+	 */
+	public int getNoiseLevel() {
+		return (int) Math.max(0, Math.min(127, Math.round(-this.noiseFloor)));
+	}
+	
+	public void reset() {
+		this.noiseFloor = -60;
+		this.level = MIN_LEVEL_DB;
+		this.zcr = 0;
+		this.hangover = this.trained = 0;
+		this.active = false;
+	}
+}
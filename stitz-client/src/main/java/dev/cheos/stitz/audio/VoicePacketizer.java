@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Packs fixed size codec frames into voice packets of one to {@value #MAX_FRAMES}
+ * frames. Larger packets trade 20 ms of latency per frame for fewer packets and
+ * less header overhead, which is what helps on a congested uplink. In adaptive
+ * mode the packet size follows the round trip time and loss reported by the peer.
+ */
+public class VoicePacketizer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(VoicePacketizer.class);
+	public static final int MAX_FRAMES = 3, ADAPTIVE = 0;
+	private static final int[] RTT_THRESHOLDS = { 150, 300 }; // ms, above which 2 or 3 frames are used
+	private static final int[] LOSS_THRESHOLDS = { 2, 5 }; // %
+	private static final int RECOVER_PACKETS = 250; // conditions have to stay good for this many packets before shrinking again
+	private final int frameBytes;
+	private final boolean adaptive;
+	private final byte[][] packets = new byte[MAX_FRAMES][]; // one exactly sized buffer per packet size
+	private int target, frames, recover;
+	
+	/**
+	 * @param frameBytes size of a single encoded frame
+	 * @param framesPerPacket fixed number of frames per packet or {@link #ADAPTIVE}
+	 */
+	public VoicePacketizer(int frameBytes, int framesPerPacket) {
+		Preconditions.checkArgument(frameBytes > 0, "frame size must be positive, got %s", frameBytes);
+		Preconditions.checkArgument(framesPerPacket >= ADAPTIVE && framesPerPacket <= MAX_FRAMES, "frames per packet must be within [0, %s], got %s", MAX_FRAMES, framesPerPacket);
+		this.frameBytes = frameBytes;
+		this.adaptive = framesPerPacket == ADAPTIVE;
+		this.target = this.adaptive ? 1 : framesPerPacket;
+		for (int i = 0; i < MAX_FRAMES; i++)
+			this.packets[i] = new byte[(i + 1) * frameBytes];
+	}
+	
+	/**
+	 * Adapts the packet size to the current link conditions, only has an effect in adaptive mode and between packets.
+	 * @param roundTripMillis measured round trip time, negative if unknown
+	 * @param lossPercent loss reported by the peer, negative if unknown
+	 */
+	public void adapt(int roundTripMillis, int lossPercent) {
+		if (!this.adaptive || this.frames != 0 || roundTripMillis < 0 && lossPercent < 0) return;
+		int wanted = 1;
+		while (wanted < MAX_FRAMES && (roundTripMillis > RTT_THRESHOLDS[wanted - 1] || lossPercent > LOSS_THRESHOLDS[wanted - 1]))
+			wanted++;
+		
+		if (wanted > this.target) { // back off immediately
+			LOGGER.debug("increasing packet size to {} frames (rtt {} ms, loss {}%)", wanted, roundTripMillis, lossPercent);
+			this.target = wanted;
+			this.recover = 0;
+		} else if (wanted == this.target)
+			this.recover = 0;
+		else if (++this.recover >= RECOVER_PACKETS) {
+			LOGGER.debug("decreasing packet size to {} frames (rtt {} ms, loss {}%)", this.target - 1, roundTripMillis, lossPercent);
+			this.target--;
+			this.recover = 0;
+		}
+	}
+	
+	/**
+	 * @return buffer the next frame is to be encoded into at {@link #offset()}
+	 */
+	public byte[] buffer() {
+		return this.packets[this.target - 1];
+	}
+	
+	public int offset() {
+		return this.frames * this.frameBytes;
+	}
+	
+	/**
+	 * Marks the frame written to {@link #buffer()} as complete.
+	 * @return whether the packet is full and should be sent using {@link #drain()}
+	 */
+	public boolean commit() {
+		return ++this.frames == this.target;
+	}
+	
+	/**
+	 * @return the packet of all committed frames, null if there are none. Only valid until the next frame is committed.
+	 */
+	public byte[] drain() {
+		if (this.frames == 0) return null;
+		byte[] packet = this.packets[this.frames - 1];
+		if (this.frames != this.target) // partial packet, move into the matching smaller buffer
+			System.arraycopy(this.packets[this.target - 1], 0, packet, 0, this.frames * this.frameBytes);
+		this.frames = 0;
+		return packet;
+	}
+	
+	public void reset() {
+		this.frames = 0;
+	}
+	
+	public int getFramesPerPacket() {
+		return this.target;
+	}
+	
+	public boolean isAdaptive() {
+		return this.adaptive;
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.codec;
+
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * An audio codec working on 8 kHz 16 bit PCM frames. Encoders and decoders may
+ * keep state between frames, so every stream needs its own instances.
+ * Implementations can be added through {@link java.util.ServiceLoader}, see {@link AudioCodecs}.
+ */
+public interface AudioCodec {
+	MediaFrame.Format getFormat();
+	
+	/**
+	 * @return samples per frame, 160 for the usual 20 ms frames
+	 */
+	int getFrameSamples();
+	
+	int getFrameBytes();
+	
+	/**
+	 * @return rough CPU cost of encoding and decoding a frame relative to GSM full rate at 100
+	 */
+	int getCost();
+	
+	Encoder newEncoder();
+	
+	Decoder newDecoder();
+	
+	
+	@FunctionalInterface
+	interface Encoder {
+		void encode(short[] samples, int off, byte[] frame, int frameOff);
+	}
+	
+	@FunctionalInterface
+	interface Decoder {
+		/**
+		 * @throws IllegalArgumentException if the frame is malformed
+		 */
+		void decode(byte[] frame, int frameOff, short[] samples, int off);
+	}
+}
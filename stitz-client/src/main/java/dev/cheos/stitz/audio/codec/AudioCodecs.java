@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.codec;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * Registry of the available {@link AudioCodec}s, consulted during codec negotiation.
+ * Registration order is preference order, favouring low bandwidth. Additional
+ * codecs are picked up from {@link ServiceLoader} and rank after the built-in ones.
+ */
+public final class AudioCodecs {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AudioCodecs.class);
+	private static final List<AudioCodec> CODECS = new CopyOnWriteArrayList<>();
+	private static final Comparator<AudioCodec> BY_COST = Comparator.comparingInt(AudioCodec::getCost); // stable, keeps preference among equal costs
+	
+	static {
+		register(GSMCodec.INSTANCE);
+		register(G711Codec.MU_LAW);
+		register(G711Codec.A_LAW);
+		register(LinearCodec.INSTANCE);
+		try {
+			ServiceLoader.load(AudioCodec.class).forEach(AudioCodecs::register);
+		} catch (ServiceConfigurationError e) {
+			LOGGER.error("Exception loading audio codecs", e);
+		}
+	}
+	
+	private AudioCodecs() { }
+	
+	/**
+	 * Registers a codec, replacing (and taking the place of) any codec previously registered for the same format.
+	 */
+	public static synchronized void register(AudioCodec codec) {
+		Preconditions.checkArgument(codec.getFormat().getType() == MediaFrame.Format.Type.AUDIO, "Expected codec of type AUDIO, got %s", codec.getFormat().getType());
+		for (int i = 0; i < CODECS.size(); i++)
+			if (CODECS.get(i).getFormat() == codec.getFormat()) {
+				LOGGER.debug("replacing audio codec {} with {}", CODECS.get(i), codec);
+				CODECS.set(i, codec);
+				return;
+			}
+		CODECS.add(codec);
+	}
+	
+	public static @Nullable AudioCodec get(MediaFrame.Format format) {
+		for (AudioCodec codec : CODECS)
+			if (codec.getFormat() == format)
+				return codec;
+		return null;
+	}
+	
+	public static boolean isSupported(MediaFrame.Format format) {
+		return get(format) != null;
+	}
+	
+	/**
+	 * @param lowCpu whether to order by {@link AudioCodec#getCost()} first, for machines carrying many calls
+	 * @return all supported formats, most preferred first
+	 */
+	public static MediaFrame.Format[] getFormats(boolean lowCpu) {
+		return ordered(lowCpu).stream().map(AudioCodec::getFormat).toArray(MediaFrame.Format[]::new);
+	}
+	
+	/**
+	 * @return the most preferred of the offered formats, null if none is supported
+	 */
+	public static @Nullable MediaFrame.Format preferred(Collection<MediaFrame.Format> offered, boolean lowCpu) {
+		for (AudioCodec codec : ordered(lowCpu))
+			if (offered.contains(codec.getFormat()))
+				return codec.getFormat();
+		return null;
+	}
+	
+	private static List<AudioCodec> ordered(boolean lowCpu) {
+		if (!lowCpu) return CODECS;
+		List<AudioCodec> codecs = new ArrayList<>(CODECS);
+		codecs.sort(BY_COST);
+		return codecs;
+	}
+}
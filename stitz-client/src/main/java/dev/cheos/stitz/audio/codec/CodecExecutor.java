@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.codec;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs codec work of many calls on a shared work-stealing pool sized to the
+ * available cores instead of a thread per call. Work is submitted to a
+ * {@link Lane} per call, which runs its jobs one at a time in submission order
+ * and owns the call's encoder and decoder state.
+ */
+public class CodecExecutor {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CodecExecutor.class);
+	private static final int BATCH = 16; // jobs a lane may run before giving its worker to other lanes
+	private static final AtomicInteger POOL_ID = new AtomicInteger();
+	private final ForkJoinPool pool;
+	
+	public CodecExecutor(int parallelism) {
+		Preconditions.checkArgument(parallelism > 0, "parallelism must be positive, got %s", parallelism);
+		int id = POOL_ID.getAndIncrement();
+		this.pool = new ForkJoinPool(
+				parallelism,
+				pool -> {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("codec-%d-worker-%d".formatted(id, thread.getPoolIndex()));
+					thread.setPriority(Thread.MAX_PRIORITY); // frames are due every 20 ms
+					return thread;
+				},
+				(thread, e) -> LOGGER.error("Uncaught exception in codec worker {}", thread.getName(), e),
+				true); // FIFO scheduling of submitted tasks
+	}
+	
+	public static CodecExecutor shared() {
+		return Shared.INSTANCE;
+	}
+	
+	public Lane newLane(String name) {
+		return new Lane(name);
+	}
+	
+	public int getParallelism() {
+		return this.pool.getParallelism();
+	}
+	
+	public String getStats() {
+		return "%d workers (%d active), %d steals, %d queued".formatted(
+				this.pool.getPoolSize(), this.pool.getActiveThreadCount(), this.pool.getStealCount(), this.pool.getQueuedSubmissionCount() + this.pool.getQueuedTaskCount());
+	}
+	
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+	
+	
+	/**
+	 * Ordered execution context of a single call. Encoders and decoders handed
+	 * out by a lane must only be used from within its jobs.
+	 */
+	public class Lane implements AutoCloseable {
+		private final String name;
+		private final Queue<Job> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pending = new AtomicInteger();
+		private AudioCodec encoderCodec, decoderCodec;
+		private AudioCodec.Encoder encoder;
+		private AudioCodec.Decoder decoder;
+		private volatile boolean closed;
+		private volatile long jobs, totalDelayNanos, maxDelayNanos; // only written by the job currently draining the lane
+		
+		private Lane(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Queues a job to run after all jobs previously submitted to this lane.
+		 * @return false if the lane got closed and the job was dropped
+		 */
+		public boolean execute(Runnable job) {
+			if (this.closed) return false;
+			this.queue.add(new Job(job, System.nanoTime()));
+			if (this.pending.getAndIncrement() == 0)
+				CodecExecutor.this.pool.execute(this::drain);
+			return true;
+		}
+		
+		private void drain() {
+			for (int ran = 0;; ) {
+				Job job = this.queue.poll();
+				long delay = System.nanoTime() - job.submitted;
+				this.jobs++;
+				this.totalDelayNanos += delay;
+				if (delay > this.maxDelayNanos) this.maxDelayNanos = delay;
+				
+				try { job.runnable.run(); }
+				catch (Exception e) { LOGGER.error("Exception in codec job of lane {}", this.name, e); }
+				
+				if (this.pending.decrementAndGet() == 0) return;
+				if (++ran >= BATCH) { // still more queued, continue later so busy calls can't starve others
+					CodecExecutor.this.pool.execute(this::drain);
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * @return this call's encoder for the given codec, keeping its state for as long as the codec does not change
+		 */
+		public AudioCodec.Encoder encoder(AudioCodec codec) {
+			if (codec != this.encoderCodec) {
+				this.encoderCodec = codec;
+				this.encoder = codec.newEncoder();
+			}
+			return this.encoder;
+		}
+		
+		/**
+		 * @return this call's decoder for the given codec, keeping its state for as long as the codec does not change
+		 */
+		public AudioCodec.Decoder decoder(AudioCodec codec) {
+			if (codec != this.decoderCodec) {
+				this.decoderCodec = codec;
+				this.decoder = codec.newDecoder();
+			}
+			return this.decoder;
+		}
+		
+		/**
+		 * Drops the codec state, the next call to {@link #encoder(AudioCodec)} or {@link #decoder(AudioCodec)} starts afresh.
+		 */
+		public void resetCodecs() {
+			this.encoderCodec = this.decoderCodec = null;
+			this.encoder = null;
+			this.decoder = null;
+		}
+		
+		/**
+		 * @return a future completing once all jobs submitted so far have run
+		 */
+		public CompletableFuture<Void> flush() {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			if (!execute(() -> future.complete(null)))
+				future.complete(null);
+			return future;
+		}
+		
+		/**
+		 * Stops accepting jobs and waits for the queued ones to finish.
+		 */
+		@Override
+		public void close() {
+			CompletableFuture<Void> flushed = flush();
+			this.closed = true;
+			try { flushed.get(10, TimeUnit.SECONDS); }
+			catch (InterruptedException | ExecutionException | TimeoutException e) { LOGGER.warn("Codec lane {} did not finish its queued jobs", this.name); }
+		}
+		
+		public String getName() {
+			return this.name;
+		}
+		
+		public String getStats() {
+			long jobs = this.jobs;
+			if (jobs == 0) return "no jobs run";
+			return "%d jobs, queueing delay avg %.2fms max %.2fms".formatted(jobs, this.totalDelayNanos / 1e6 / jobs, this.maxDelayNanos / 1e6);
+		}
+	}
+	
+	private record Job(Runnable runnable, long submitted) { }
+	
+	private static class Shared {
+		private static final CodecExecutor INSTANCE = new CodecExecutor(Runtime.getRuntime().availableProcessors());
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.codec;
+
+import java.util.function.IntUnaryOperator;
+
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * ITU-T G.711 mu-law and A-law using lookup tables in both directions. The
+ * reference encoders only look at the top 14 (mu-law) or 13 (A-law) bits of a
+ * sample, so the encode tables are exact at 16 respectively 8 KiB.
+ */
+public class G711Codec implements AudioCodec {
+	private static final int FRAME_SAMPLES = 160;
+	private static final int[] SEG_UEND = { 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF, 0x1FFF };
+	private static final int[] SEG_AEND = { 0x1F, 0x3F, 0x7F, 0xFF, 0x1FF, 0x3FF, 0x7FF, 0xFFF };
+	private static final int ULAW_BIAS = 0x84, ULAW_CLIP = 8159;
+	// declared after the segment tables, which the constructor needs
+	public static final G711Codec MU_LAW = new G711Codec(MediaFrame.Format.G711_MULAW, 2, G711Codec::linearToUlaw, G711Codec::ulawToLinear);
+	public static final G711Codec A_LAW = new G711Codec(MediaFrame.Format.G711_ALAW, 3, G711Codec::linearToAlaw, G711Codec::alawToLinear);
+	private final MediaFrame.Format format;
+	private final int shift, offset;
+	private final byte[] encodeTable;
+	private final short[] decodeTable = new short[256];
+	private final Encoder encoder;
+	private final Decoder decoder;
+	
+	private G711Codec(MediaFrame.Format format, int shift, IntUnaryOperator encode, IntUnaryOperator decode) {
+		this.format = format;
+		this.shift = shift;
+		this.offset = 1 << (15 - shift);
+		this.encodeTable = new byte[1 << (16 - shift)];
+		for (int i = 0; i < this.encodeTable.length; i++)
+			this.encodeTable[i] = (byte) encode.applyAsInt((i - this.offset) << shift);
+		for (int i = 0; i < this.decodeTable.length; i++)
+			this.decodeTable[i] = (short) decode.applyAsInt(i);
+		this.encoder = (samples, off, frame, frameOff) -> { // stateless, a single instance can be shared
+			for (int i = 0; i < FRAME_SAMPLES; i++)
+				frame[frameOff + i] = this.encodeTable[(samples[off + i] >> this.shift) + this.offset];
+		};
+		this.decoder = (frame, frameOff, samples, off) -> {
+			for (int i = 0; i < FRAME_SAMPLES; i++)
+				samples[off + i] = this.decodeTable[frame[frameOff + i] & 0xFF];
+		};
+	}
+	
+	@Override
+	public MediaFrame.Format getFormat() {
+		return this.format;
+	}
+	
+	@Override
+	public int getFrameSamples() {
+		return FRAME_SAMPLES;
+	}
+	
+	@Override
+	public int getFrameBytes() {
+		return FRAME_SAMPLES;
+	}
+	
+	@Override
+	public int getCost() {
+		return 1;
+	}
+	
+	@Override
+	public Encoder newEncoder() {
+		return this.encoder;
+	}
+	
+	@Override
+	public Decoder newDecoder() {
+		return this.decoder;
+	}
+	
+	public byte encode(short sample) {
+		return this.encodeTable[(sample >> this.shift) + this.offset];
+	}
+	
+	public short decode(byte value) {
+		return this.decodeTable[value & 0xFF];
+	}
+	
+	@Override
+	public String toString() {
+		return this.format.toString();
+	}
+	
+	// reference implementations (CCITT G.711, as in Sun's public domain g711.c), only used to fill the tables
+	
+	private static int segment(int value, int[] ends) {
+		for (int i = 0; i < ends.length; i++)
+			if (value <= ends[i]) return i;
+		return ends.length;
+	}
+	
+	static int linearToUlaw(int pcm) {
+		int mask;
+		pcm >>= 2;
+		if (pcm < 0) {
+			pcm = -pcm;
+			mask = 0x7F;
+		} else mask = 0xFF;
+		if (pcm > ULAW_CLIP) pcm = ULAW_CLIP;
+		pcm += ULAW_BIAS >> 2;
+		
+		int seg = segment(pcm, SEG_UEND);
+		if (seg >= 8) return 0x7F ^ mask;
+		return ((seg << 4) | ((pcm >> (seg + 1)) & 0xF)) ^ mask;
+	}
+	
+	static int ulawToLinear(int u) {
+		u = ~u;
+		int t = ((u & 0xF) << 3) + ULAW_BIAS;
+		t <<= (u & 0x70) >> 4;
+		return (u & 0x80) != 0 ? ULAW_BIAS - t : t - ULAW_BIAS;
+	}
+	
+	static int linearToAlaw(int pcm) {
+		int mask;
+		pcm >>= 3;
+		if (pcm >= 0) mask = 0xD5;
+		else {
+			mask = 0x55;
+			pcm = -pcm - 1;
+		}
+		
+		int seg = segment(pcm, SEG_AEND);
+		if (seg >= 8) return 0x7F ^ mask;
+		int aval = seg << 4;
+		aval |= seg < 2 ? (pcm >> 1) & 0xF : (pcm >> seg) & 0xF;
+		return aval ^ mask;
+	}
+	
+	static int alawToLinear(int a) {
+		a ^= 0x55;
+		int t = (a & 0xF) << 4;
+		int seg = (a & 0x70) >> 4;
+		switch (seg) {
+			case 0 -> t += 8;
+			case 1 -> t += 0x108;
+			default -> t = (t + 0x108) << (seg - 1);
+		}
+		return (a & 0x80) != 0 ? t : -t;
+	}
+}
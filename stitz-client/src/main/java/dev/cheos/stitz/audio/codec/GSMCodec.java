@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.codec;
+
+import dev.cheos.stitz.gsm.*;
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+public class GSMCodec implements AudioCodec {
+	public static final GSMCodec INSTANCE = new GSMCodec();
+	
+	private GSMCodec() { }
+	
+	@Override
+	public MediaFrame.Format getFormat() {
+		return MediaFrame.Format.GSM_FULL_RATE;
+	}
+	
+	@Override
+	public int getFrameSamples() {
+		return GSMDecoder.FRAME_SAMPLES;
+	}
+	
+	@Override
+	public int getFrameBytes() {
+		return GSMDecoder.FRAME_BYTES;
+	}
+	
+	@Override
+	public int getCost() {
+		return 100;
+	}
+	
+	@Override
+	public Encoder newEncoder() {
+		return new GSMEncoder()::encode;
+	}
+	
+	@Override
+	public Decoder newDecoder() {
+		GSMDecoder decoder = new GSMDecoder();
+		return (frame, frameOff, samples, off) -> {
+			try { decoder.decode(frame, frameOff, samples, off); }
+			catch (InvalidGSMFrameException e) { throw new IllegalArgumentException(e); }
+		};
+	}
+	
+	@Override
+	public String toString() {
+		return getFormat().toString();
+	}
+}
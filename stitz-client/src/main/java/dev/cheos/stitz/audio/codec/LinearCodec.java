@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.codec;
+
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * Uncompressed 16 bit little endian PCM, costs nothing but 128 kbit/s.
+ */
+public class LinearCodec implements AudioCodec {
+	public static final LinearCodec INSTANCE = new LinearCodec();
+	private static final int FRAME_SAMPLES = 160;
+	
+	private LinearCodec() { }
+	
+	@Override
+	public MediaFrame.Format getFormat() {
+		return MediaFrame.Format.LE_16_BIT_LINEAR;
+	}
+	
+	@Override
+	public int getFrameSamples() {
+		return FRAME_SAMPLES;
+	}
+	
+	@Override
+	public int getFrameBytes() {
+		return FRAME_SAMPLES * 2;
+	}
+	
+	@Override
+	public int getCost() {
+		return 1;
+	}
+	
+	@Override
+	public Encoder newEncoder() {
+		return (samples, off, frame, frameOff) -> {
+			for (int i = 0; i < FRAME_SAMPLES; i++) {
+				short sample = samples[off + i];
+				frame[frameOff++] = (byte) sample;
+				frame[frameOff++] = (byte) (sample >> 8);
+			}
+		};
+	}
+	
+	@Override
+	public Decoder newDecoder() {
+		return (frame, frameOff, samples, off) -> {
+			for (int i = 0; i < FRAME_SAMPLES; i++, frameOff += 2)
+				samples[off + i] = (short) (frame[frameOff] & 0xFF | frame[frameOff + 1] << 8);
+		};
+	}
+	
+	@Override
+	public String toString() {
+		return getFormat().toString();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.dsp;
+
+/**
+ * Slowly levels speech towards a target rms. Gain only adapts on blocks loud enough to
+ * be speech, so background noise is never pumped up, and is capped so a block's peak
+ * cannot clip.
+ */
+public class AutomaticGainControl implements DspStage {
+	private final float target, activity, minGain, maxGain;
+	private float gain = 1;
+	
+	/**
+	 * @param targetDb target rms level in dBFS
+	 * @param activityDb minimum block rms in dBFS for the gain to adapt
+	 * @param maxGainDb maximum boost (and cut) in dB
+	 */
+	public AutomaticGainControl(float targetDb, float activityDb, float maxGainDb) {
+		this.target = 32768 * DspStage.dbToLinear(targetDb);
+		this.activity = 32768 * DspStage.dbToLinear(activityDb);
+		this.maxGain = DspStage.dbToLinear(maxGainDb);
+		this.minGain = 1 / this.maxGain;
+	}
+	
+	@Override
+	public void process(short[] buf, int off, int len) {
+		long energy = 0;
+		int peak = 0;
+		for (int i = off; i < off + len; i++) {
+			int x = buf[i];
+			energy += x * x;
+			int abs = Math.abs(x);
+			if (abs > peak) peak = abs;
+		}
+		float rms = (float) Math.sqrt((double) energy / len);
+		
+		float from = this.gain, to = from;
+		if (rms >= this.activity) {
+			float desired = Math.max(this.minGain, Math.min(this.maxGain, this.target / rms));
+			to += (desired - from) * (desired < from ? 0.2f : 0.05f); // back off faster than boosting
+		}
+		if (peak > 0)
+			to = Math.min(to, Short.MAX_VALUE / (float) peak);
+		
+		float step = (to - from) / len; // ramp across the block to avoid zipper noise
+		for (int i = 0; i < len; i++)
+			buf[off + i] = DspStage.saturate(buf[off + i] * (from + step * (i + 1)));
+		this.gain = to;
+	}
+	
+	@Override
+	public void reset() {
+		this.gain = 1;
+	}
+}
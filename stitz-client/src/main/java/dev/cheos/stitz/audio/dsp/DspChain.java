@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Runs a fixed list of {@link DspStage}s and keeps per-stage CPU time statistics.
+ */
+public class DspChain implements DspStage {
+	private final DspStage[] stages;
+	private final long[] totalNanos, maxNanos;
+	private long blocks;
+	private boolean bypassed;
+	
+	public DspChain(DspStage... stages) {
+		this.stages = stages.clone();
+		this.totalNanos = new long[stages.length];
+		this.maxNanos = new long[stages.length];
+	}
+	
+	@Override
+	public void process(short[] buf, int off, int len) {
+		if (this.bypassed) return;
+		for (int i = 0; i < this.stages.length; i++) {
+			long start = System.nanoTime();
+			this.stages[i].process(buf, off, len);
+			long elapsed = System.nanoTime() - start;
+			this.totalNanos[i] += elapsed;
+			if (elapsed > this.maxNanos[i]) this.maxNanos[i] = elapsed;
+		}
+		this.blocks++;
+	}
+	
+	@Override
+	public void reset() {
+		for (DspStage stage : this.stages)
+			stage.reset();
+	}
+	
+	public void setBypassed(boolean bypassed) {
+		this.bypassed = bypassed;
+	}
+	
+	public boolean isBypassed() {
+		return this.bypassed;
+	}
+	
+	public void resetStats() {
+		Arrays.fill(this.totalNanos, 0);
+		Arrays.fill(this.maxNanos, 0);
+		this.blocks = 0;
+	}
+	
+	public String getStats() {
+		if (this.blocks == 0) return "no blocks processed";
+		StringBuilder sb = new StringBuilder().append(this.blocks).append(" blocks");
+		for (int i = 0; i < this.stages.length; i++)
+			sb.append(", %s avg %.2fus max %.2fus".formatted(
+					this.stages[i].getClass().getSimpleName(),
+					this.totalNanos[i] / 1000d / this.blocks,
+					this.maxNanos[i] / 1000d));
+		return sb.toString();
+	}
+}
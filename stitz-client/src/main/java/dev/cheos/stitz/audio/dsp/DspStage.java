@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.dsp;
+
+/**
+ * A processing stage working in place on blocks of 16 bit PCM.
+ * Implementations must not allocate while processing.
+ */
+public interface DspStage {
+	void process(short[] buf, int off, int len);
+	default void reset() { }
+	
+	static short saturate(float value) {
+		int rounded = Math.round(value);
+		return (short) (rounded > Short.MAX_VALUE ? Short.MAX_VALUE : rounded < Short.MIN_VALUE ? Short.MIN_VALUE : rounded);
+	}
+	
+	static float dbToLinear(float db) {
+		return (float) Math.pow(10, db / 20);
+	}
+	
+	/**
+	 * @return one-pole smoothing coefficient reaching ~63% of a step after the given time
+	 */
+	static float timeConstant(float millis, float sampleRate) {
+		return (float) (1 - Math.exp(-1000 / (millis * sampleRate)));
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.dsp;
+
+/**
+ * Second order butterworth high-pass, removes DC offset and low frequency rumble.
+ */
+public class HighPassFilter implements DspStage {
+	private final float b0, b1, b2, a1, a2;
+	private float x1, x2, y1, y2;
+	
+	public HighPassFilter(float cutoff, float sampleRate) {
+		double w0 = 2 * Math.PI * cutoff / sampleRate;
+		double alpha = Math.sin(w0) / (2 * Math.sqrt(0.5)); // Q = 1/sqrt(2)
+		double cos = Math.cos(w0);
+		double a0 = 1 + alpha;
+		this.b0 = (float) ((1 + cos) / 2 / a0);
+		this.b1 = (float) (-(1 + cos) / a0);
+		this.b2 = this.b0;
+		this.a1 = (float) (-2 * cos / a0);
+		this.a2 = (float) ((1 - alpha) / a0);
+	}
+	
+	@Override
+	public void process(short[] buf, int off, int len) {
+		float x1 = this.x1, x2 = this.x2, y1 = this.y1, y2 = this.y2;
+		for (int i = off; i < off + len; i++) {
+			float x = buf[i];
+			float y = this.b0 * x + this.b1 * x1 + this.b2 * x2 - this.a1 * y1 - this.a2 * y2;
+			x2 = x1;
+			x1 = x;
+			y2 = y1;
+			y1 = y;
+			buf[i] = DspStage.saturate(y);
+		}
+		this.x1 = x1;
+		this.x2 = x2;
+		this.y1 = Math.abs(y1) < 1e-20f ? 0 : y1; // avoid denormals on digital silence
+		this.y2 = Math.abs(y2) < 1e-20f ? 0 : y2;
+	}
+	
+	@Override
+	public void reset() {
+		this.x1 = this.x2 = this.y1 = this.y2 = 0;
+	}
+}
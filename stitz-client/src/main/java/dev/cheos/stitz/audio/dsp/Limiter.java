@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.dsp;
+
+/**
+ * Peak limiter with instant attack, keeps the encoder input below full scale.
+ */
+public class Limiter implements DspStage {
+	private final float threshold, release;
+	private float gain = 1;
+	
+	public Limiter(float thresholdDb, float releaseMillis, float sampleRate) {
+		this.threshold = 32767 * DspStage.dbToLinear(thresholdDb);
+		this.release = DspStage.timeConstant(releaseMillis, sampleRate);
+	}
+	
+	@Override
+	public void process(short[] buf, int off, int len) {
+		float gain = this.gain;
+		for (int i = off; i < off + len; i++) {
+			float x = buf[i];
+			float abs = Math.abs(x);
+			if (abs * gain > this.threshold)
+				gain = this.threshold / abs;
+			else gain += (1 - gain) * this.release;
+			buf[i] = DspStage.saturate(x * gain);
+		}
+		this.gain = gain;
+	}
+	
+	@Override
+	public void reset() {
+		this.gain = 1;
+	}
+}
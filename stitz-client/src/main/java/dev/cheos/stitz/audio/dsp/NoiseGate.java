@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.dsp;
+
+/**
+ * Attenuates (rather than mutes) the signal while its envelope stays below a threshold.
+ */
+public class NoiseGate implements DspStage {
+	private final float threshold, floorGain, release, open, close;
+	private float envelope, gain = 1;
+	
+	/**
+	 * @param thresholdDb gate threshold in dBFS
+	 * @param attenuationDb attenuation applied while closed, in dB
+	 */
+	public NoiseGate(float thresholdDb, float attenuationDb, float sampleRate) {
+		this.threshold = 32768 * DspStage.dbToLinear(thresholdDb);
+		this.floorGain = DspStage.dbToLinear(-attenuationDb);
+		this.release = 1 - DspStage.timeConstant(100, sampleRate); // envelope decay
+		this.open = DspStage.timeConstant(2, sampleRate);
+		this.close = DspStage.timeConstant(150, sampleRate);
+	}
+	
+	@Override
+	public void process(short[] buf, int off, int len) {
+		float envelope = this.envelope, gain = this.gain;
+		for (int i = off; i < off + len; i++) {
+			float x = buf[i];
+			float abs = Math.abs(x);
+			envelope = abs > envelope ? abs : envelope * this.release;
+			if (envelope >= this.threshold)
+				gain += (1 - gain) * this.open;
+			else gain += (this.floorGain - gain) * this.close;
+			buf[i] = DspStage.saturate(x * gain);
+		}
+		this.envelope = envelope;
+		this.gain = gain;
+	}
+	
+	@Override
+	public void reset() {
+		this.envelope = 0;
+		this.gain = 1;
+	}
+}
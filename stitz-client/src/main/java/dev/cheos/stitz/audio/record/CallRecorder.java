@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.MoreObjects;
+
+import dev.cheos.stitz.iax.IaxCall;
+import dev.cheos.stitz.iax.IaxCallListener;
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * Records both directions of a call as they are sent and received, without decoding anything.
+ * Payloads are copied into a ring per direction on the media threads and written to a {@link Recording}
+ * by a shared background writer, so a slow disk never holds up a call.
+ */
+public class CallRecorder implements IaxCallListener.AudioListener, AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CallRecorder.class);
+	private static final int RING_BYTES = 1 << 17; // ~40 s of GSM per direction should the disk stall
+	private final IaxCall call;
+	private final Path path;
+	private final long startNanos = System.nanoTime();
+	private final FrameRing sent = new FrameRing(RING_BYTES, Recording.SENT), received = new FrameRing(RING_BYTES, Recording.RECEIVED);
+	private final FileChannel out, index; // only used by the writer
+	private final ByteBuffer indexBuf = ByteBuffer.allocate(Recording.INDEX_ENTRY_BYTES * 64);
+	private long written;
+	private int nextIndexTime;
+	private volatile boolean closed;
+	
+	private CallRecorder(IaxCall call, Path path) throws IOException {
+		this.call = call;
+		this.path = path;
+		this.out = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		try {
+			this.index = FileChannel.open(Recording.indexPath(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			ByteBuffer header = ByteBuffer.allocate(Recording.HEADER_BYTES)
+					.putInt(Recording.MAGIC)
+					.putShort(Recording.VERSION)
+					.putShort((short) 0)
+					.putLong(System.currentTimeMillis())
+					.flip();
+			while (header.hasRemaining()) this.written += this.out.write(header);
+		} catch (IOException e) {
+			this.out.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Starts recording a call until closed.
+	 * @param path file to record to, must not exist yet
+	 */
+	public static CallRecorder start(IaxCall call, Path path) throws IOException {
+		if (path.getParent() != null)
+			Files.createDirectories(path.getParent());
+		CallRecorder recorder = new CallRecorder(call, path);
+		RecordingWriter.shared().add(recorder);
+		call.addListener(recorder);
+		LOGGER.debug("recording {} to {}", call, path);
+		return recorder;
+	}
+	
+	public Path getPath() {
+		return this.path;
+	}
+	
+	public IaxCall getCall() {
+		return this.call;
+	}
+	
+	/**
+	 * @return packets dropped because the writer fell behind
+	 */
+	public long getDropped() {
+		return this.sent.getDropped() + this.received.getDropped();
+	}
+	
+	private int time() {
+		return (int) ((System.nanoTime() - this.startNanos) / 1_000_000);
+	}
+	
+	@Override
+	public void onAudioSent(byte[] data, MediaFrame.Format format) {
+		this.sent.offer(time(), Recording.formatCode(format), data, 0, data.length);
+	}
+	
+	@Override
+	public void onAudioSent(ByteBuffer data, MediaFrame.Format format) {
+		this.sent.offer(time(), Recording.formatCode(format), data);
+	}
+	
+	@Override
+	public void onAudioReceived(byte[] data, MediaFrame.Format format) {
+		this.received.offer(time(), Recording.formatCode(format), data, 0, data.length);
+	}
+	
+	/**
+	 * Moves all records from the rings to the file, ordered by arrival time. Only called by the writer.
+	 * @param buf empty scratch buffer
+	 */
+	void drain(ByteBuffer buf) throws IOException {
+		for (;;) {
+			int sentTime = this.sent.peekTime(), receivedTime = this.received.peekTime();
+			if (sentTime < 0 && receivedTime < 0) break;
+			boolean takeSent = receivedTime < 0 || sentTime >= 0 && sentTime <= receivedTime;
+			FrameRing ring = takeSent ? this.sent : this.received;
+			int time = takeSent ? sentTime : receivedTime;
+			
+			if (buf.remaining() < ring.peekSize())
+				flush(buf);
+			if (time >= this.nextIndexTime) {
+				if (!this.indexBuf.hasRemaining())
+					flushIndex();
+				this.indexBuf.putInt(time).putLong(this.written + buf.position());
+				this.nextIndexTime = (time / Recording.INDEX_INTERVAL_MILLIS + 1) * Recording.INDEX_INTERVAL_MILLIS;
+			}
+			ring.poll(buf);
+		}
+		flush(buf);
+		flushIndex();
+	}
+	
+	private void flush(ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) this.written += this.out.write(buf);
+		buf.clear();
+	}
+	
+	private void flushIndex() throws IOException {
+		this.indexBuf.flip();
+		while (this.indexBuf.hasRemaining()) this.index.write(this.indexBuf);
+		this.indexBuf.clear();
+	}
+	
+	void closeFiles() throws IOException {
+		try (FileChannel out = this.out; FileChannel index = this.index) {
+			out.force(true);
+			index.force(true);
+		}
+	}
+	
+	/**
+	 * Stops recording, returns once everything recorded is written.
+	 */
+	@Override
+	public void close() {
+		if (this.closed) return;
+		this.closed = true;
+		this.call.removeListener(this);
+		RecordingWriter.shared().remove(this);
+		LOGGER.debug("stopped recording {}, {} bytes written, {} packets dropped", this.path, this.written, getDropped());
+	}
+	
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this)
+				.add("path", this.path)
+				.add("written", this.written)
+				.add("dropped", getDropped())
+				.toString();
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.record;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Lock-free single producer, single consumer ring of audio records, laid out
+ * exactly as they are stored in a recording: arrival time, payload length,
+ * format, stream and payload. Offering never blocks or allocates, records not
+ * fitting into the ring are dropped.
+ */
+final class FrameRing {
+	static final int HEADER_BYTES = 8;
+	static final int MAX_PAYLOAD = 0xFFFF;
+	private final byte[] buf;
+	private final int mask;
+	private final byte stream;
+	private final AtomicLong head = new AtomicLong(), tail = new AtomicLong(); // bytes consumed / published
+	private volatile long dropped; // only written by the producer
+	
+	FrameRing(int capacity, byte stream) {
+		Preconditions.checkArgument(Integer.bitCount(capacity) == 1, "capacity must be a power of two, got %s", capacity);
+		this.buf = new byte[capacity];
+		this.mask = capacity - 1;
+		this.stream = stream;
+	}
+	
+	boolean offer(int time, byte format, byte[] data, int off, int len) {
+		long pos = reserve(len);
+		if (pos < 0) return false;
+		putHeader(pos, time, len, format);
+		int start = (int) ((pos + HEADER_BYTES) & this.mask), first = Math.min(len, this.buf.length - start);
+		System.arraycopy(data, off, this.buf, start, first);
+		System.arraycopy(data, off + first, this.buf, 0, len - first);
+		this.tail.lazySet(pos + HEADER_BYTES + len);
+		return true;
+	}
+	
+	/**
+	 * Copies the payload between position and limit without changing the position.
+	 */
+	boolean offer(int time, byte format, ByteBuffer data) {
+		int len = data.remaining();
+		long pos = reserve(len);
+		if (pos < 0) return false;
+		putHeader(pos, time, len, format);
+		int start = (int) ((pos + HEADER_BYTES) & this.mask), first = Math.min(len, this.buf.length - start);
+		data.get(data.position(), this.buf, start, first);
+		data.get(data.position() + first, this.buf, 0, len - first);
+		this.tail.lazySet(pos + HEADER_BYTES + len);
+		return true;
+	}
+	
+	private long reserve(int len) {
+		long pos = this.tail.get();
+		if (len > MAX_PAYLOAD || pos + HEADER_BYTES + len - this.head.get() > this.buf.length) {
+			this.dropped++;
+			return -1;
+		}
+		return pos;
+	}
+	
+	private void putHeader(long pos, int time, int len, byte format) {
+		put(pos, (byte) (time >>> 24));
+		put(pos + 1, (byte) (time >>> 16));
+		put(pos + 2, (byte) (time >>> 8));
+		put(pos + 3, (byte) time);
+		put(pos + 4, (byte) (len >>> 8));
+		put(pos + 5, (byte) len);
+		put(pos + 6, format);
+		put(pos + 7, this.stream);
+	}
+	
+	private void put(long pos, byte b) {
+		this.buf[(int) (pos & this.mask)] = b;
+	}
+	
+	private int get(long pos) {
+		return this.buf[(int) (pos & this.mask)] & 0xFF;
+	}
+	
+	/**
+	 * @return arrival time of the next record, -1 if there is none
+	 */
+	int peekTime() {
+		long pos = this.head.get();
+		if (pos == this.tail.get()) return -1;
+		return get(pos) << 24 | get(pos + 1) << 16 | get(pos + 2) << 8 | get(pos + 3);
+	}
+	
+	/**
+	 * @return size of the next record including its header, 0 if there is none
+	 */
+	int peekSize() {
+		long pos = this.head.get();
+		if (pos == this.tail.get()) return 0;
+		return HEADER_BYTES + (get(pos + 4) << 8 | get(pos + 5));
+	}
+	
+	/**
+	 * Moves the next record into {@code out}, which must have {@link #peekSize()} bytes remaining.
+	 */
+	void poll(ByteBuffer out) {
+		long pos = this.head.get();
+		int size = peekSize(), start = (int) (pos & this.mask), first = Math.min(size, this.buf.length - start);
+		out.put(this.buf, start, first);
+		out.put(this.buf, 0, size - first);
+		this.head.lazySet(pos + size);
+	}
+	
+	long getDropped() {
+		return this.dropped;
+	}
+}
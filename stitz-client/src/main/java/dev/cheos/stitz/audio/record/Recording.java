@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.record;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+import dev.cheos.stitz.audio.codec.AudioCodec;
+import dev.cheos.stitz.audio.codec.AudioCodecs;
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * A call recording as written by {@link CallRecorder}, converted to WAV only when exported.
+ * <p>
+ * Recordings are append-only: a 16 byte header (magic, version, start time in epoch millis)
+ * followed by one record per voice packet, holding the packet's payload exactly as it was sent or received.
+ * Records start with an 8 byte header: arrival time in ms since the start, payload length,
+ * format (as bit index of its IAX format id) and stream ({@link #SENT} or {@link #RECEIVED}).
+ * An index file next to it maps every second of the recording to the offset of the first record at or after it,
+ * as pairs of time and offset.
+ */
+public class Recording {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Recording.class);
+	public static final String EXTENSION = ".srec", INDEX_EXTENSION = ".idx";
+	public static final byte SENT = 0, RECEIVED = 1;
+	static final int MAGIC = 0x53524543; // SREC
+	static final short VERSION = 1;
+	static final int HEADER_BYTES = 16, INDEX_ENTRY_BYTES = 12;
+	static final int INDEX_INTERVAL_MILLIS = 1000;
+	private static final int SAMPLE_RATE = 8000, FRAME_SAMPLES = 160, FRAME_MILLIS = FRAME_SAMPLES * 1000 / SAMPLE_RATE;
+	private static final int RESYNC_SLOTS = 10; // packets arriving up to 200 ms off continue the previous one, others are placed by arrival time
+	private static final int PREROLL_SLOTS = 100; // decoded but not exported before the start of a range, for the decoders to settle
+	private final Path path;
+	private final long startEpochMillis;
+	private final ByteBuffer index;
+	
+	private Recording(Path path, long startEpochMillis, ByteBuffer index) {
+		this.path = path;
+		this.startEpochMillis = startEpochMillis;
+		this.index = index;
+	}
+	
+	/**
+	 * @throws IOException if the file cannot be read or is not a recording
+	 */
+	public static Recording open(Path path) throws IOException {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("%s is not a recording".formatted(path));
+			short version = in.readShort();
+			if (version != VERSION)
+				throw new IOException("%s has unsupported version %d".formatted(path, version));
+			in.readShort();
+			long start = in.readLong();
+			Path indexPath = indexPath(path);
+			ByteBuffer index = Files.exists(indexPath) ? ByteBuffer.wrap(Files.readAllBytes(indexPath)) : ByteBuffer.allocate(0);
+			return new Recording(path, start, index.limit(index.limit() - index.limit() % INDEX_ENTRY_BYTES)); // the last entry may be incomplete after a crash
+		} catch (EOFException e) {
+			throw new IOException("%s is truncated".formatted(path), e);
+		}
+	}
+	
+	static Path indexPath(Path path) {
+		return path.resolveSibling(path.getFileName() + INDEX_EXTENSION);
+	}
+	
+	static byte formatCode(MediaFrame.Format format) {
+		return (byte) Integer.numberOfTrailingZeros(format.getId());
+	}
+	
+	static MediaFrame.Format format(byte code) {
+		return MediaFrame.Format.byId(1 << code);
+	}
+	
+	public Path getPath() {
+		return this.path;
+	}
+	
+	public Instant getStart() {
+		return Instant.ofEpochMilli(this.startEpochMillis);
+	}
+	
+	/**
+	 * @return arrival time of the last record in ms, found by reading from the last index entry on
+	 */
+	public long getDurationMillis() throws IOException {
+		int last = this.index.limit() / INDEX_ENTRY_BYTES - 1;
+		long offset = last < 0 ? HEADER_BYTES : this.index.getLong(last * INDEX_ENTRY_BYTES + 4);
+		long duration = 0;
+		try (RecordReader reader = new RecordReader(offset, (byte) -1)) {
+			while (reader.next())
+				duration = Math.max(duration, reader.time);
+		}
+		return duration;
+	}
+	
+	/**
+	 * @return offset of the first record at or after the given time, or of one before it
+	 */
+	private long seek(long millis) {
+		int lo = 0, hi = this.index.limit() / INDEX_ENTRY_BYTES - 1;
+		long offset = HEADER_BYTES;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this.index.getInt(mid * INDEX_ENTRY_BYTES) <= millis) {
+				offset = this.index.getLong(mid * INDEX_ENTRY_BYTES + 4);
+				lo = mid + 1;
+			} else hi = mid - 1;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Exports the whole recording, see {@link #exportWav(Path, boolean, long, long)}.
+	 */
+	public long exportWav(Path output, boolean stereo) throws IOException {
+		return exportWav(output, stereo, 0, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Decodes both directions and writes them to an 8 kHz 16 bit WAV file, silence and
+	 * lost packets are filled in, so the output has the length of the call. Decoding of a
+	 * range starts a bit early, still its start may differ slightly from a full export.
+	 * @param stereo whether to put the sent audio on the left and the received audio on the right channel instead of mixing them
+	 * @param fromMillis start of the range to export
+	 * @param toMillis end of the range to export, exclusive
+	 * @return amount of samples per channel written
+	 */
+	public long exportWav(Path output, boolean stereo, long fromMillis, long toMillis) throws IOException {
+		Preconditions.checkArgument(fromMillis >= 0 && fromMillis <= toMillis, "Invalid range %s to %s", fromMillis, toMillis);
+		int channels = stereo ? 2 : 1;
+		long firstSlot = fromMillis / FRAME_MILLIS, endSlot = toMillis == Long.MAX_VALUE ? Long.MAX_VALUE : (toMillis + FRAME_MILLIS - 1) / FRAME_MILLIS;
+		long startSlot = Math.max(0, firstSlot - PREROLL_SLOTS), offset = seek(startSlot * FRAME_MILLIS);
+		
+		try (Track sent = new Track(offset, SENT, startSlot); Track received = new Track(offset, RECEIVED, startSlot);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			short[] local = new short[FRAME_SAMPLES], remote = new short[FRAME_SAMPLES];
+			out.position(WavHeader.BYTES);
+			long slot = startSlot;
+			for (; slot < endSlot && !(sent.isDone() && received.isDone()); slot++) {
+				sent.read(slot, local);
+				received.read(slot, remote);
+				if (slot < firstSlot)
+					continue;
+				if (buf.remaining() < FRAME_SAMPLES * 2 * channels) {
+					buf.flip();
+					while (buf.hasRemaining()) out.write(buf);
+					buf.clear();
+				}
+				for (int i = 0; i < FRAME_SAMPLES; i++) {
+					if (stereo) buf.putShort(local[i]).putShort(remote[i]);
+					else {
+						int sum = local[i] + remote[i];
+						buf.putShort((short) (sum > Short.MAX_VALUE ? Short.MAX_VALUE : sum < Short.MIN_VALUE ? Short.MIN_VALUE : sum));
+					}
+				}
+			}
+			buf.flip();
+			while (buf.hasRemaining()) out.write(buf);
+			
+			long samples = Math.max(0, slot - firstSlot) * FRAME_SAMPLES;
+			Preconditions.checkState(samples * 2 * channels <= 0xFFFFFFFFL - WavHeader.BYTES, "%s is too long for a single WAV file, export it in parts", this.path);
+			ByteBuffer header = ByteBuffer.allocate(WavHeader.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			WavHeader.write(header, SAMPLE_RATE, channels, samples * 2 * channels);
+			out.write(header, 0);
+			if (sent.dropped + received.dropped > 0)
+				LOGGER.debug("skipped {} sent and {} received frames that could not be decoded while exporting {}", sent.dropped, received.dropped, this.path);
+			return samples;
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this)
+				.add("path", this.path)
+				.add("start", getStart())
+				.add("indexEntries", this.index.limit() / INDEX_ENTRY_BYTES)
+				.toString();
+	}
+	
+	
+	private static class WavHeader {
+		static final int BYTES = 44;
+		
+		static void write(ByteBuffer buf, int rate, int channels, long dataBytes) {
+			buf.putInt(0, 0x46464952).putInt(4, (int) (36 + dataBytes)).putInt(8, 0x45564157)
+					.putInt(12, 0x20746D66).putInt(16, 16)
+					.putShort(20, (short) 1).putShort(22, (short) channels).putInt(24, rate).putInt(28, rate * 2 * channels)
+					.putShort(32, (short) (2 * channels)).putShort(34, (short) 16)
+					.putInt(36, 0x61746164).putInt(40, (int) dataBytes);
+		}
+	}
+	
+	/**
+	 * Sequential reader of the records of one stream, or of all streams if negative.
+	 */
+	private class RecordReader implements Closeable {
+		private final DataInputStream in;
+		private final byte stream;
+		private final byte[] payload = new byte[FrameRing.MAX_PAYLOAD];
+		int time, length;
+		byte format;
+		
+		RecordReader(long offset, byte stream) throws IOException {
+			FileChannel channel = FileChannel.open(Recording.this.path, StandardOpenOption.READ);
+			channel.position(offset);
+			this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+			this.stream = stream;
+		}
+		
+		/**
+		 * @return whether another record was read, false at the end, which may be a record cut short by a crash
+		 */
+		boolean next() throws IOException {
+			try {
+				for (;;) {
+					this.time = this.in.readInt();
+					this.length = this.in.readUnsignedShort();
+					this.format = this.in.readByte();
+					byte stream = this.in.readByte();
+					if (this.stream < 0 || stream == this.stream) {
+						this.in.readFully(this.payload, 0, this.length);
+						return true;
+					}
+					this.in.skipNBytes(this.length);
+				}
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+	
+	/**
+	 * Decodes one stream into consecutive 20 ms slots. Packets continue where the previous one ended,
+	 * unless their arrival time is too far off, i.e. after silence or when packets got lost.
+	 */
+	private class Track implements Closeable {
+		private final RecordReader reader;
+		private final long firstSlot;
+		private MediaFrame.Format format;
+		private AudioCodec codec;
+		private AudioCodec.Decoder decoder;
+		private boolean pending, done;
+		private long recordSlot, nextSlot = -1; // slot following the last decoded frame
+		private int frame, frames;
+		long dropped;
+		
+		Track(long offset, byte stream, long firstSlot) throws IOException {
+			this.reader = new RecordReader(offset, stream);
+			this.firstSlot = firstSlot;
+		}
+		
+		boolean isDone() {
+			return this.done && !this.pending;
+		}
+		
+		/**
+		 * Slots have to be read in order.
+		 */
+		void read(long slot, short[] pcm) throws IOException {
+			if (!this.pending && !this.done)
+				readAhead();
+			if (!this.pending || this.recordSlot + this.frame != slot) {
+				Arrays.fill(pcm, (short) 0);
+				return;
+			}
+			try {
+				this.decoder.decode(this.reader.payload, this.frame * this.codec.getFrameBytes(), pcm, 0);
+			} catch (IllegalArgumentException e) {
+				Arrays.fill(pcm, (short) 0);
+				this.dropped++;
+			}
+			this.nextSlot = slot + 1;
+			if (++this.frame == this.frames)
+				this.pending = false;
+		}
+		
+		private void readAhead() throws IOException {
+			while (this.reader.next()) {
+				MediaFrame.Format format = format(this.reader.format);
+				if (format != this.format) {
+					this.format = format;
+					this.codec = AudioCodecs.get(format);
+					this.decoder = this.codec != null && this.codec.getFrameSamples() == FRAME_SAMPLES ? this.codec.newDecoder() : null;
+					if (this.decoder == null)
+						LOGGER.warn("cannot decode {} audio in {}, exporting silence instead", format, Recording.this.path);
+				}
+				if (this.decoder == null) {
+					this.dropped++;
+					continue;
+				}
+				this.frames = this.reader.length / this.codec.getFrameBytes();
+				long arrival = Math.max(0, this.reader.time / FRAME_MILLIS - (this.frames - 1)); // arrives once its last frame is complete
+				if (this.frames == 0 || arrival + this.frames <= this.firstSlot)
+					continue;
+				this.recordSlot = this.nextSlot >= 0 && Math.abs(arrival - this.nextSlot) <= RESYNC_SLOTS ? this.nextSlot : Math.max(arrival, this.nextSlot);
+				this.frame = (int) Math.max(0, this.firstSlot - this.recordSlot);
+				this.pending = this.frame < this.frames;
+				if (this.pending) return;
+			}
+			this.done = true;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			this.reader.close();
+		}
+	}
+}
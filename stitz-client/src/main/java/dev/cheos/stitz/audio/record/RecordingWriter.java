@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package dev.cheos.stitz.audio.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single background thread writing all active recordings, a few times per second.
+ */
+final class RecordingWriter {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RecordingWriter.class);
+	private static final long INTERVAL_MILLIS = 250;
+	private final ScheduledExecutorService executor;
+	private final List<CallRecorder> recorders = new ArrayList<>(); // only touched by the writer thread
+	private final ByteBuffer buf = ByteBuffer.allocate(1 << 18);
+	
+	private RecordingWriter() {
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "recording-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.scheduleWithFixedDelay(this::drainAll, INTERVAL_MILLIS, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	static RecordingWriter shared() {
+		return Shared.INSTANCE;
+	}
+	
+	void add(CallRecorder recorder) {
+		this.executor.execute(() -> this.recorders.add(recorder));
+	}
+	
+	/**
+	 * Writes the rest of a recording and closes its files, waiting for it to be done.
+	 */
+	void remove(CallRecorder recorder) {
+		Future<?> done = this.executor.submit(() -> {
+			this.recorders.remove(recorder);
+			drain(recorder);
+			try {
+				recorder.closeFiles();
+			} catch (IOException e) {
+				LOGGER.error("Exception closing recording {}", recorder.getPath(), e);
+			}
+		});
+		try {
+			done.get(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException e) {
+			LOGGER.error("Exception finishing recording {}", recorder.getPath(), e);
+		}
+	}
+	
+	private void drainAll() {
+		for (CallRecorder recorder : this.recorders)
+			drain(recorder);
+	}
+	
+	private void drain(CallRecorder recorder) {
+		try {
+			this.buf.clear();
+			recorder.drain(this.buf);
+		} catch (IOException e) { // keep recording, later writes may succeed again
+			LOGGER.error("Exception writing recording {}", recorder.getPath(), e);
+		}
+	}
+	
+	
+	private static class Shared {
+		private static final RecordingWriter INSTANCE = new RecordingWriter();
+	}
+}
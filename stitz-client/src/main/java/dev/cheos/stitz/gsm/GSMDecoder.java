@@ -28,7 +28,8 @@
 
 package dev.cheos.stitz.gsm;
 
-import org.tritonus.share.sampled.TConversionTool;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import dev.cheos.stitz.gsm.BitDecoder.AllocationMode;
 
@@ -43,6 +44,11 @@ public class GSMDecoder {
 	private static final int MIN_WORD = -32767 - 1;
 	private static final int MAX_WORD = 32767;
 	
+	/** size of one toast frame in bytes */
+	public static final int FRAME_BYTES = 33;
+	/** samples decoded from one toast frame */
+	public static final int FRAME_SAMPLES = 160;
+	
 	private GSMFrameFormat gsmFrameFormat;
 	
 	private BitDecoder bitDecoder = new BitDecoder(null, 0,
@@ -86,6 +92,39 @@ public class GSMDecoder {
 		nrp = 40;
 	}
 	
+	/**
+	 * Continues decoding where another decoder left off by copying its state.
+	 * 
+	 * @param other
+	 *            the decoder to copy the state from
+	 */
+	public void copyStateFrom(GSMDecoder other)
+	{
+		System.arraycopy(other.m_dp0, 0, m_dp0, 0, m_dp0.length);
+		System.arraycopy(other.LARpp[0], 0, LARpp[0], 0, 8);
+		System.arraycopy(other.LARpp[1], 0, LARpp[1], 0, 8);
+		m_j = other.m_j;
+		nrp = other.nrp;
+		System.arraycopy(other.v, 0, v, 0, v.length);
+		msr = other.msr;
+	}
+	
+	/**
+	 * Checks whether both decoders would produce the same samples from the
+	 * same frames from now on.
+	 * 
+	 * @param other
+	 *            the decoder to compare to
+	 * @return whether the state affecting future samples is identical
+	 */
+	public boolean hasSameState(GSMDecoder other)
+	{
+		return nrp == other.nrp && msr == other.msr
+				&& Arrays.equals(m_dp0, 0, 120, other.m_dp0, 0, 120) // [120..159] is rewritten before being read
+				&& Arrays.equals(LARpp[m_j ^ 1], other.LARpp[other.m_j ^ 1])
+				&& Arrays.equals(v, other.v);
+	}
+	
 	/*
 	 * This is how the method call should look like.
 	 * 
@@ -108,30 +147,85 @@ public class GSMDecoder {
 			int nBufferStart, boolean bBigEndian)
 					throws InvalidGSMFrameException
 	{
-		int[] anDecodedData = null;
 		switch (gsmFrameFormat)
 		{
 			case TOAST:
-				anDecodedData = decode(abFrame, nFrameStart);
-				for (int i = 0; i < 160; i++)
-				{
-					TConversionTool.intToBytes16(anDecodedData[i], abBuffer, i * 2
-							+ nBufferStart, bBigEndian);
-				}
+				postprocessing(decode(abFrame, nFrameStart), abBuffer,
+						nBufferStart, bBigEndian);
+				break;
+			case MICROSOFT:
+				postprocessing(decode(abFrame, nFrameStart), abBuffer,
+						nBufferStart, bBigEndian);
+				postprocessing(decode(abFrame, nFrameStart + 33), abBuffer,
+						nBufferStart + 160 * 2, bBigEndian);
+				break;
+			default:
+				throw new RuntimeException("unknown GsmFrameFormat");
+		}
+	}
+	
+	/**
+	 * Decodes a frame straight into a sample array.
+	 * 
+	 * @param abFrame
+	 *            the array that contains the GSM frame, may contain more data
+	 *            (e.g. further frames of the same packet)
+	 * @param nFrameStart
+	 *            the index of the frame inside abFrame
+	 * @param asBuffer
+	 *            the array to write 160 (toast) or 320 (microsoft) samples to
+	 * @param nBufferStart
+	 *            the index of the first sample to write
+	 * @throws InvalidGSMFrameException
+	 */
+	public void decode(byte[] abFrame, int nFrameStart, short[] asBuffer,
+			int nBufferStart) throws InvalidGSMFrameException
+	{
+		switch (gsmFrameFormat)
+		{
+			case TOAST:
+				postprocessing(decode(abFrame, nFrameStart), asBuffer,
+						nBufferStart);
+				break;
+			case MICROSOFT:
+				postprocessing(decode(abFrame, nFrameStart), asBuffer,
+						nBufferStart);
+				postprocessing(decode(abFrame, nFrameStart + 33), asBuffer,
+						nBufferStart + 160);
+				break;
+			default:
+				throw new RuntimeException("unknown GsmFrameFormat");
+		}
+	}
+	
+	/**
+	 * Decodes a frame into a (direct) byte buffer, samples are written as 16 bit
+	 * values in the byte order of the buffer, starting at its position. The
+	 * position is advanced past the written samples.
+	 * 
+	 * @param abFrame
+	 *            the array that contains the GSM frame, may contain more data
+	 * @param nFrameStart
+	 *            the index of the frame inside abFrame
+	 * @param buffer
+	 *            the buffer to write 160 (toast) or 320 (microsoft) samples to
+	 * @throws InvalidGSMFrameException
+	 */
+	public void decode(byte[] abFrame, int nFrameStart, ByteBuffer buffer)
+			throws InvalidGSMFrameException
+	{
+		int index = buffer.position();
+		switch (gsmFrameFormat)
+		{
+			case TOAST:
+				postprocessing(decode(abFrame, nFrameStart), buffer, index);
+				buffer.position(index + 160 * 2);
 				break;
 			case MICROSOFT:
-				anDecodedData = decode(abFrame, nFrameStart);
-				for (int i = 0; i < 160; i++)
-				{
-					TConversionTool.intToBytes16(anDecodedData[i], abBuffer, i * 2
-							+ nBufferStart, bBigEndian);
-				}
-				anDecodedData = decode(abFrame, nFrameStart + 33);
-				for (int i = 0; i < 160; i++)
-				{
-					TConversionTool.intToBytes16(anDecodedData[i], abBuffer, i * 2
-							+ nBufferStart + 160 * 2, bBigEndian);
-				}
+				postprocessing(decode(abFrame, nFrameStart), buffer, index);
+				postprocessing(decode(abFrame, nFrameStart + 33), buffer,
+						index + 160 * 2);
+				buffer.position(index + 320 * 2);
 				break;
 			default:
 				throw new RuntimeException("unknown GsmFrameFormat");
@@ -145,7 +239,7 @@ public class GSMDecoder {
 	 *            byte array containing the coded frame
 	 * @param bufferStartOffset
 	 *            offset into the array for the coded frame
-	 * @return an array containing the decoded samples
+	 * @return an array containing the decoded samples, before postprocessing
 	 * @throws InvalidGSMFrameException
 	 */
 	private final int[] decode(byte[] c, int bufferStartOffset) throws InvalidGSMFrameException
@@ -168,7 +262,7 @@ public class GSMDecoder {
 			GSMFrameParameters gsmFrameParameters)
 					throws InvalidGSMFrameException
 	{
-		if (c.length != 33)
+		if (bufferStartIndex < 0 || c.length - bufferStartIndex < FRAME_BYTES)
 		{
 			throw new InvalidGSMFrameException();
 		}
@@ -432,8 +526,6 @@ public class GSMDecoder {
 		
 		// print("s",s);
 		
-		postprocessing(s);
-		
 		return s;
 	}
 	
@@ -796,16 +888,51 @@ public class GSMDecoder {
 		}
 	}
 	
-	private final void postprocessing(int[] s)
+	/*
+	 * The postprocessing variants write the final samples straight to the
+	 * destination, so there is no separate conversion pass.
+	 */
+	private final void postprocessing(int[] s, short[] out, int off)
+	{
+		int tmp;
+		for (int soff = 0; soff < 160; soff++)
+		{
+			tmp = mult_r(msr, (28180));
+			msr = add(s[soff], tmp);
+			out[off++] = (short) saturate(add(msr, msr) & ~0x7);
+		}
+	}
+	
+	private final void postprocessing(int[] s, ByteBuffer out, int index)
 	{
-		int soff = 0;
 		int tmp;
-		for (int k = 160; k-- > 0; soff++)
+		for (int soff = 0; soff < 160; soff++, index += 2)
 		{
 			tmp = mult_r(msr, (28180));
 			msr = add(s[soff], tmp);
-			// s[soff]=(add(msr,msr) & 0xfff8);
-			s[soff] = saturate(add(msr, msr) & ~0x7);
+			out.putShort(index, (short) saturate(add(msr, msr) & ~0x7));
+		}
+	}
+	
+	private final void postprocessing(int[] s, byte[] out, int off,
+			boolean bigEndian)
+	{
+		int tmp, sample;
+		for (int soff = 0; soff < 160; soff++, off += 2)
+		{
+			tmp = mult_r(msr, (28180));
+			msr = add(s[soff], tmp);
+			sample = saturate(add(msr, msr) & ~0x7);
+			if (bigEndian)
+			{
+				out[off] = (byte) (sample >> 8);
+				out[off + 1] = (byte) sample;
+			}
+			else
+			{
+				out[off] = (byte) sample;
+				out[off + 1] = (byte) (sample >> 8);
+			}
 		}
 	}
 	
@@ -28,14 +28,23 @@
 
 package dev.cheos.stitz.gsm;
 
-import dev.cheos.stitz.gsm.BitEncoder.AllocationMode;
+import java.util.Arrays;
 
 public class GSMEncoder { /* Every Encoder has a state through completion */
-	private GSMState g_s = new GSMState();
 	private LongTerm lg_term_Obj = new LongTerm();
 	private Lpc lpc_Obj = new Lpc();
 	private Rpe rpe_Obj = new Rpe();
-	private ShortTerm sh_term_Obj = new ShortTerm();
+	private ShortTerm sh_term_Obj = new ShortTerm(); /* also holds the short term analysis state */
+	
+	/* encoder state */
+	private short[] dp0 = new short[280]; /* reconstructed short term residual, [120..279] is the current frame */
+	private short z1; /* preprocessing, Offset_com. */
+	private int L_z2; /* Offset_com. */
+	private int mp; /* Preemphasis */
+	
+	/* work arrays, reused for every frame */
+	private short[] so = new short[160];
+	private short[] e = new short[50];
 	
 	/* [0..7] LAR coefficients OUT */
 	private short LARc[] = new short[8];
@@ -50,8 +59,9 @@ public class GSMEncoder { /* Every Encoder has a state through completion */
 	/* [13*4] normalized RPE samples OUT */
 	private short xmc[] = new short[13 * 4];
 	
-	/* Reads 160 bytes */
-	private int[] input_signal = new int[160]; /* [0..159] OUT */
+	/* LSBitFirst (microsoft) bit accumulator, frames are not byte aligned */
+	private long bitBuffer;
+	private int bitCount;
 	
 	private GSMFrameFormat gsmFrameFormat;
 	
@@ -79,183 +89,203 @@ public class GSMEncoder { /* Every Encoder has a state through completion */
 	 *                 by this method.
 	 */
 	public void encode(short[] asBuffer, byte[] abFrame) {
-		BitEncoder bitEncoder;
+		encode(asBuffer, 0, abFrame, 0);
+	}
+	
+	/**
+	 * Encodes a block of data without allocating.
+	 * 
+	 * @param asBuffer     the data to encode in PCM signed 16 bit format
+	 * @param nBufferStart the index of the first of 160 (toast) or 320 (microsoft)
+	 *                     samples to encode
+	 * @param abFrame      the array to write the encoded frame to
+	 * @param nFrameStart  the index to write the 33 (toast) or 65 (microsoft)
+	 *                     bytes at
+	 */
+	public void encode(short[] asBuffer, int nBufferStart, byte[] abFrame, int nFrameStart) {
 		switch (gsmFrameFormat) {
 			case TOAST:
-				bitEncoder = new BitEncoder(abFrame, AllocationMode.MSBitFirst);
-				bitEncoder.addBits(0xD, 4);
+				Gsm_Coder_java(asBuffer, nBufferStart);
+				implodeFrameToast(abFrame, nFrameStart);
 				break;
 			case MICROSOFT:
-				bitEncoder = new BitEncoder(abFrame, AllocationMode.LSBitFirst);
+				this.bitBuffer = 0;
+				this.bitCount = 0;
+				Gsm_Coder_java(asBuffer, nBufferStart);
+				nFrameStart = implodeFrameMicrosoft(abFrame, nFrameStart);
+				Gsm_Coder_java(asBuffer, nBufferStart + 160);
+				implodeFrameMicrosoft(abFrame, nFrameStart);
 				break;
 			default:
 				throw new RuntimeException("Unhandled GSM frame format");
 		}
-		for (int i = 0; i < 160; i++) {
-			input_signal[i] = asBuffer[i];
+	}
+	
+	/**
+	 * Continues encoding where another encoder left off by copying its state.
+	 * 
+	 * @param other the encoder to copy the state from
+	 */
+	public void copyStateFrom(GSMEncoder other) {
+		System.arraycopy(other.dp0, 0, this.dp0, 0, this.dp0.length);
+		System.arraycopy(other.bc, 0, this.bc, 0, this.bc.length);
+		this.z1 = other.z1;
+		this.L_z2 = other.L_z2;
+		this.mp = other.mp;
+		this.sh_term_Obj.copyAnalysisStateFrom(other.sh_term_Obj);
+	}
+	
+	/**
+	 * Checks whether both encoders would produce the same frames from the same
+	 * input from now on. Allows encoding a stream in chunks, each encoder starting
+	 * a few frames early until its state converged with the one of the previous chunk.
+	 * 
+	 * @param other the encoder to compare to
+	 * @return whether the state affecting future frames is identical
+	 */
+	public boolean hasSameState(GSMEncoder other) {
+		return this.z1 == other.z1 && this.L_z2 == other.L_z2 && this.mp == other.mp
+				&& Arrays.equals(this.dp0, 0, 120, other.dp0, 0, 120) /* [120..279] is rewritten before being read */
+				&& Arrays.equals(this.bc, other.bc) /* a gain code below the first level keeps the previous frame's */
+				&& this.sh_term_Obj.hasSameAnalysisState(other.sh_term_Obj);
+	}
+	
+	/*
+	 * The toast layout is byte aligned per section: magic and LARc take 40 bits,
+	 * each subframe (Nc, bc, Mc, xmaxc, 13 * xmc) takes 56 bits. Each section is
+	 * packed MSBitFirst into a long and written as a whole.
+	 */
+	private void implodeFrameToast(byte[] c, int i) {
+		long bits = 0xD;
+		bits = bits << 6 | LARc[0] & 0x3F;
+		bits = bits << 6 | LARc[1] & 0x3F;
+		bits = bits << 5 | LARc[2] & 0x1F;
+		bits = bits << 5 | LARc[3] & 0x1F;
+		bits = bits << 4 | LARc[4] & 0xF;
+		bits = bits << 4 | LARc[5] & 0xF;
+		bits = bits << 3 | LARc[6] & 0x7;
+		bits = bits << 3 | LARc[7] & 0x7;
+		i = writeBits(c, i, bits, 5);
+		
+		for (int k = 0; k < 4; k++) {
+			i = writeBits(c, i, packSubframe(k), 7);
+		}
+	}
+	
+	private long packSubframe(int k) {
+		long bits = Nc[k] & 0x7F;
+		bits = bits << 2 | bc[k] & 0x3;
+		bits = bits << 2 | Mc[k] & 0x3;
+		bits = bits << 6 | xmaxc[k] & 0x3F;
+		for (int i = k * 13, end = i + 13; i < end; i++) {
+			bits = bits << 3 | xmc[i] & 0x7;
+		}
+		return bits;
+	}
+	
+	private static int writeBits(byte[] c, int i, long bits, int bytes) {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			c[i++] = (byte) (bits >>> shift);
 		}
-		Gsm_Coder_java();
-		implodeFrameGeneric(bitEncoder);
+		return i;
+	}
+	
+	/*
+	 * The microsoft layout packs two frames of 260 bits each LSBitFirst, the
+	 * second one starting in the middle of a byte. Sections are packed into a long
+	 * (first field in the lowest bits) and appended to the bit accumulator, full
+	 * bytes are flushed after each section.
+	 */
+	private int implodeFrameMicrosoft(byte[] c, int i) {
+		long bits = LARc[0] & 0x3F;
+		bits |= (long) (LARc[1] & 0x3F) << 6;
+		bits |= (long) (LARc[2] & 0x1F) << 12;
+		bits |= (long) (LARc[3] & 0x1F) << 17;
+		bits |= (long) (LARc[4] & 0xF) << 22;
+		bits |= (long) (LARc[5] & 0xF) << 26;
+		bits |= (long) (LARc[6] & 0x7) << 30;
+		bits |= (long) (LARc[7] & 0x7) << 33;
+		i = appendBits(c, i, bits, 36);
 		
-		if (gsmFrameFormat == GSMFrameFormat.MICROSOFT) {
-			for (int i = 0; i < 160; i++) {
-				input_signal[i] = asBuffer[i + 160];
+		for (int k = 0; k < 4; k++) {
+			bits = Nc[k] & 0x7F;
+			bits |= (bc[k] & 0x3) << 7;
+			bits |= (Mc[k] & 0x3) << 9;
+			bits |= (xmaxc[k] & 0x3F) << 11;
+			for (int j = 0, shift = 17; j < 13; j++, shift += 3) {
+				bits |= (long) (xmc[k * 13 + j] & 0x7) << shift;
 			}
-			Gsm_Coder_java();
-			implodeFrameGeneric(bitEncoder);
+			i = appendBits(c, i, bits, 56);
 		}
+		return i;
 	}
 	
-	private void implodeFrameGeneric(BitEncoder bitEncoder) {
-		bitEncoder.addBits(LARc[0], 6);
-		bitEncoder.addBits(LARc[1], 6);
-		bitEncoder.addBits(LARc[2], 5);
-		bitEncoder.addBits(LARc[3], 5);
-		bitEncoder.addBits(LARc[4], 4);
-		bitEncoder.addBits(LARc[5], 4);
-		bitEncoder.addBits(LARc[6], 3);
-		bitEncoder.addBits(LARc[7], 3);
-		
-		bitEncoder.addBits(Nc[0], 7);
-		bitEncoder.addBits(bc[0], 2);
-		bitEncoder.addBits(Mc[0], 2);
-		bitEncoder.addBits(xmaxc[0], 6);
-		bitEncoder.addBits(xmc[0], 3);
-		bitEncoder.addBits(xmc[1], 3);
-		bitEncoder.addBits(xmc[2], 3);
-		bitEncoder.addBits(xmc[3], 3);
-		bitEncoder.addBits(xmc[4], 3);
-		bitEncoder.addBits(xmc[5], 3);
-		bitEncoder.addBits(xmc[6], 3);
-		bitEncoder.addBits(xmc[7], 3);
-		bitEncoder.addBits(xmc[8], 3);
-		bitEncoder.addBits(xmc[9], 3);
-		bitEncoder.addBits(xmc[10], 3);
-		bitEncoder.addBits(xmc[11], 3);
-		bitEncoder.addBits(xmc[12], 3);
-		
-		bitEncoder.addBits(Nc[1], 7);
-		bitEncoder.addBits(bc[1], 2);
-		bitEncoder.addBits(Mc[1], 2);
-		bitEncoder.addBits(xmaxc[1], 6);
-		bitEncoder.addBits(xmc[13], 3);
-		bitEncoder.addBits(xmc[14], 3);
-		bitEncoder.addBits(xmc[15], 3);
-		bitEncoder.addBits(xmc[16], 3);
-		bitEncoder.addBits(xmc[17], 3);
-		bitEncoder.addBits(xmc[18], 3);
-		bitEncoder.addBits(xmc[19], 3);
-		bitEncoder.addBits(xmc[20], 3);
-		bitEncoder.addBits(xmc[21], 3);
-		bitEncoder.addBits(xmc[22], 3);
-		bitEncoder.addBits(xmc[23], 3);
-		bitEncoder.addBits(xmc[24], 3);
-		bitEncoder.addBits(xmc[25], 3);
-		
-		bitEncoder.addBits(Nc[2], 7);
-		bitEncoder.addBits(bc[2], 2);
-		bitEncoder.addBits(Mc[2], 2);
-		bitEncoder.addBits(xmaxc[2], 6);
-		bitEncoder.addBits(xmc[26], 3);
-		bitEncoder.addBits(xmc[27], 3);
-		bitEncoder.addBits(xmc[28], 3);
-		bitEncoder.addBits(xmc[29], 3);
-		bitEncoder.addBits(xmc[30], 3);
-		bitEncoder.addBits(xmc[31], 3);
-		bitEncoder.addBits(xmc[32], 3);
-		bitEncoder.addBits(xmc[33], 3);
-		bitEncoder.addBits(xmc[34], 3);
-		bitEncoder.addBits(xmc[35], 3);
-		bitEncoder.addBits(xmc[36], 3);
-		bitEncoder.addBits(xmc[37], 3);
-		bitEncoder.addBits(xmc[38], 3);
-		
-		bitEncoder.addBits(Nc[3], 7);
-		bitEncoder.addBits(bc[3], 2);
-		bitEncoder.addBits(Mc[3], 2);
-		bitEncoder.addBits(xmaxc[3], 6);
-		bitEncoder.addBits(xmc[39], 3);
-		bitEncoder.addBits(xmc[40], 3);
-		bitEncoder.addBits(xmc[41], 3);
-		bitEncoder.addBits(xmc[42], 3);
-		bitEncoder.addBits(xmc[43], 3);
-		bitEncoder.addBits(xmc[44], 3);
-		bitEncoder.addBits(xmc[45], 3);
-		bitEncoder.addBits(xmc[46], 3);
-		bitEncoder.addBits(xmc[47], 3);
-		bitEncoder.addBits(xmc[48], 3);
-		bitEncoder.addBits(xmc[49], 3);
-		bitEncoder.addBits(xmc[50], 3);
-		bitEncoder.addBits(xmc[51], 3);
+	private int appendBits(byte[] c, int i, long bits, int count) {
+		long buffer = this.bitBuffer | bits << this.bitCount;
+		count += this.bitCount;
+		for (; count >= 8; count -= 8, buffer >>>= 8) {
+			c[i++] = (byte) buffer;
+		}
+		this.bitBuffer = buffer;
+		this.bitCount = count;
+		return i;
 	}
 	
 	/**
 	 * Main part of encoding.
 	 * 
 	 * <p>
-	 * Uses array input_signal as input (160 samples are expected there).
+	 * Uses 160 samples of input starting at offset as input.
 	 * </p>
 	 * 
 	 * <p>
 	 * Output is in the arrays xmc, LARc, etc.
 	 * </p>
 	 */
-	private void Gsm_Coder_java() {
-		int xmc_point = 0;
-		int Nc_bc_index = 0;
-		int xmaxc_Mc_index = 0;
-		int dp_dpp_point_dp0 = 120;
+	private void Gsm_Coder_java(short[] input, int offset) {
+		short[] so = this.so;
+		short[] e = this.e;
+		short[] dp = this.dp0;
 		
-		// short[] ep = new short[40];
-		short[] e = new short[50];
-		short[] so = new short[160];
-		
-		Gsm_Preprocess(so);
+		Gsm_Preprocess(input, offset, so);
 		lpc_Obj.Gsm_LPC_Analysis(so, LARc);
-		sh_term_Obj.Gsm_Short_Term_Analysis_Filter(g_s, LARc, so);
-		
-		short[] dp = g_s.getDp0();
-		short[] dpp = dp;
+		sh_term_Obj.Gsm_Short_Term_Analysis_Filter(LARc, so);
 		
-		for (int k = 0; k <= 3; k++, xmc_point += 13) {
+		for (int k = 0, dp_dpp_point_dp0 = 120; k <= 3; k++, dp_dpp_point_dp0 += 40) {
 			lg_term_Obj.Gsm_Long_Term_Predictor(so, /* d [0..39] IN */
 					k * 40, /* so entry point */
 					e, /* e+5 [0..39] OUT */
-					dp, /* Referance to Gsm_State dp0 */
-					dpp, /* Referance to Gsm_State dp0 */
+					dp, /* Referance to dp0 */
+					dp, /* Referance to dp0 */
 					dp_dpp_point_dp0, /* Where to start the dp0 ref */
 					Nc, /* [0..3] coded LTP gain OUT */
 					bc, /* [0..3] RPE grid selection OUT */
-					Nc_bc_index++ /* The current referance point for Nc & bc */
+					k /* The current referance point for Nc & bc */
 			);
 			
 			rpe_Obj.Gsm_RPE_Encoding(e, /* e + 5 ][0..39][ IN/OUT */
 					xmaxc, /* [0..3] Coded maximum amplitude OUT */
 					Mc, /* [0..3] coded LTP gain OUT */
-					xmaxc_Mc_index++, /* The current referance point */
+					k, /* The current referance point */
 					xmc, /* [13*4] normalized RPE samples OUT */
-					xmc_point /* The current referance point for xmc */);
+					k * 13 /* The current referance point for xmc */);
 			
 			for (int i = 0; i <= 39; i++) {
-				dp[i + dp_dpp_point_dp0] = GSMMath.GSM_ADD(e[5 + i], dpp[i + dp_dpp_point_dp0]);
+				dp[i + dp_dpp_point_dp0] = GSMMath.GSM_ADD(e[5 + i], dp[i + dp_dpp_point_dp0]);
 			}
-			
-			g_s.setDp0(dp);
-			dp_dpp_point_dp0 += 40;
 		}
 		
-		for (int i = 0; i < 120; i++) {
-			g_s.setDp0Indexed(i, g_s.getDp0Indexed((160 + i)));
-		}
+		System.arraycopy(dp, 160, dp, 0, 120);
 	}
 	
-	private void Gsm_Preprocess(short[] so) /* [0..159] IN/OUT */
+	private void Gsm_Preprocess(short[] input, int index, /* [0..159] IN */
+			short[] so) /* [0..159] OUT */
 			throws IllegalArgumentException {
-		int index = 0, so_index = 0;
+		int so_index = 0;
 		
-		short z1 = g_s.getZ1();
-		int L_z2 = g_s.getL_z2();
-		int mp = g_s.getMp();
+		short z1 = this.z1;
+		int L_z2 = this.L_z2;
+		int mp = this.mp;
 		
 		short s1 = 0, msp = 0, lsp = 0, SO = 0;
 		int L_s2 = 0, L_temp = 0;
@@ -267,7 +297,7 @@ public class GSMEncoder { /* Every Encoder has a state through completion */
 			/*
 			 * 4.2.1 Downscaling of the input signal
 			 */
-			SO = (short) (GSMMath.SASR((short) input_signal[index++], (short) 3) << 2);
+			SO = (short) (GSMMath.SASR(input[index++], (short) 3) << 2);
 			
 			if (!(SO >= -0x4000)) { /* downscaled by */
 				throw new IllegalArgumentException(
@@ -328,8 +358,8 @@ public class GSMEncoder { /* Every Encoder has a state through completion */
 			mp = GSMMath.SASR(L_temp, 15);
 			so[so_index++] = GSMMath.GSM_ADD((short) mp, msp);
 		}
-		g_s.setZ1(z1);
-		g_s.setL_z2(L_z2);
-		g_s.setMp(mp);
+		this.z1 = z1;
+		this.L_z2 = L_z2;
+		this.mp = mp;
 	}
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The multiply-accumulate kernels of the encoder: the LTP cross-correlation
+ * and the LPC autocorrelation. This is the scalar implementation,
+ * {@link GSMVectorKernels} is used instead if the vector api is available
+ * (run with {@code --add-modules jdk.incubator.vector}, disable with
+ * {@code -Dstitz.gsm.vector=false}). Both produce identical results, int
+ * arithmetic wraps the same way in vector lanes.
+ * 
+ * <p>
+ * Instances hold scratch arrays, use one per encoder.
+ * </p>
+ */
+class GSMKernels {
+	private static final Logger LOGGER = LoggerFactory.getLogger(GSMKernels.class);
+	static final boolean VECTOR = vectorSupported();
+	
+	/** number of LTP lags, 40..120 */
+	static final int LAGS = 81;
+	
+	static GSMKernels create() {
+		return VECTOR ? new GSMVectorKernels() : new GSMKernels();
+	}
+	
+	/**
+	 * Cross-correlation of wt[0..39] with dp[dp_start - lambda ..] for lambda in
+	 * 40..120, L_result[lambda - 40] = sum(wt[k] * dp[dp_start - lambda + k]).
+	 */
+	void crossCorrelation(short[] wt, short[] dp, int dp_start, int[] L_result) {
+		/*
+		 * Four lags per pass share the loads of wt[k], lag 120 on its own
+		 * (dp[dp_start - 123] would be out of range for the first subframe).
+		 */
+		for (int lambda = 40; lambda < 120; lambda += 4) {
+			int L_result0 = 0, L_result1 = 0, L_result2 = 0, L_result3 = 0;
+			int dp_i = dp_start - lambda;
+			
+			for (int k = 0; k <= 39; k++) {
+				int w = wt[k];
+				L_result0 += w * dp[dp_i + k];
+				L_result1 += w * dp[dp_i + k - 1];
+				L_result2 += w * dp[dp_i + k - 2];
+				L_result3 += w * dp[dp_i + k - 3];
+			}
+			
+			L_result[lambda - 40] = L_result0;
+			L_result[lambda - 39] = L_result1;
+			L_result[lambda - 38] = L_result2;
+			L_result[lambda - 37] = L_result3;
+		}
+		
+		int L_result120 = 0;
+		for (int k = 0; k <= 39; k++) {
+			L_result120 += wt[k] * dp[dp_start - 120 + k];
+		}
+		L_result[80] = L_result120;
+	}
+	
+	/**
+	 * Autocorrelation of s[0..159] for lags 0..8, L_ACF[k] = sum(s[i] * s[i - k])
+	 * (not yet doubled).
+	 */
+	void autocorrelation(short[] s, int[] L_ACF) {
+		for (int k = 0; k <= 8; k++) {
+			int sum = 0;
+			for (int i = k; i < 160; i++) {
+				sum += s[i] * s[i - k];
+			}
+			L_ACF[k] = sum;
+		}
+	}
+	
+	private static boolean vectorSupported() {
+		if (!Boolean.parseBoolean(System.getProperty("stitz.gsm.vector", "true")))
+			return false;
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+			LOGGER.debug("jdk.incubator.vector not available, using scalar gsm kernels");
+			return false;
+		}
+		boolean supported;
+		try { // only link the vector implementation once the module is known to be there
+			supported = (boolean) Class.forName("dev.cheos.stitz.gsm.GSMVectorKernels").getDeclaredMethod("isSupported").invoke(null);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			LOGGER.warn("Vector gsm kernels unavailable, using scalar kernels", e);
+			return false;
+		}
+		LOGGER.debug("Using {} gsm kernels", supported ? "vector" : "scalar");
+		return supported;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * This file is part of the GSM 6.10 audio decoder library for Java
+ * Copyright (c) 1998 Steven Pickles (pix@test.at)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *
+ * This software is a port of the GSM Library provided by
+ * Jutta Degener (jutta@cs.tu-berlin.de) and
+ * Carsten Bormann (cabo@cs.tu-berlin.de),
+ * Technische Universitaet Berlin
+ *
+ * (https://www.gnu.org/licenses/lgpl-3.0.html)
+ */
+package dev.cheos.stitz.gsm;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link GSMKernels} using the vector api. Samples are widened to int once per
+ * call, lanes then compute in int exactly like the scalar code.
+ */
+final class GSMVectorKernels extends GSMKernels {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+	
+	/** dp reversed, rdp[m] = dp[dp_start - m], padded with zeros for lags beyond 120 */
+	private final int[] rdp = new int[40 + LAGS + LANES];
+	private final int[] L_result = new int[LAGS + LANES];
+	/** s widened, padded with zeros so s[i + k] past the end reads 0 */
+	private final int[] si = new int[160 + 8 + LANES];
+	
+	static boolean isSupported() {
+		return LANES >= 8 && 160 % LANES == 0;
+	}
+	
+	/*
+	 * Vectorized across lags: lane j of the block starting at lambda accumulates
+	 * wt[k] * dp[dp_start - (lambda + j) + k] = wt[k] * rdp[lambda + j - k], a
+	 * contiguous load for every k.
+	 */
+	@Override
+	void crossCorrelation(short[] wt, short[] dp, int dp_start, int[] L_result) {
+		int[] rdp = this.rdp;
+		for (int m = 1; m <= 120; m++) {
+			rdp[m] = dp[dp_start - m];
+		}
+		
+		int[] out = this.L_result;
+		for (int lambda = 40; lambda <= 120; lambda += LANES) {
+			IntVector acc = IntVector.zero(SPECIES);
+			for (int k = 0; k <= 39; k++) {
+				acc = IntVector.fromArray(SPECIES, rdp, lambda - k).mul(wt[k]).add(acc);
+			}
+			acc.intoArray(out, lambda - 40);
+		}
+		System.arraycopy(out, 0, L_result, 0, LAGS);
+	}
+	
+	@Override
+	void autocorrelation(short[] s, int[] L_ACF) {
+		int[] si = this.si;
+		for (int i = 0; i < 160; i++) {
+			si[i] = s[i];
+		}
+		
+		for (int k = 0; k <= 8; k++) {
+			IntVector acc = IntVector.zero(SPECIES);
+			for (int i = 0; i < 160; i += LANES) {
+				acc = IntVector.fromArray(SPECIES, si, i + k).mul(IntVector.fromArray(SPECIES, si, i)).add(acc);
+			}
+			L_ACF[k] = acc.reduceLanes(VectorOperators.ADD);
+		}
+	}
+}
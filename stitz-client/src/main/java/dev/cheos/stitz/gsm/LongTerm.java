@@ -29,6 +29,10 @@
 package dev.cheos.stitz.gsm;
 
 public class LongTerm {
+	private short[] wt = new short[40];
+	private int[] L_results = new int[GSMKernels.LAGS];
+	private GSMKernels kernels = GSMKernels.create();
+	
 	public void Gsm_Long_Term_Predictor(short[] d, /* [0..39] residual signal IN */
 			int k, /* d entry point, which 40 */
 			short[] e, /* [0..39] add 5 to index OUT */
@@ -49,7 +53,7 @@ public class LongTerm {
 		
 		int lambda = 0;
 		short Nc = 0;
-		short[] wt = new short[40];
+		short[] wt = this.wt;
 		
 		int L_max = 0, L_power = 0;
 		short R = 0, S = 0, dmax = 0, scal = 0;
@@ -103,93 +107,11 @@ public class LongTerm {
 		L_max = 0;
 		Nc = 40; /* index for the maximum cross-correlation */
 		
+		kernels.crossCorrelation(wt, dp, dp_start, L_results);
 		for (lambda = 40; lambda <= 120; lambda++) {
-			int L_result = 0;
-			int step = 1;
-			
-			L_result = STEP(0, wt, dp, dp_start - lambda);
-			L_result += STEP(1, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(2, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(3, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(4, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(5, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(6, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(7, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(8, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(9, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(10, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(11, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(12, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(13, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(14, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(15, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(16, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(17, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(18, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(19, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(20, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(21, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(22, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(23, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(24, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(25, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(26, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(27, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(28, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(29, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(30, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(31, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(32, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(33, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(34, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(35, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(36, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(37, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(38, wt, dp, step + dp_start - lambda);
-			step++;
-			L_result += STEP(39, wt, dp, step + dp_start - lambda);
-			step++;
-			
-			if (L_result > L_max) {
+			if (L_results[lambda - 40] > L_max) {
 				Nc = (short) lambda;
-				L_max = L_result;
+				L_max = L_results[lambda - 40];
 			}
 		}
 		
@@ -258,10 +180,6 @@ public class LongTerm {
 		}
 	}
 	
-	private int STEP(int k, short[] wt, short[] dp, int dp_i) {
-		return (wt[k] * dp[dp_i]);
-	}
-	
 	/*
 	 * In this part, we have to decode the bc parameter to compute the samples of
 	 * the estimate dpp[0..39]. The decoding of bc needs the use of table 4.3b. The
@@ -31,6 +31,10 @@ package dev.cheos.stitz.gsm;
 public class Lpc
 {
     private int L_ACF[] = new int[9];
+    private GSMKernels kernels = GSMKernels.create();
+    private short[] ACF = new short[9]; /* 0..8 */
+    private short[] P = new short[9]; /* 0..8 */
+    private short[] K = new short[9]; /* 2..8 */
 
     public void Gsm_LPC_Analysis(short[] so, /* 0..159 signals IN/OUT */
     short[] LARc) /* 0..7 LARc's OUT */
@@ -44,7 +48,6 @@ public class Lpc
     private void Autocorrelation(short[] so) /* [0..159] IN/OUT */
     throws IllegalArgumentException
     {
-        int i = 0, sp_index = 0;
         short temp = 0, smax = 0, scalauto = 0;
 
         /*
@@ -128,81 +131,7 @@ public class Lpc
         /*
          * Compute the L_ACF[..].
          */
-        short[] sp = so;
-        short sl = sp[sp_index];
-
-        // Zero out L_ACF
-        int[] temp_arr = { 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-        System.arraycopy(temp_arr, 0, L_ACF, 0, L_ACF.length);
-
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-
-        sl = sp[++sp_index];
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-        L_ACF[1] += sl * sp[(sp_index - 1)];
-
-        sl = sp[++sp_index];
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-        L_ACF[1] += sl * sp[(sp_index - 1)];
-        L_ACF[2] += sl * sp[(sp_index - 2)];
-
-        sl = sp[++sp_index];
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-        L_ACF[1] += sl * sp[(sp_index - 1)];
-        L_ACF[2] += sl * sp[(sp_index - 2)];
-        L_ACF[3] += sl * sp[(sp_index - 3)];
-
-        sl = sp[++sp_index];
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-        L_ACF[1] += sl * sp[(sp_index - 1)];
-        L_ACF[2] += sl * sp[(sp_index - 2)];
-        L_ACF[3] += sl * sp[(sp_index - 3)];
-        L_ACF[4] += sl * sp[(sp_index - 4)];
-
-        sl = sp[++sp_index];
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-        L_ACF[1] += sl * sp[(sp_index - 1)];
-        L_ACF[2] += sl * sp[(sp_index - 2)];
-        L_ACF[3] += sl * sp[(sp_index - 3)];
-        L_ACF[4] += sl * sp[(sp_index - 4)];
-        L_ACF[5] += sl * sp[(sp_index - 5)];
-
-        sl = sp[++sp_index];
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-        L_ACF[1] += sl * sp[(sp_index - 1)];
-        L_ACF[2] += sl * sp[(sp_index - 2)];
-        L_ACF[3] += sl * sp[(sp_index - 3)];
-        L_ACF[4] += sl * sp[(sp_index - 4)];
-        L_ACF[5] += sl * sp[(sp_index - 5)];
-        L_ACF[6] += sl * sp[(sp_index - 6)];
-
-        sl = sp[++sp_index];
-        L_ACF[0] += sl * sp[(sp_index - 0)];
-        L_ACF[1] += sl * sp[(sp_index - 1)];
-        L_ACF[2] += sl * sp[(sp_index - 2)];
-        L_ACF[3] += sl * sp[(sp_index - 3)];
-        L_ACF[4] += sl * sp[(sp_index - 4)];
-        L_ACF[5] += sl * sp[(sp_index - 5)];
-        L_ACF[6] += sl * sp[(sp_index - 6)];
-        L_ACF[7] += sl * sp[(sp_index - 7)];
-
-        sl = sp[++sp_index];
-
-        for (i = sp_index; i < 160; ++i)
-        {
-
-            sl = sp[i];
-
-            L_ACF[0] += sl * sp[(i - 0)];
-            L_ACF[1] += sl * sp[(i - 1)];
-            L_ACF[2] += sl * sp[(i - 2)];
-            L_ACF[3] += sl * sp[(i - 3)];
-            L_ACF[4] += sl * sp[(i - 4)];
-            L_ACF[5] += sl * sp[(i - 5)];
-            L_ACF[6] += sl * sp[(i - 6)];
-            L_ACF[7] += sl * sp[(i - 7)];
-            L_ACF[8] += sl * sp[(i - 8)];
-        }
+        kernels.autocorrelation(so, L_ACF);
 
         for (int k = 0; k < 9; k++)
         {
@@ -234,9 +163,9 @@ public class Lpc
         short temp = 0;
         int r_index = 0;
 
-        short[] ACF = new short[9]; /* 0..8 */
-        short[] P = new short[9]; /* 0..8 */
-        short[] K = new short[9]; /* 2..8 */
+        short[] ACF = this.ACF;
+        short[] P = this.P;
+        short[] K = this.K;
 
         /*
          * Schur recursion with 16 bits arithmetic.
@@ -39,6 +39,8 @@ public class Rpe {
 	private static final int DECODE = 1;
 	
 	private short[] x = new short[40]; /* signal [0..39] OUT */
+	private short[] xM = new short[13];
+	private short[] xMp = new short[13];
 	
 	public void Gsm_RPE_Encoding(short[] e, /* -5..-1][0..39][40..44 IN/OUT */
 			short[] xmaxc, /* [0..3] Coded maximum amplitude OUT */
@@ -46,8 +48,8 @@ public class Rpe {
 			int xmaxc_Mc_index, /* Ref. point for xmaxc and Mc */
 			short[] xMc, /* [0..12] OUT */
 			int xMc_index /* Ref. for xmc, '+=13' */) {
-		short[] xM = new short[13];
-		short[] xMp = new short[13];
+		short[] xM = this.xM;
+		short[] xMp = this.xMp;
 		
 		Weighting_filter(e); /* Sets up the private data member 'x[40]' */
 		RPE_grid_selection(xM, Mc, xmaxc_Mc_index); /* Sets up xM[13] */
@@ -343,7 +345,7 @@ public class Rpe {
 			int xmc_start, /* Starting point for the three bit part of xmc */
 			short[] xmc, /* [0..12], 3 bits IN */
 			short[] erp /* [0..39] OUT */) {
-		short xMp[] = new short[13];
+		short[] xMp = this.xMp;
 		
 		/* exp_out and mant_out are modified in this method */
 		APCM_quantization_xmaxc_to_exp_mant(xmaxc_elem, DECODE);
@@ -28,50 +28,60 @@
 
 package dev.cheos.stitz.gsm;
 
+import java.util.Arrays;
+
 public class ShortTerm {
-	public void Gsm_Short_Term_Analysis_Filter(GSMState S, short[] LARc, /* coded log area ratio [0..7] IN */
+	/* analysis state, one instance per encoder */
+	private short[] u = new short[8];
+	private short[][] LARpp = new short[2][8];
+	private int j;
+	
+	private short[] LARp = new short[8];
+	
+	void copyAnalysisStateFrom(ShortTerm other) {
+		System.arraycopy(other.u, 0, this.u, 0, 8);
+		System.arraycopy(other.LARpp[0], 0, this.LARpp[0], 0, 8);
+		System.arraycopy(other.LARpp[1], 0, this.LARpp[1], 0, 8);
+		this.j = other.j;
+	}
+	
+	boolean hasSameAnalysisState(ShortTerm other) { /* only the LARpp of the last frame is read again */
+		return Arrays.equals(this.u, other.u)
+				&& Arrays.equals(this.LARpp[this.j ^ 1], other.LARpp[other.j ^ 1]);
+	}
+	
+	public void Gsm_Short_Term_Analysis_Filter(short[] LARc, /* coded log area ratio [0..7] IN */
 			short[] s /* signal [0..159] IN/OUT */
-	) throws ArrayIndexOutOfBoundsException {
-		short[] LARp = new short[8];
-		
-		int array_index0 = S.getJ();
-		int array_index1 = array_index0;
+	) {
+		short[] LARp = this.LARp;
 		
-		array_index1 ^= 1;
-		S.setJ((short) array_index1);
-		
-		if (array_index0 < 0 || array_index0 > 1 || array_index1 < 0 || array_index1 > 1) {
-			throw new ArrayIndexOutOfBoundsException(
-					"Gsm_Short_Term_Synthesis_Filter: Indexing LARpp " + "incorrectly. Should be >= 0 and <= 1");
-		}
-		
-		short[] LARpp_j = S.getLARppIndexed(array_index0);
-		short[] LARpp_j_1 = S.getLARppIndexed(array_index1);
+		short[] LARpp_j = this.LARpp[this.j];
+		short[] LARpp_j_1 = this.LARpp[this.j ^= 1];
 		
 		Decoding_of_the_coded_Log_Area_Ratios(LARc, LARpp_j);
 		
 		Coefficients_0_12(LARpp_j_1, LARpp_j, LARp);
 		LARp_to_rp(LARp);
-		Short_term_analysis_filtering(S, LARp, 13, s, 0);
+		Short_term_analysis_filtering(LARp, 13, s, 0);
 		
 		Coefficients_13_26(LARpp_j_1, LARpp_j, LARp);
 		LARp_to_rp(LARp);
-		Short_term_analysis_filtering(S, LARp, 14, s, 13);
+		Short_term_analysis_filtering(LARp, 14, s, 13);
 		
 		Coefficients_27_39(LARpp_j_1, LARpp_j, LARp);
 		LARp_to_rp(LARp);
-		Short_term_analysis_filtering(S, LARp, 13, s, 27);
+		Short_term_analysis_filtering(LARp, 13, s, 27);
 		
 		Coefficients_40_159(LARpp_j, LARp);
 		LARp_to_rp(LARp);
-		Short_term_analysis_filtering(S, LARp, 120, s, 40);
+		Short_term_analysis_filtering(LARp, 120, s, 40);
 	}
 	
 	public void Gsm_Short_Term_Synthesis_Filter(GSMState S, short[] LARcr, /* received log area ratios [0..7] IN */
 			short[] wt, /* received d [0..159] IN */
 			int[] s /* signal s [0..159] OUT */
 	) throws ArrayIndexOutOfBoundsException {
-		short[] LARp = new short[8];
+		short[] LARp = this.LARp;
 		
 		int array_index0 = S.getJ();
 		int array_index1 = array_index0;
@@ -226,11 +236,11 @@ public class ShortTerm {
 	 * with index k_end (k_start and k_end are defined in 4.2.9.1). This procedure
 	 * also needs to keep the array u[0..7] in memory for each call.
 	 */
-	private void Short_term_analysis_filtering(GSMState S, short[] rp, /* [0..7] IN */
+	private void Short_term_analysis_filtering(short[] rp, /* [0..7] IN */
 			int k_n, /* k_end - k_start */
 			short[] s, /* [0..n-1] IN/OUT */
 			int s_index) {
-		short[] u = S.getU();
+		short[] u = this.u;
 		short di = 0, zzz = 0, ui = 0, sav = 0, rpi = 0;
 		
 		while (k_n != 0) {
@@ -251,7 +261,6 @@ public class ShortTerm {
 			}
 			s[s_index++] = di;
 		}
-		S.setU(u);
 	}
 	
 	public static void Short_term_synthesis_filtering(GSMState S, short[] rrp, /* [0..7] IN */
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz.history;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Append-only log of {@link CallRecord call detail records}, opened on first use and read through memory mappings,
+ * so nothing is read up front however long the history gets.
+ * <p>
+ * The log starts with a 16 byte header (magic, version), followed by records prefixed with their length (2).
+ * An index file next to it holds one 16 byte entry per record: the time the call ended in epoch millis (8, never decreasing),
+ * the hash of the number (4) and the offset of the record (4). Records missing from the index after a crash are indexed again on open.
+ */
+public class CallLog implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CallLog.class);
+	public static final String INDEX_EXTENSION = ".idx";
+	static final int MAGIC = 0x53434452; // SCDR
+	static final short VERSION = 1;
+	static final int HEADER_BYTES = 16, INDEX_ENTRY_BYTES = 16;
+	private final Path path, indexPath;
+	private final ByteBuffer writeBuf = ByteBuffer.allocate(2 + CallRecord.MAX_BYTES);
+	private FileChannel log, index;
+	private MappedByteBuffer logMap, indexMap; // remapped once the files grew
+	private long lastTime;
+	
+	public CallLog(Path path) {
+		this.path = path;
+		this.indexPath = path.resolveSibling(path.getFileName() + INDEX_EXTENSION);
+	}
+	
+	public synchronized void append(CallRecord record) throws IOException {
+		open();
+		ByteBuffer buf = this.writeBuf.clear().position(2);
+		record.write(buf);
+		buf.putShort(0, (short) (buf.position() - 2)).flip();
+		long offset = this.log.size();
+		Preconditions.checkState(offset + buf.limit() <= Integer.MAX_VALUE, "%s is full", this.path);
+		while (buf.hasRemaining())
+			offset += this.log.write(buf, offset);
+		this.lastTime = Math.max(this.lastTime, record.startEpochMillis() + record.durationMillis());
+		writeIndexEntry(this.lastTime, record.number(), (int) (offset - buf.limit()));
+	}
+	
+	public synchronized int size() throws IOException {
+		open();
+		return (int) (this.index.size() / INDEX_ENTRY_BYTES);
+	}
+	
+	/**
+	 * @return up to count of the last calls, newest first
+	 */
+	public synchronized List<CallRecord> recent(int count) throws IOException {
+		map();
+		int size = entries();
+		List<CallRecord> records = new ArrayList<>(Math.min(count, size));
+		for (int i = size - 1; i >= 0 && records.size() < count; i--)
+			records.add(read(i));
+		return records;
+	}
+	
+	/**
+	 * @return calls that ended in the given range, oldest first
+	 * @param toEpochMillis exclusive
+	 */
+	public synchronized List<CallRecord> between(long fromEpochMillis, long toEpochMillis) throws IOException {
+		map();
+		List<CallRecord> records = new ArrayList<>();
+		for (int i = search(fromEpochMillis); i < entries() && this.indexMap.getLong(i * INDEX_ENTRY_BYTES) < toEpochMillis; i++)
+			records.add(read(i));
+		return records;
+	}
+	
+	/**
+	 * @return up to limit of the last calls with the number, newest first
+	 */
+	public synchronized List<CallRecord> byNumber(String number, int limit) throws IOException {
+		map();
+		int hash = number.hashCode();
+		List<CallRecord> records = new ArrayList<>();
+		for (int i = entries() - 1; i >= 0 && records.size() < limit; i--) {
+			if (this.indexMap.getInt(i * INDEX_ENTRY_BYTES + 8) != hash) continue;
+			CallRecord record = read(i);
+			if (record.number().equals(number))
+				records.add(record);
+		}
+		return records;
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.log == null) return;
+		this.log.close();
+		this.index.close();
+		this.log = this.index = null;
+		this.logMap = this.indexMap = null;
+	}
+	
+	private void open() throws IOException {
+		if (this.log != null) return;
+		Files.createDirectories(this.path.toAbsolutePath().getParent());
+		this.log = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.index = FileChannel.open(this.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			if (this.log.size() < HEADER_BYTES) {
+				header.putInt(MAGIC).putShort(VERSION).clear(); // rest reserved
+				this.log.truncate(0).write(header, 0);
+				this.index.truncate(0);
+			} else {
+				this.log.read(header, 0);
+				if (header.getInt(0) != MAGIC)
+					throw new IOException("%s is not a call log".formatted(this.path));
+				if (header.getShort(4) != VERSION)
+					throw new IOException("%s has unsupported version %d".formatted(this.path, header.getShort(4)));
+			}
+			repair();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Drops a partly written record or index entry and indexes records missing from the index.
+	 */
+	private void repair() throws IOException {
+		this.index.truncate(this.index.size() - this.index.size() % INDEX_ENTRY_BYTES);
+		long size = this.log.size(), end = HEADER_BYTES;
+		ByteBuffer buf = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+		while (this.index.size() > 0) {
+			long last = this.index.size() - INDEX_ENTRY_BYTES;
+			this.index.read(buf.clear(), last);
+			long offset = buf.getInt(12) & 0xFFFFFFFFL;
+			this.lastTime = buf.getLong(0);
+			this.log.read(buf.clear().limit(2), offset);
+			if (offset + 2 <= size && offset + 2 + (buf.getShort(0) & 0xFFFF) <= size) {
+				end = offset + 2 + (buf.getShort(0) & 0xFFFF);
+				break;
+			}
+			this.index.truncate(last); // points past the end of the log
+		}
+		if (this.index.size() == 0)
+			this.lastTime = 0;
+		int indexed = 0;
+		while (end + 2 <= size) {
+			this.log.read(buf.clear().limit(2), end);
+			int length = buf.getShort(0) & 0xFFFF;
+			if (end + 2 + length > size) break;
+			ByteBuffer record = ByteBuffer.allocate(length);
+			this.log.read(record, end + 2);
+			CallRecord call = CallRecord.read(record.flip());
+			this.lastTime = Math.max(this.lastTime, call.startEpochMillis() + call.durationMillis());
+			writeIndexEntry(this.lastTime, call.number(), (int) end);
+			end += 2 + length;
+			indexed++;
+		}
+		if (end < size)
+			LOGGER.warn("dropping {} bytes of an incomplete record at the end of {}", size - end, this.path);
+		this.log.truncate(end);
+		if (indexed > 0)
+			LOGGER.info("indexed {} calls missing from {}", indexed, this.indexPath);
+	}
+	
+	private void writeIndexEntry(long time, String number, int offset) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES).putLong(time).putInt(number.hashCode()).putInt(offset).flip();
+		long position = this.index.size();
+		while (entry.hasRemaining())
+			position += this.index.write(entry, position);
+	}
+	
+	private void map() throws IOException {
+		open();
+		if (this.logMap == null || this.logMap.capacity() != this.log.size())
+			this.logMap = this.log.map(FileChannel.MapMode.READ_ONLY, 0, this.log.size());
+		if (this.indexMap == null || this.indexMap.capacity() != this.index.size())
+			this.indexMap = this.index.map(FileChannel.MapMode.READ_ONLY, 0, this.index.size());
+	}
+	
+	private int entries() {
+		return this.indexMap.capacity() / INDEX_ENTRY_BYTES;
+	}
+	
+	/**
+	 * @return index of the first entry at or after the time
+	 */
+	private int search(long time) {
+		int lo = 0, hi = entries();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (this.indexMap.getLong(mid * INDEX_ENTRY_BYTES) < time)
+				lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+	
+	private CallRecord read(int entry) {
+		int offset = this.indexMap.getInt(entry * INDEX_ENTRY_BYTES + 12);
+		int length = this.logMap.getShort(offset) & 0xFFFF;
+		return CallRecord.read(this.logMap.slice(offset + 2, length));
+	}
+}
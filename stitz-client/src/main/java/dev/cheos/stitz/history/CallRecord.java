@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz.history;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A call detail record as kept in the {@link CallLog}.
+ * @param durationMillis time talked, 0 if the call was not answered
+ * @param name name shown for the peer at the time of the call, if any
+ */
+public record CallRecord(long startEpochMillis, int durationMillis, Direction direction, Outcome outcome, String number, @Nullable String name) {
+	static final int MAX_STRING_BYTES = 255, MAX_BYTES = 14 + 2 * (1 + MAX_STRING_BYTES);
+	
+	public CallRecord {
+		Preconditions.checkNotNull(direction, "direction");
+		Preconditions.checkNotNull(outcome, "outcome");
+		Preconditions.checkNotNull(number, "number");
+	}
+	
+	public Instant getStart() {
+		return Instant.ofEpochMilli(this.startEpochMillis);
+	}
+	
+	/**
+	 * Record layout: start (8), duration (4), direction (1), outcome (1), then number and name
+	 * as length prefixed (1) UTF-8, cut at {@value #MAX_STRING_BYTES} bytes. An empty name is read as none.
+	 */
+	void write(ByteBuffer buf) {
+		buf.putLong(this.startEpochMillis).putInt(this.durationMillis);
+		buf.put((byte) this.direction.ordinal()).put((byte) this.outcome.ordinal());
+		putString(buf, this.number);
+		putString(buf, this.name == null ? "" : this.name);
+	}
+	
+	static CallRecord read(ByteBuffer buf) {
+		long start = buf.getLong();
+		int duration = buf.getInt();
+		Direction direction = Direction.values()[buf.get()];
+		Outcome outcome = Outcome.values()[buf.get()];
+		String number = getString(buf), name = getString(buf);
+		return new CallRecord(start, duration, direction, outcome, number, name.isEmpty() ? null : name);
+	}
+	
+	private static void putString(ByteBuffer buf, String str) {
+		byte[] bytes = stringBytes(str);
+		buf.put((byte) bytes.length).put(bytes);
+	}
+	
+	private static String getString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.get() & 0xFF];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static byte[] stringBytes(String str) {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= MAX_STRING_BYTES) return bytes;
+		int end = MAX_STRING_BYTES;
+		while ((bytes[end] & 0xC0) == 0x80) end--; // don't cut a character in half
+		return Arrays.copyOf(bytes, end);
+	}
+	
+	
+	public enum Direction { OUTGOING, INCOMING }
+	
+	public enum Outcome {
+		ANSWERED,
+		/** not answered by the peer, or missed if incoming */
+		UNANSWERED,
+		DECLINED
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz.history;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Names by number, kept as a JSON object and read on first use.
+ */
+public class Contacts {
+	private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+	private static final Type TYPE = new TypeToken<LinkedHashMap<String, String>>() { }.getType();
+	private final Path path;
+	private Map<String, String> names;
+	
+	public Contacts(Path path) {
+		this.path = path;
+	}
+	
+	public synchronized @Nullable String getName(String number) throws IOException {
+		return names().get(number);
+	}
+	
+	/**
+	 * @return copy of all contacts, in the order they were added
+	 */
+	public synchronized Map<String, String> getAll() throws IOException {
+		return new LinkedHashMap<>(names());
+	}
+	
+	public synchronized void put(String number, String name) throws IOException {
+		if (name.equals(names().put(number, name))) return;
+		save();
+	}
+	
+	/**
+	 * @return whether there was a contact with the number
+	 */
+	public synchronized boolean remove(String number) throws IOException {
+		if (names().remove(number) == null) return false;
+		save();
+		return true;
+	}
+	
+	private Map<String, String> names() throws IOException {
+		if (this.names == null) {
+			if (Files.notExists(this.path))
+				this.names = new LinkedHashMap<>();
+			else try (Reader reader = Files.newBufferedReader(this.path, StandardCharsets.UTF_8)) {
+				Map<String, String> names = GSON.fromJson(reader, TYPE);
+				this.names = names == null ? new LinkedHashMap<>() : names;
+			} catch (JsonParseException e) {
+				throw new IOException("%s is not a valid contacts file".formatted(this.path), e);
+			}
+		}
+		return this.names;
+	}
+	
+	private void save() throws IOException {
+		Files.createDirectories(this.path.toAbsolutePath().getParent());
+		Path tmp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+		Files.writeString(tmp, GSON.toJson(this.names, TYPE), StandardCharsets.UTF_8);
+		try {
+			Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
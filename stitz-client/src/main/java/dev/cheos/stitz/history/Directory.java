@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz.history;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Call history and contacts, with suggestions for numbers being typed.
+ * Nothing is read until first needed. Storage errors are logged, the client keeps working without history.
+ */
+public class Directory {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Directory.class);
+	private static final int SUGGESTED_CALLS = 1000; // numbers of the most recent calls are suggested, besides all contacts
+	private final CallLog log;
+	private final Contacts contacts;
+	private PrefixTrie<String> numbers; // by number and name words, built on the first search
+	
+	public Directory(Path dir) {
+		this.log = new CallLog(dir.resolve("calls.cdr"));
+		this.contacts = new Contacts(dir.resolve("contacts.json"));
+	}
+	
+	public void record(CallRecord record) {
+		try {
+			this.log.append(record);
+		} catch (IOException e) {
+			LOGGER.error("error recording call", e);
+			return;
+		}
+		synchronized (this) {
+			if (this.numbers != null)
+				this.numbers.put(record.number(), record.number());
+		}
+	}
+	
+	public List<CallRecord> getRecentCalls(int count) {
+		try {
+			return this.log.recent(count);
+		} catch (IOException e) {
+			LOGGER.error("error reading call history", e);
+			return List.of();
+		}
+	}
+	
+	public @Nullable String getContactName(String number) {
+		try {
+			return this.contacts.getName(number);
+		} catch (IOException e) {
+			LOGGER.error("error reading contacts", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @param fallback name to use if the number is no contact, e.g. as given by the peer
+	 * @return the contact name, else the fallback, else the number
+	 */
+	public String getDisplayName(String number, @Nullable String fallback) {
+		String name = getContactName(number);
+		if (name != null) return name;
+		return fallback == null || fallback.isBlank() ? number : fallback;
+	}
+	
+	public Map<String, String> getContacts() {
+		try {
+			return this.contacts.getAll();
+		} catch (IOException e) {
+			LOGGER.error("error reading contacts", e);
+			return Map.of();
+		}
+	}
+	
+	public synchronized void setContact(String number, String name) {
+		try {
+			this.contacts.put(number, name);
+			this.numbers = null;
+		} catch (IOException e) {
+			LOGGER.error("error saving contacts", e);
+		}
+	}
+	
+	public synchronized boolean removeContact(String number) {
+		try {
+			boolean removed = this.contacts.remove(number);
+			this.numbers = null;
+			return removed;
+		} catch (IOException e) {
+			LOGGER.error("error saving contacts", e);
+			return false;
+		}
+	}
+	
+	/**
+	 * @return contacts and recently called numbers whose number or any word of the name starts with the prefix
+	 */
+	public synchronized List<Suggestion> suggest(String prefix, int limit) {
+		if (this.numbers == null)
+			this.numbers = buildIndex();
+		List<Suggestion> suggestions = new ArrayList<>();
+		for (String number : this.numbers.find(prefix.strip(), limit))
+			suggestions.add(new Suggestion(number, getContactName(number)));
+		return suggestions;
+	}
+	
+	private PrefixTrie<String> buildIndex() {
+		PrefixTrie<String> numbers = new PrefixTrie<>();
+		getContacts().forEach((number, name) -> {
+			numbers.put(number, number);
+			numbers.put(name, number);
+			for (String word : name.split("\\s+"))
+				numbers.put(word, number);
+		});
+		for (CallRecord record : getRecentCalls(SUGGESTED_CALLS))
+			numbers.put(record.number(), record.number());
+		return numbers;
+	}
+	
+	
+	public record Suggestion(String number, @Nullable String name) { }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz.history;
+
+import java.util.*;
+
+/**
+ * Maps keys to values and finds all values of keys starting with a prefix, shortest keys first.
+ * Keys are case insensitive. Not thread safe.
+ */
+public class PrefixTrie<V> {
+	private final Node<V> root = new Node<>();
+	
+	public void put(String key, V value) {
+		Node<V> node = this.root;
+		for (int i = 0; i < key.length(); i++)
+			node = node.children.computeIfAbsent(Character.toLowerCase(key.charAt(i)), c -> new Node<>());
+		node.values.add(value);
+	}
+	
+	public void remove(String key, V value) {
+		Node<V> node = this.root;
+		for (int i = 0; i < key.length() && node != null; i++)
+			node = node.children.get(Character.toLowerCase(key.charAt(i)));
+		if (node != null)
+			node.values.remove(value);
+	}
+	
+	/**
+	 * @return distinct values of all keys starting with the prefix, shorter keys first, keys of the same length in key order
+	 */
+	public List<V> find(String prefix, int limit) {
+		Node<V> node = this.root;
+		for (int i = 0; i < prefix.length() && node != null; i++)
+			node = node.children.get(Character.toLowerCase(prefix.charAt(i)));
+		Set<V> found = new LinkedHashSet<>();
+		if (node != null)
+			collect(node, found, limit);
+		return new ArrayList<>(found);
+	}
+	
+	private static <V> void collect(Node<V> node, Set<V> found, int limit) {
+		Deque<Node<V>> queue = new ArrayDeque<>(); // breadth first, so shorter completions come first
+		queue.add(node);
+		while (!queue.isEmpty() && found.size() < limit) {
+			Node<V> current = queue.poll();
+			for (V value : current.values) {
+				found.add(value);
+				if (found.size() >= limit) return;
+			}
+			queue.addAll(current.children.values());
+		}
+	}
+	
+	
+	private static class Node<V> {
+		private final NavigableMap<Character, Node<V>> children = new TreeMap<>();
+		private final Set<V> values = new LinkedHashSet<>();
+	}
+}
@@ -51,6 +51,7 @@ public abstract sealed class CallState implements FrameHandler<FullFrame> {
 				}
 				case LAGRP -> {
 					LOGGER.info("current lag is {}", this.call.getTimestampRelative() - iaxFrame.getTimestamp());
+					this.call.updateRoundTrip(iaxFrame);
 					this.call.markResponded(iaxFrame.getISeqNo());
 					ack(iaxFrame);
 				}
@@ -65,6 +66,7 @@ public abstract sealed class CallState implements FrameHandler<FullFrame> {
 						.iaxSubclass(IaxFrame.Subclass.PONG)
 						.iax(), true);
 				case PONG -> {
+					this.call.updateRoundTrip(iaxFrame);
 					this.call.markResponded(iaxFrame.getISeqNo());
 					ack(iaxFrame);
 				}
@@ -113,7 +115,13 @@ public abstract sealed class CallState implements FrameHandler<FullFrame> {
 		public void handle(FullFrame frame) {
 			IaxCall.Pending pending = (IaxCall.Pending) this.call;
 			switch (pending.getPendingState()) {
-				case SETUP -> { }
+				case SETUP -> {
+					if (frame instanceof IaxFrame iaxFrame && iaxFrame.getIAXSubclass() == IaxFrame.Subclass.HANGUP) { // hung up before it started ringing
+						pending.setDeclinedExt();
+						ack(iaxFrame);
+						return;
+					}
+				}
 				case REJECT_SENT -> {
 					if (frame instanceof IaxFrame iaxFrame && iaxFrame.getIAXSubclass() == IaxFrame.Subclass.ACK) {
 						this.call.markResponded(iaxFrame.getISeqNo());
@@ -251,6 +259,10 @@ public abstract sealed class CallState implements FrameHandler<FullFrame> {
 					this.call.audioListeners.forEach(l -> l.onAudioReceived(data, voiceFrame.getFormat()));
 				ack(voiceFrame);
 				return;
+			} else if (frame instanceof ComfortNoiseFrame cnFrame) {
+				this.call.audioListeners.forEach(l -> l.onComfortNoiseReceived(cnFrame.getLevel()));
+				ack(cnFrame);
+				return;
 			}
 			super.handle(frame);
 		}
@@ -271,6 +283,10 @@ public abstract sealed class CallState implements FrameHandler<FullFrame> {
 					this.call.audioListeners.forEach(l -> l.onAudioReceived(data, voiceFrame.getFormat()));
 				ack(voiceFrame);
 				return;
+			} else if (frame instanceof ComfortNoiseFrame cnFrame) {
+				this.call.audioListeners.forEach(l -> l.onComfortNoiseReceived(cnFrame.getLevel()));
+				ack(cnFrame);
+				return;
 			}
 			super.handle(frame);
 		}
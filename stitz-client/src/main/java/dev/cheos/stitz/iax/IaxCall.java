@@ -23,10 +23,12 @@ package dev.cheos.stitz.iax;
 
 import static dev.cheos.stitz.iax.informationelement.InformationElement.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
@@ -59,8 +61,10 @@ public class IaxCall implements FrameHandler<Frame> {
 	private final AtomicInteger iSeqNo = new AtomicInteger();
 	private final AtomicInteger oSeqNo = new AtomicInteger();
 	private boolean active, audioActive, canSendAudioMiniFrames, hangup;
+	private volatile int roundTripMillis = -1, remoteLossPercent = -1;
+	private volatile MediaSource mediaSource;
 	final List<IaxCallListener> listeners = new LinkedList<>();
-	final List<IaxCallListener.AudioListener> audioListeners = new LinkedList<>();
+	final List<IaxCallListener.AudioListener> audioListeners = new CopyOnWriteArrayList<>(); // iterated per packet, may change mid-call
 	private final Map<Long, FullFrame> awaitingResponse = new ConcurrentHashMap<>();
 	final Frame.Builder frameBuilder;
 	
@@ -108,6 +112,7 @@ public class IaxCall implements FrameHandler<Frame> {
 		this.active = false;
 		this.hangup = true;
 		this.state = this.state.prev();
+		stopMedia();
 		setAudioActive(false);
 		send(this.frameBuilder.fork()
 				.iaxSubclass(IaxFrame.Subclass.HANGUP)
@@ -119,6 +124,7 @@ public class IaxCall implements FrameHandler<Frame> {
 		if (!this.active) return;
 		this.active = false;
 		this.state = this.state.prev();
+		stopMedia();
 		setAudioActive(false);
 		this.listeners.forEach(l -> l.onRemoteHangup(this));
 		this.listeners.forEach(l -> l.onHangup(this));
@@ -181,6 +187,27 @@ public class IaxCall implements FrameHandler<Frame> {
 		return System.currentTimeMillis() - this.startTimestamp;
 	}
 	
+	/**
+	 * @return smoothed round trip time measured from PING/PONG and LAGRQ/LAGRP exchanges in ms, -1 if not yet measured
+	 */
+	public int getRoundTripMillis() {
+		return this.roundTripMillis;
+	}
+	
+	/**
+	 * @return percentage of our frames the peer reported as lost with its last PONG, -1 if never reported
+	 */
+	public int getRemoteLossPercent() {
+		return this.remoteLossPercent;
+	}
+	
+	void updateRoundTrip(IaxFrame reply) { // replies echo the timestamp of the request
+		long sample = getTimestampRelative() - reply.getTimestamp();
+		if (sample >= 0 && sample < IaxConstants.TRANSMISSION_RETRY_TIMEOUT) // ignore replies to frames older than the retransmission window
+			this.roundTripMillis = this.roundTripMillis < 0 ? (int) sample : (int) ((7L * this.roundTripMillis + sample) / 8);
+		reply.<RrLoss>getIEOpt(InformationElementType.RR_LOSS).ifPresent(loss -> this.remoteLossPercent = loss.getPercentage() & 0xFF);
+	}
+	
 	void setSelectedCodec(MediaFrame.Format codec) {
 		Preconditions.checkArgument(codec.getType() == MediaFrame.Format.Type.AUDIO, "Expected codec of type AUDIO, got %s", codec.getType());
 		this.selectedCodec = codec;
@@ -224,9 +251,89 @@ public class IaxCall implements FrameHandler<Frame> {
 	public void sendAudioData(byte[] data) {
 		Preconditions.checkState(this.active && this.audioActive, "Cannot send audio over an inactive call %s", this);
 		if (!canSendAudioMiniFrames) {
-			send(this.frameBuilder.fork().mediaFormat(this.selectedCodec).data(data).voice(), true);
+			send(this.frameBuilder.fork().mediaFormat(this.selectedCodec).data(data.clone()).voice(), true); // kept for retransmission, callers may reuse their buffer
 			this.canSendAudioMiniFrames = true;
 		} else send(this.frameBuilder.data(data).mini());
+		for (IaxCallListener.AudioListener l : this.audioListeners) l.onAudioSent(data, this.selectedCodec);
+	}
+	
+	/**
+	 * Sends audio without copying it, unless it has to be kept for retransmission.
+	 * @param data encoded audio between position and limit, must not be modified until this method returns
+	 */
+	public void sendAudioData(ByteBuffer data) {
+		Preconditions.checkState(this.active && this.audioActive, "Cannot send audio over an inactive call %s", this);
+		if (!canSendAudioMiniFrames) {
+			byte[] copy = new byte[data.remaining()];
+			data.get(data.position(), copy);
+			sendAudioData(copy);
+			return;
+		}
+		send(new MiniFrame(this.srcCallNumber, (int) getTimestampRelative(), data));
+		for (IaxCallListener.AudioListener l : this.audioListeners) l.onAudioSent(data, this.selectedCodec);
+	}
+	
+	/**
+	 * Plays pre-encoded audio into this call instead of the regular audio, replacing anything currently playing.
+	 * Frames are pulled using {@link #sendMedia(int)} by whoever paces the regular audio.
+	 * @param source audio encoded using the selected codec, closed once done playing
+	 */
+	public void play(MediaSource source) {
+		Preconditions.checkArgument(source.getFormat() == this.selectedCodec, "Cannot play %s audio into call %s using %s", source.getFormat(), this, this.selectedCodec);
+		MediaSource previous = this.mediaSource;
+		this.mediaSource = source;
+		if (previous != null) previous.close();
+	}
+	
+	public void stopMedia() {
+		MediaSource source = this.mediaSource;
+		if (source == null) return;
+		this.mediaSource = null;
+		source.close();
+	}
+	
+	public boolean isPlayingMedia() {
+		return this.mediaSource != null;
+	}
+	
+	/**
+	 * Sends the next frames of the playing media as one packet.
+	 * @param frames amount of frames (i.e. 20 ms slots) to send
+	 * @return whether media was sent, false if nothing is playing (anymore)
+	 */
+	public boolean sendMedia(int frames) {
+		MediaSource source = this.mediaSource;
+		if (source == null)
+			return false;
+		ByteBuffer data = source.read(frames);
+		if (data == null) {
+			finishMedia(source);
+			return false;
+		}
+		try {
+			sendAudioData(data);
+		} catch (InternalError e) { // a memory-mapped file was truncated while playing
+			LOGGER.warn("Stopped playing {} into call {}, the media could not be read", source, this, e);
+			finishMedia(source);
+			return false;
+		}
+		return true;
+	}
+	
+	private void finishMedia(MediaSource source) {
+		if (this.mediaSource == source) this.mediaSource = null;
+		source.close();
+		this.listeners.forEach(l -> l.onMediaFinished(this, source));
+	}
+	
+	/**
+	 * Signals silence to the peer, which is expected to generate comfort noise at the given level until voice resumes.
+	 * @param level noise level in -dBov
+	 */
+	public void sendComfortNoise(int level) {
+		Preconditions.checkState(this.active && this.audioActive, "Cannot send comfort noise over an inactive call %s", this);
+		send(this.frameBuilder.fork().noiseLevel(level).comfortNoise(), true);
+		this.canSendAudioMiniFrames = false; // resync timestamps with a full voice frame once voice resumes
 	}
 	
 	boolean send(Frame frame) {
@@ -363,7 +470,7 @@ public class IaxCall implements FrameHandler<Frame> {
 		private final MediaFrame.Format preferredCodec;
 		private final short srcCallNumber, dstCallNumber, samplingRate;
 		private CompletableFuture<IaxCall> pendingCall = new CompletableFuture<>();
-		private boolean declined, accepted;
+		private volatile boolean declined, accepted; // set from the ui while the client's lane moves on
 		private State state = State.SETUP;
 		
 		Pending(
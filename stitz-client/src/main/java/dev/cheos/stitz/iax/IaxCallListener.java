@@ -21,6 +21,8 @@
 
 package dev.cheos.stitz.iax;
 
+import java.nio.ByteBuffer;
+
 import dev.cheos.stitz.iax.frame.Frame;
 import dev.cheos.stitz.iax.frame.MediaFrame;
 
@@ -33,9 +35,16 @@ public interface IaxCallListener {
 	default void onRemoteHangup(IaxCall call) { }
 	default void onBusy(IaxCall call) { }
 	default void onRetransmitError(IaxCall call, Frame frame) { }
+	default void onMediaFinished(IaxCall call, MediaSource source) { }
 	
 	interface AudioListener {
 		default void onSetEnabled(boolean enabled) { }
 		default void onAudioReceived(byte[] data, MediaFrame.Format format) { }
+		default void onAudioSent(byte[] data, MediaFrame.Format format) { }
+		/**
+		 * @param data payload between position and limit, only valid during the call and not to be modified
+		 */
+		default void onAudioSent(ByteBuffer data, MediaFrame.Format format) { }
+		default void onComfortNoiseReceived(int level) { }
 	}
 }
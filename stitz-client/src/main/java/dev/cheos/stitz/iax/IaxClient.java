@@ -55,11 +55,11 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 	private final Map<Short, IaxCall> calls = new ConcurrentHashMap<>();
 	private final Map<Short, IaxCall> callsByDestination = new ConcurrentHashMap<>();
 	private final AtomicInteger callCount = new AtomicInteger();
+	private final IaxRuntime runtime;
+	private final IaxRuntime.Lane lane;
 	private final IaxIOHandler ioHandler;
-	private final ExecutorService packetHandlerService;
 	private final Map<Long, FullFrame> awaitingResponse = new ConcurrentHashMap<>();
-	private final Timer timer;
-	private TimerTask updateTask, stateActionRetryTask;
+	private ScheduledFuture<?> updateTask, stateActionRetryTask;
 	private boolean connected;
 	private LocalDateTime serverDatetime;
 	private InetAddress serverApparentAddr;
@@ -68,13 +68,20 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 	final Frame.Builder frameBuilder;
 	
 	public IaxClient(IaxClient.Configuration config, short srcCallNumber) throws IOException {
+		this(config, srcCallNumber, IaxRuntime.shared());
+	}
+	
+	/**
+	 * @param runtime threads to run on, shared with any other clients using it
+	 */
+	public IaxClient(IaxClient.Configuration config, short srcCallNumber, IaxRuntime runtime) throws IOException {
 		this.config = config;
 		this.srcCallNumber = srcCallNumber;
 		this.name = config.clientName().formatted(srcCallNumber);
-		this.ioHandler = new IaxIOHandler(this);
-		this.packetHandlerService = Executors.newCachedThreadPool();
+		this.runtime = runtime;
+		this.lane = runtime.newLane(this.name);
+		this.ioHandler = new IaxIOHandler(this, runtime);
 		this.state = new ClientState.Unregistered(this);
-		this.timer = new Timer(this.name + "-timer");
 		this.frameBuilder = Frame.builder()
 				.srcCallNumber(this.srcCallNumber)
 				.dstCallNumber((short) 0)
@@ -88,11 +95,10 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 		if (this.connected) return;
 		this.connected = true;
 		
-		this.updateTask = new TimerTask() { @Override public void run() {
+		this.updateTask = this.runtime.schedule(() -> {
 			retransmit();
-			IaxClient.this.calls.values().forEach(IaxCall::update);
-		}};
-		this.timer.scheduleAtFixedRate(this.updateTask, 1000, 1000);
+			this.calls.values().forEach(IaxCall::update);
+		}, 1000, 1000);
 		
 		resetLastRegisteredTimestamp();
 		setState(new ClientState.RegSent(this));
@@ -109,9 +115,9 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 		if (!this.connected) return;
 		this.connected = false;
 		
-		this.updateTask.cancel();
+		this.updateTask.cancel(false);
 		if (this.stateActionRetryTask != null)
-			this.stateActionRetryTask.cancel();
+			this.stateActionRetryTask.cancel(false);
 		this.calls.values().forEach(IaxCall::stop);
 		
 		this.serverRefresh = IaxConstants.CLIENT_REGISTRATION_REFRESH;
@@ -179,13 +185,11 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 		this.listeners.forEach(l -> l.onStateChanged(this, this.state, state));
 		this.state = state;
 		if (this.stateActionRetryTask != null)
-			this.stateActionRetryTask.cancel();
+			this.stateActionRetryTask.cancel(false);
 		this.stateActionRetryTask = null;
 		
-		if (this.state != null && this.state.getRetryInterval() > 0) {
-			this.stateActionRetryTask = new TimerTask() { @Override public void run() { IaxClient.this.state.retry(); }};
-			this.timer.scheduleAtFixedRate(this.stateActionRetryTask, this.state.getRetryInterval(), this.state.getRetryInterval());
-		}
+		if (this.state != null && this.state.getRetryInterval() > 0)
+			this.stateActionRetryTask = this.runtime.schedule(() -> this.state.retry(), this.state.getRetryInterval(), this.state.getRetryInterval());
 		if (state instanceof ClientState.Registered || state instanceof ClientState.Rejected || state instanceof ClientState.NoAuth)
 			this.listeners.forEach(l -> l.onConnect(this, state instanceof ClientState.Registered));
 	}
@@ -269,7 +273,7 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 	boolean send(Frame frame, boolean requireResponse) {
 		try {
 			if (this.config.debug && (this.config.debugLogMiniFrames || !(frame instanceof MiniFrame)))
-				LOGGER.debug("SEND {}", frame);
+				LOGGER.debug("SEND " + frame); // formatted right away, mini frame payloads are reused once sent
 			this.ioHandler.send(frame);
 			if (frame instanceof FullFrame fullFrame) {
 				fullFrame.updateRetransmissionTime();
@@ -297,9 +301,15 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 	
 	@Override
 	public void submit(Frame frame) { // get work off the IO-thread as fast as possible
-		// the executor service uses as many threads as needed at any given time
-		// thus, it does not matter how long it takes to handle each individual frame
-		this.packetHandlerService.submit(() -> handle(frame));
+		// frames are handled in order on this client's lane, those exceeding its budget are dropped
+		this.lane.execute(() -> handle(frame));
+	}
+	
+	/**
+	 * @return received frames dropped as this client had too many queued
+	 */
+	public long getDroppedFrames() {
+		return this.lane.getDropped();
 	}
 	
 	@Override
@@ -419,7 +429,15 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 		}
 		
 		// Asterisk is SLOW and will not acknowledge us accepting the call if we're too fast
-		try { Thread.sleep(1000); } catch (InterruptedException e) { }
+		// wait on the scheduler, the lane has to keep handling frames, e.g. the caller hanging up again
+		this.runtime.schedule(() -> this.lane.resume(() -> ringIncomingCall(pendingCall, supportedCodecs)), 1000);
+	}
+	
+	private void ringIncomingCall(IaxCall.Pending pendingCall, Set<MediaFrame.Format> supportedCodecs) {
+		if (pendingCall.isDeclined()) { // the caller hung up already
+			pendingCall.discard();
+			return;
+		}
 		
 		MediaFrame.Format preferred = supportedCodecs.contains(pendingCall.getPreferredCodec()) ? pendingCall.getPreferredCodec() : null;
 		for (IaxClientListener l : this.listeners) {
@@ -441,11 +459,18 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 				.cfSubclass(ControlFrame.Subclass.RINGING)
 				.control(), true);
 		
+		MediaFrame.Format selected = preferred;
 		CompletableFuture.allOf(
 				this.listeners.stream()
-				.map(l -> CompletableFuture.runAsync(() -> l.onCallIncoming(this, pendingCall)))
-				.toArray(CompletableFuture<?>[]::new)).join(); // run listeners in parallel
-		
+				.map(l -> CompletableFuture.runAsync(() -> l.onCallIncoming(this, pendingCall), this.runtime.getWorkers()))
+				.toArray(CompletableFuture<?>[]::new)) // run listeners in parallel, they block until the call is accepted or declined
+		.whenComplete((result, e) -> {
+			if (e != null) LOGGER.error("Exception notifying listeners of incoming call {}", pendingCall, e);
+			this.lane.resume(() -> answerIncomingCall(pendingCall, supportedCodecs, selected));
+		});
+	}
+	
+	private void answerIncomingCall(IaxCall.Pending pendingCall, Set<MediaFrame.Format> supportedCodecs, MediaFrame.Format preferred) {
 		if (pendingCall.isDeclined()) {
 			pendingCall.setState(IaxCall.Pending.State.HANGUP_SENT);
 			pendingCall.send(pendingCall.frameBuilder
@@ -506,15 +531,11 @@ public class IaxClient implements IaxCallListener, FrameHandler<Frame>, FrameDis
 		if (this.connected)
 			disconnect();
 		this.ioHandler.close();
-		try {
-			this.packetHandlerService.shutdown();
-			if (!this.packetHandlerService.awaitTermination(10, TimeUnit.SECONDS))
-				this.packetHandlerService.shutdownNow();
-		} catch (InterruptedException e) {
-			this.packetHandlerService.shutdownNow();
-		}
-		
-		this.timer.cancel();
+		this.lane.close();
+		if (this.updateTask != null)
+			this.updateTask.cancel(false);
+		if (this.stateActionRetryTask != null)
+			this.stateActionRetryTask.cancel(false);
 	}
 	
 	@Override
@@ -24,8 +24,8 @@ package dev.cheos.stitz.iax;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,55 +35,58 @@ import dev.cheos.stitz.iax.frame.FullFrameType;
 
 public class IaxIOHandler implements AutoCloseable {
 	private static final Logger LOGGER = LoggerFactory.getLogger(IaxIOHandler.class);
+	static final int BUFFER_SIZE = 10240; // 10KiB is way bigger than any typical IAX frame
 	private final IaxClient client;
+	private final IaxRuntime runtime;
 	private final DatagramChannel channel;
-	private boolean active = true;
-	private final Thread thread;
+	private final SelectionKey key;
+	private final ByteBuffer sendBuf = ByteBuffer.allocateDirect(BUFFER_SIZE); // direct, the channel would otherwise copy it into a temporary direct buffer on every write
 	
-	public IaxIOHandler(IaxClient client) throws IOException {
+	public IaxIOHandler(IaxClient client, IaxRuntime runtime) throws IOException {
 		this.client = client;
+		this.runtime = runtime;
 		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking(false); // received by the runtime's selector thread
 		this.channel.connect(new InetSocketAddress(client.getConfig().remoteAddress(), client.getConfig().remotePort()));
-		this.thread = new Thread(this::receive, "%d-receiver".formatted(client.getSrcCallNumber()));
-		this.thread.setDaemon(true);
-		this.thread.start();
+		this.key = runtime.register(this.channel, this::receive);
 	}
 	
 	public void send(Frame frame) throws IOException {
-		ByteBuffer buf = ByteBuffer.allocate(frame.getSize());
-		frame.serialize(buf);
-		buf.flip();
-		this.channel.write(buf);
+		int size = frame.getSize();
+		if (size > BUFFER_SIZE) {
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			frame.serialize(buf);
+			buf.flip();
+			this.channel.write(buf);
+			return;
+		}
+		synchronized (this.sendBuf) { // frames are sent from the scheduler, codec and worker threads
+			this.sendBuf.clear();
+			frame.serialize(this.sendBuf);
+			this.sendBuf.flip();
+			if (this.channel.write(this.sendBuf) == 0) // non-blocking, the socket buffer is full
+				LOGGER.warn("dropped frame " + frame + ", send buffer is full"); // formatted right away, the payload may be reused
+		}
 	}
 	
 	@Override
 	public void close() throws IOException {
-		this.active = false;
+		this.runtime.unregister(this.key);
 		this.channel.close();
-		this.thread.interrupt();
 	}
 	
-	private void receive() {
-		ByteBuffer buf = ByteBuffer.allocate(10240 /* 10KiB is way bigger than any typical IAX frame */);
-		while (this.active) {
-			try {
-				buf.clear();
-				if (this.channel.receive(buf) == null) return; // can't happen, we're in blocking mode
-				buf.flip();
-				short srcCallNumber = buf.getShort(0);
-				Frame.Builder builder = Frame.builder().buffer(buf);
-				
-				if (srcCallNumber == 0) {
-					LOGGER.warn("received meta frame -- not supported, discarding!");
-				} else if ((srcCallNumber & 0x8000) != 0) {
-					byte subclass = (byte) (buf.get(10) & 0x7F);
-					FullFrameType type = FullFrameType.byId(subclass);
-					if (type.canTransmit())
-						this.client.handle(builder.of(type));
-					else LOGGER.warn("received frame of invalid/unknown type: " + subclass + " / " + type);
-				} else this.client.handle(builder.mini());
-			} catch (ClosedChannelException e) { return; }
-			catch (Exception e) { LOGGER.warn("Exception listening for incoming frames", e); }
-		}
+	private void receive(ByteBuffer buf) { // on the selector thread, frames are parsed here and handled on the client's lane
+		short srcCallNumber = buf.getShort(0);
+		Frame.Builder builder = Frame.builder().buffer(buf);
+		
+		if (srcCallNumber == 0) {
+			LOGGER.warn("received meta frame -- not supported, discarding!");
+		} else if ((srcCallNumber & 0x8000) != 0) {
+			byte subclass = (byte) (buf.get(10) & 0x7F);
+			FullFrameType type = FullFrameType.byId(subclass);
+			if (type.canTransmit())
+				this.client.submit(builder.of(type));
+			else LOGGER.warn("received frame of invalid/unknown type: " + subclass + " / " + type);
+		} else this.client.submit(builder.mini());
 	}
 }
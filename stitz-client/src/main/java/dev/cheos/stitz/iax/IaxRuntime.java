@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dev.cheos.stitz.iax;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Threads shared by any amount of {@link IaxClient}s in one process: a single scheduler for
+ * retransmissions and state retries, a single selector thread receiving from all channels and a
+ * worker pool handling received frames. Each client handles its frames on its own {@link Lane},
+ * in order and limited to a budget of queued frames, so one slow client can't hold up the others.
+ */
+public class IaxRuntime implements AutoCloseable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(IaxRuntime.class);
+	public static final int DEFAULT_MAX_QUEUED_FRAMES = 512;
+	private static final int BATCH = 32; // frames a lane may handle before giving its worker to other lanes
+	private static final int MAX_READS = 16; // datagrams read from a channel before serving the next one
+	private static final AtomicInteger WORKER_ID = new AtomicInteger();
+	private final int maxQueuedFrames;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService workers;
+	private final Selector selector;
+	private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+	private final Thread ioThread;
+	private final AtomicInteger lanes = new AtomicInteger();
+	private volatile boolean closed;
+	
+	/**
+	 * @param maxQueuedFrames received frames a client may have waiting to be handled, further frames are dropped
+	 */
+	public IaxRuntime(int maxQueuedFrames) throws IOException {
+		Preconditions.checkArgument(maxQueuedFrames > 0, "maxQueuedFrames must be positive, got %s", maxQueuedFrames);
+		this.maxQueuedFrames = maxQueuedFrames;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "iax-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.workers = Executors.newCachedThreadPool(runnable -> { // listeners may block, e.g. while an incoming call rings
+			Thread thread = new Thread(runnable, "iax-worker-" + WORKER_ID.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.selector = Selector.open();
+		this.ioThread = new Thread(this::poll, "iax-io");
+		this.ioThread.setDaemon(true);
+		this.ioThread.start();
+	}
+	
+	public static IaxRuntime shared() {
+		return Shared.INSTANCE;
+	}
+	
+	/**
+	 * Runs a task periodically on the shared scheduler thread, tasks must never block.
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delayMillis, long periodMillis) {
+		return this.scheduler.scheduleAtFixedRate(() -> {
+			try { task.run(); }
+			catch (Exception e) { LOGGER.error("Exception in scheduled iax task", e); } // would cancel all further runs otherwise
+		}, delayMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Runs a task once after a delay on the shared scheduler thread, the task must never block.
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+		return this.scheduler.schedule(() -> {
+			try { task.run(); }
+			catch (Exception e) { LOGGER.error("Exception in scheduled iax task", e); }
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	public Executor getWorkers() {
+		return this.workers;
+	}
+	
+	Lane newLane(String name) {
+		return new Lane(name);
+	}
+	
+	/**
+	 * Registers a non-blocking channel with the selector thread, which hands every datagram received to the receiver.
+	 * The buffer passed is reused afterwards, so it must not be kept.
+	 */
+	SelectionKey register(DatagramChannel channel, Consumer<ByteBuffer> receiver) throws IOException {
+		Preconditions.checkState(!this.closed, "runtime is closed");
+		CompletableFuture<SelectionKey> key = new CompletableFuture<>();
+		this.selectorTasks.add(() -> {
+			try { key.complete(channel.register(this.selector, SelectionKey.OP_READ, receiver)); }
+			catch (IOException e) { key.completeExceptionally(e); }
+		});
+		this.selector.wakeup();
+		try {
+			return key.get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			throw new IOException("failed to register channel", e.getCause());
+		} catch (InterruptedException | TimeoutException e) {
+			throw new IOException("failed to register channel", e);
+		}
+	}
+	
+	void unregister(SelectionKey key) {
+		key.cancel();
+		this.selector.wakeup(); // closed channels are only released by the next select
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void poll() {
+		ByteBuffer buf = ByteBuffer.allocate(IaxIOHandler.BUFFER_SIZE);
+		while (!this.closed) {
+			try {
+				this.selector.select();
+				for (Runnable task; (task = this.selectorTasks.poll()) != null; )
+					task.run();
+				for (Iterator<SelectionKey> it = this.selector.selectedKeys().iterator(); it.hasNext(); ) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) continue;
+					DatagramChannel channel = (DatagramChannel) key.channel();
+					Consumer<ByteBuffer> receiver = (Consumer<ByteBuffer>) key.attachment();
+					for (int i = 0; i < MAX_READS; i++) { // serve every channel in turn when busy
+						buf.clear();
+						try {
+							if (channel.receive(buf) == null) break;
+						} catch (ClosedChannelException e) {
+							break;
+						} catch (IOException e) { // e.g. port unreachable, reported on the connected channel
+							LOGGER.warn("Exception receiving on {}", channel, e);
+							break;
+						}
+						buf.flip();
+						try { receiver.accept(buf); }
+						catch (Exception e) { LOGGER.warn("Exception handling received datagram", e); }
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (Exception e) {
+				LOGGER.error("Exception in iax io thread", e);
+			}
+		}
+	}
+	
+	public String getStats() {
+		return "%d clients, %d workers (%d active)".formatted(
+				this.lanes.get(),
+				this.workers instanceof ThreadPoolExecutor pool ? pool.getPoolSize() : -1,
+				this.workers instanceof ThreadPoolExecutor pool ? pool.getActiveCount() : -1);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		this.selector.close(); // wakes up the io thread
+		this.scheduler.shutdownNow();
+		this.workers.shutdown();
+		try {
+			if (!this.workers.awaitTermination(10, TimeUnit.SECONDS))
+				this.workers.shutdownNow();
+		} catch (InterruptedException e) {
+			this.workers.shutdownNow();
+		}
+	}
+	
+	
+	/**
+	 * Ordered execution context of a single client, holding at most the runtime's budget of queued jobs.
+	 */
+	class Lane implements AutoCloseable {
+		private final String name;
+		private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pending = new AtomicInteger();
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile Thread drainer;
+		private volatile boolean closed;
+		
+		private Lane(String name) {
+			this.name = name;
+			IaxRuntime.this.lanes.incrementAndGet();
+		}
+		
+		/**
+		 * Queues a job to run after all jobs previously submitted to this lane.
+		 * @return false if the lane is over budget or closed and the job was dropped
+		 */
+		boolean execute(Runnable job) {
+			if (this.closed) return false;
+			if (this.pending.get() >= IaxRuntime.this.maxQueuedFrames) {
+				if (this.dropped.getAndIncrement() % 100 == 0)
+					LOGGER.warn("{} is over its budget of {} queued frames, dropping ({} dropped so far)", this.name, IaxRuntime.this.maxQueuedFrames, this.dropped.get());
+				return false;
+			}
+			resume(job);
+			return true;
+		}
+		
+		/**
+		 * Queues a job continuing work started on this lane, e.g. once something waited for completed.
+		 * These are never dropped for being over budget, only once the lane is closed.
+		 */
+		void resume(Runnable job) {
+			if (this.closed) return;
+			this.queue.add(job);
+			if (this.pending.getAndIncrement() == 0)
+				IaxRuntime.this.workers.execute(this::drain);
+		}
+		
+		private void drain() {
+			this.drainer = Thread.currentThread();
+			try {
+				for (int ran = 0;; ) {
+					Runnable job = this.queue.poll();
+					try { job.run(); }
+					catch (Exception e) { LOGGER.error("Exception in iax job of {}", this.name, e); }
+					
+					if (this.pending.decrementAndGet() == 0) return;
+					if (++ran >= BATCH) { // still more queued, continue later so busy clients can't starve others
+						IaxRuntime.this.workers.execute(this::drain);
+						return;
+					}
+				}
+			} finally {
+				if (this.drainer == Thread.currentThread()) this.drainer = null;
+			}
+		}
+		
+		long getDropped() {
+			return this.dropped.get();
+		}
+		
+		/**
+		 * Stops accepting jobs and waits for the queued ones to finish, unless called from one of them.
+		 */
+		@Override
+		public void close() {
+			if (this.closed) return;
+			CompletableFuture<Void> flushed = new CompletableFuture<>();
+			if (!execute(() -> flushed.complete(null)))
+				flushed.complete(null);
+			this.closed = true;
+			IaxRuntime.this.lanes.decrementAndGet();
+			if (this.drainer == Thread.currentThread()) return;
+			try { flushed.get(10, TimeUnit.SECONDS); }
+			catch (InterruptedException | ExecutionException | TimeoutException e) { LOGGER.warn("{} did not finish its queued frames", this.name); }
+		}
+	}
+	
+	private static class Shared {
+		private static final IaxRuntime INSTANCE;
+		
+		static {
+			try {
+				INSTANCE = new IaxRuntime(DEFAULT_MAX_QUEUED_FRAMES);
+			} catch (IOException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+	}
+}
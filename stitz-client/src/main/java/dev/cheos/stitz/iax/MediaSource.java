@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2023 Cheos
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dev.cheos.stitz.iax;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nullable;
+
+import dev.cheos.stitz.iax.frame.MediaFrame;
+
+/**
+ * Pre-encoded audio to be played into a call, see {@link IaxCall#play(MediaSource)}.
+ * Frames are handed out as buffers which are sent as they are, without copying them first.
+ */
+public interface MediaSource extends AutoCloseable {
+	MediaFrame.Format getFormat();
+	
+	/**
+	 * @return size of one encoded 20 ms frame in bytes
+	 */
+	int getFrameBytes();
+	
+	/**
+	 * @param frames maximum amount of frames to read
+	 * @return buffer containing the next one to {@code frames} whole frames, {@code null} once the end is reached.
+	 *         The buffer is only read until the frames are sent and may be a view of the source's storage.
+	 */
+	@Nullable ByteBuffer read(int frames);
+	
+	@Override
+	default void close() { }
+}
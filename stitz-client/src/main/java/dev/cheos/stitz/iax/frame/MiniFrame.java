@@ -27,9 +27,16 @@ import com.google.common.base.MoreObjects;
 
 public class MiniFrame extends Frame {
 	private final short timestamp;
-	private final byte[] data;
+	private final ByteBuffer data;
 	
 	public MiniFrame(short srcCallNumber, int timestamp, byte[] data) {
+		this(srcCallNumber, timestamp, ByteBuffer.wrap(data));
+	}
+	
+	/**
+	 * @param data payload, read from its position to its limit once the frame is serialized, not copied before
+	 */
+	public MiniFrame(short srcCallNumber, int timestamp, ByteBuffer data) {
 		super(srcCallNumber);
 		this.timestamp = (short) (timestamp & 0xFFFF);
 		this.data = data;
@@ -38,8 +45,9 @@ public class MiniFrame extends Frame {
 	public MiniFrame(ByteBuffer buf) {
 		super(buf);
 		this.timestamp = buf.getShort();
-		this.data = new byte[buf.remaining()];
-		buf.get(this.data);
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		this.data = ByteBuffer.wrap(data);
 	}
 	
 	public short getTimestamp() {
@@ -47,7 +55,11 @@ public class MiniFrame extends Frame {
 	}
 	
 	public byte[] getData() {
-		return this.data;
+		if (this.data.hasArray() && this.data.arrayOffset() == 0 && this.data.position() == 0 && this.data.remaining() == this.data.array().length)
+			return this.data.array();
+		byte[] data = new byte[this.data.remaining()];
+		this.data.get(this.data.position(), data);
+		return data;
 	}
 
 	@Override
@@ -57,14 +69,15 @@ public class MiniFrame extends Frame {
 	
 	@Override
 	public int getSize() {
-		return super.getSize() + 2 + this.data.length;
+		return super.getSize() + 2 + this.data.remaining();
 	}
 	
 	@Override
 	public void serialize(ByteBuffer buf) {
 		super.serialize(buf);
 		buf.putShort(this.timestamp);
-		buf.put(this.data);
+		buf.put(buf.position(), this.data, this.data.position(), this.data.remaining()); // absolute, leaves the payload readable for another send
+		buf.position(buf.position() + this.data.remaining());
 	}
 	
 	@Override
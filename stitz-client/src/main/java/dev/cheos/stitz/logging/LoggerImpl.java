@@ -25,51 +25,73 @@ package dev.cheos.stitz.logging;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.StackWalker.Option;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.text.SimpleDateFormat;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.Marker;
 import org.slf4j.helpers.MessageFormatter;
 
+/**
+ * Logs through a preallocated ring of events, written by a single thread. Callers only check the level and
+ * copy the message, format and parameters into a slot, formatting happens on the write thread.
+ * Parameters are thus turned into strings a little later, don't pass objects that change right after logging,
+ * format those at the call site instead (e.g. frames, whose payload may be a reused buffer).
+ * As with slf4j, a throwable passed as the last argument without a placeholder left for it is logged with its stack trace.
+ * If the ring is full, debug and trace events are dropped (and counted), other levels wait for space up to 50 ms.
+ */
 public class LoggerImpl implements Logger {
-	private static final SimpleDateFormat FILE_DF = new SimpleDateFormat("YYYY-MM-dd_HH-mm-ss");
-	private static final SimpleDateFormat LOG_DF = new SimpleDateFormat("YYYY-MM-dd HH:mm:ss");
-	private static final HashMap<String, LoggerImpl> loggers = new HashMap<>();
-	private static final List<Pair<PrintStream, Boolean>> printStreams = new ArrayList<>(8);
-	private static Queue<Pair<String, LogLevel>> logQueue = new ConcurrentLinkedQueue<>();
+	private static final DateTimeFormatter FILE_DF = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+	private static final DateTimeFormatter LOG_DF = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final int RING_SIZE = 8192, BATCH_CHARS = 64 * 1024; // ring size must be a power of two
+	private static final long MAX_FULL_WAIT_NANOS = 50_000_000; // then dropped anyway, a stalled writer must not block audio or network threads
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	private static final StackWalker STACK_WALKER = StackWalker.getInstance(Option.RETAIN_CLASS_REFERENCE);
+	private static final Map<String, LoggerImpl> loggers = new ConcurrentHashMap<>();
+	private static final List<Sink> sinks = new CopyOnWriteArrayList<>();
+	private static final Event[] ring = new Event[RING_SIZE];
+	private static final AtomicLong claimed = new AtomicLong(), consumed = new AtomicLong();
+	private static final LongAdder dropped = new LongAdder();
+	private static volatile int minLevel = Integer.MAX_VALUE; // ordinal of the lowest level written anywhere, nothing without sinks
+	private static volatile boolean writerWaiting;
 	private static Thread writeThread;
-	private static boolean shutdown;
+	private static volatile boolean shutdown;
 	protected static Path logFile;
 	private final String name;
 	private final Set<PrintStream> localPrintStreams = new HashSet<>(8);
 	
 	static {
+		for (int i = 0; i < RING_SIZE; i++)
+			ring[i] = new Event(i - RING_SIZE); // not published yet
 		writeThread = new Thread(LoggerImpl::writeLoop, "LoggerThread@write");
 		writeThread.setDaemon(true);
 		writeThread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> awaitWritten(1000), "LoggerThread@flush"));
 	}
 	
 	public static LoggerImpl getLogger(String name) {
 		if (name == null)
-			return LoggerImpl.getLogger(5);
-		if (loggers.containsKey(name))
-			return loggers.get(name);
-		
-		LoggerImpl logger = new LoggerImpl(name);
-		loggers.put(name, logger);
-		return logger;
+			return LoggerImpl.getLogger(STACK_WALKER.getCallerClass().getName());
+		return loggers.computeIfAbsent(name, LoggerImpl::new);
 	}
 	
 	public static LoggerImpl getLogger() {
-		return getLogger(5);
-	}
-	
-	private static LoggerImpl getLogger(int tracepoint) {
-		return getLogger(Thread.currentThread().getStackTrace()[tracepoint].getClassName());
+		return getLogger(STACK_WALKER.getCallerClass().getName());
 	}
 	
 	public static Path nextLogFile(Path directory) throws IOException {
@@ -77,11 +99,12 @@ public class LoggerImpl implements Logger {
 		if (!Files.isDirectory(directory))
 			directory = directory.getParent();
 		
-		Path file = directory.resolve(FILE_DF.format(new Date()) + ".log");
+		String now = FILE_DF.format(LocalDateTime.now());
+		Path file = directory.resolve(now + ".log");
 		int i = 0;
 		
 		while (Files.exists(file))
-			file = directory.resolve(FILE_DF.format(new Date()) + "_" + ++i + ".log");
+			file = directory.resolve(now + "_" + ++i + ".log");
 		return file;
 	}
 	
@@ -90,7 +113,7 @@ public class LoggerImpl implements Logger {
 	}
 	
 	public static void addGlobalPrintStream(PrintStream ps, boolean enableDebug) {
-		printStreams.add(Pair.of(ps, enableDebug));
+		addSink(new Sink(ps, null, enableDebug));
 	}
 	
 	public static void logTo(Path file) throws IOException {
@@ -103,15 +126,20 @@ public class LoggerImpl implements Logger {
 		
 		if (Files.notExists(file.getParent()))
 			Files.createDirectories(file.getParent());
-		if (Files.notExists(file))
-			Files.createFile(file);
-		addGlobalPrintStream(new PrintStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), true), enableDebug);
+		addSink(new Sink(null, FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), enableDebug));
 		logFile = file;
 	}
 	
+	private static synchronized void addSink(Sink sink) {
+		sinks.add(sink);
+		minLevel = Math.min(minLevel, sink.debug ? LogLevel.TRACE.ordinal() : LogLevel.INFO.ordinal());
+	}
+	
 	public static synchronized void shutdown() {
 		globalLog(LogLevel.INFO, "Logger system shutting down...");
+		awaitWritten(1000);
 		shutdown = true;
+		LockSupport.unpark(writeThread);
 		
 		try { writeThread.join(1000L); } catch (InterruptedException e) { }
 		if (writeThread.isAlive())
@@ -119,53 +147,121 @@ public class LoggerImpl implements Logger {
 		
 		loggers.values().forEach(LoggerImpl::close);
 		
-		for (Pair<String, LogLevel> log : logQueue)
-			printStreams.forEach(p -> {
-				if (p != null && (p.getRight() || log.getRight() != LogLevel.DEBUG))
-					p.getLeft().println(log.getLeft());
-			});
-		
-		logQueue.clear();
-		logQueue = null;
 		writeThread = null;
-		printStreams.forEach(p -> p.getLeft().close());
-		printStreams.clear();
+		sinks.forEach(Sink::close);
+		sinks.clear();
+		minLevel = Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Waits until everything logged so far is written, at most the given time.
+	 */
+	public static void awaitWritten(long timeoutMillis) {
+		long target = claimed.get(), deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+		while (consumed.get() < target && System.nanoTime() < deadline && !shutdown) {
+			LockSupport.unpark(writeThread);
+			LockSupport.parkNanos(100_000);
+		}
 	}
 	
 	private static void writeLoop() {
-		try {
-			while (!shutdown) {
-				if (printStreams != null) {
-					Pair<String, LogLevel> log;
-					while ((log = logQueue.poll()) != null) {
-						final Pair<String, LogLevel> eflog = log;
-						printStreams.forEach(p -> {
-							if (p != null && (p.getRight() || eflog.getRight().ordinal() > LogLevel.DEBUG.ordinal()))
-								p.getLeft().println(eflog.getLeft());
-						});
-					}
+		StringBuilder all = new StringBuilder(BATCH_CHARS), nonDebug = new StringBuilder(BATCH_CHARS);
+		Formatter formatter = new Formatter();
+		long next = 0;
+		while (!shutdown) {
+			Event event = ring[(int) next & (RING_SIZE - 1)];
+			if (event.sequence != next) { // nothing to write, flush the batch and wait
+				if (!all.isEmpty())
+					write(all, nonDebug);
+				long droppedEvents = dropped.sumThenReset();
+				if (droppedEvents > 0) { // not enqueued, the ring may be full again
+					Event warning = new Event(0);
+					warning.set(LogLevel.WARN, LoggerImpl.class.getName(), true, "Dropped {} messages, logging too fast", droppedEvents, null, null, 1, null);
+					formatter.format(warning, all);
+					nonDebug.append(all);
+					write(all, nonDebug);
 				}
-				Thread.sleep(20L);
+				writerWaiting = true;
+				if (event.sequence != next) // published before we announced waiting
+					LockSupport.parkNanos(100_000_000L);
+				writerWaiting = false;
+				continue;
+			}
+			int start = all.length();
+			try {
+				formatter.format(event, all);
+			} catch (Throwable t) { // e.g. a parameter's toString failed, the write thread must not die of it
+				all.setLength(start);
+				formatter.line(event, "<failed to format message: " + t.getClass().getName() + ">", all);
+			}
+			if (event.level.ordinal() > LogLevel.DEBUG.ordinal())
+				nonDebug.append(all, start, all.length());
+			event.clear();
+			consumed.lazySet(++next);
+			if (all.length() >= BATCH_CHARS)
+				write(all, nonDebug);
+		}
+		if (!all.isEmpty())
+			write(all, nonDebug);
+	}
+	
+	private static void write(StringBuilder all, StringBuilder nonDebug) {
+		for (Sink sink : sinks)
+			try {
+				sink.write(sink.debug ? all : nonDebug);
+			} catch (RuntimeException e) {
+				System.err.println("Cannot write log: " + e);
 			}
-		} catch (InterruptedException e) { }
+		all.setLength(0);
+		nonDebug.setLength(0);
 	}
 	
-	private static void globalLog0(LogLevel level, String message) {
+	/**
+	 * Claims a slot and publishes the event in it, see {@link Event} for the fields.
+	 */
+	private static void enqueue(LogLevel level, String name, boolean global, Object message, Object arg1, Object arg2, Object[] args, int argCount, Throwable thrown) {
 		if (shutdown) return;
-		logQueue.add(Pair.of(message, level));
+		long sequence, waitedSince = 0;
+		while (true) {
+			sequence = claimed.get();
+			if (sequence - consumed.get() >= RING_SIZE) { // full
+				if (waitedSince == 0)
+					waitedSince = System.nanoTime();
+				if (level.ordinal() <= LogLevel.DEBUG.ordinal() || System.nanoTime() - waitedSince > MAX_FULL_WAIT_NANOS || !isWriting()) {
+					dropped.increment();
+					return;
+				}
+				LockSupport.parkNanos(10_000);
+				continue;
+			}
+			if (claimed.compareAndSet(sequence, sequence + 1))
+				break;
+		}
+		Event event = ring[(int) sequence & (RING_SIZE - 1)];
+		event.set(level, name, global, message, arg1, arg2, args, argCount, thrown);
+		event.sequence = sequence; // publishes the event
+		if (writerWaiting)
+			LockSupport.unpark(writeThread);
+	}
+	
+	private static boolean isWriting() {
+		Thread writer = writeThread;
+		return writer != null && writer.isAlive();
 	}
+	
+	private static boolean isEnabled(LogLevel level) {
+		return level.ordinal() >= minLevel;
+	}
+	
 	public static void globalLog(LogLevel level, String name, String message) {
-		if (name != null)
-			globalLog0(level, String.format("[%s] [%s] [%s | %s]: %s",
-					LOG_DF.format(new Date()),
-					Thread.currentThread().getName(),
-					name,
-					level == null ? LogLevel.WARN : level,
-							message == null ? "null" : message));
-		else globalLog(level, message);
+		if (name == null)
+			name = STACK_WALKER.getCallerClass().getName();
+		if (level == null) level = LogLevel.WARN;
+		if (isEnabled(level))
+			enqueue(level, name, true, message, null, null, null, 0, null);
 	}
 	public static void globalLog(LogLevel level, String message) {
-		globalLog(level, new Exception().getStackTrace()[1].getClassName(), message);
+		globalLog(level, STACK_WALKER.getCallerClass().getName(), message);
 	}
 	public static void globalLogTrace(LogLevel level, String name, Throwable t) {
 		StackTraceElement[] steArray;
@@ -190,58 +286,72 @@ public class LoggerImpl implements Logger {
 		this.localPrintStreams.add(ps);
 	}
 	
-	private void log(String message, LogLevel level) {
-		for (PrintStream ps : this.localPrintStreams)
-			if (ps != null)
-				ps.println(message);
-		globalLog0(level, message);
+	private boolean isLogged(LogLevel level) {
+		return isEnabled(level) || !this.localPrintStreams.isEmpty();
+	}
+	
+	private void log(LogLevel level, Object message, Object arg1, Object arg2, Object[] args, int argCount, Throwable thrown) {
+		if (level == null) level = LogLevel.WARN;
+		if (!this.localPrintStreams.isEmpty()) { // written right away, these are meant for debugging
+			Event event = new Event(0);
+			event.set(level, this.name, false, message, arg1, arg2, args, argCount, thrown);
+			StringBuilder sb = new StringBuilder();
+			new Formatter().format(event, sb);
+			for (PrintStream ps : this.localPrintStreams)
+				if (ps != null)
+					ps.print(sb);
+		}
+		if (isEnabled(level))
+			enqueue(level, this.name, false, message, arg1, arg2, args, argCount, thrown);
 	}
 	
 	public void log(LogLevel level, String msg) {
-		log(String.format("[%s | %s] [%s | %s]: %s",
-				LOG_DF.format(new Date()),
-				Thread.currentThread().getName(),
-				this.name,
-				level == null ? LogLevel.WARN : level,
-						msg == null ? "null" : msg),
-				level);
+		if (isLogged(level)) log(level, msg, null, null, null, 0, null);
 	}
 	public void log(LogLevel level, Object obj) {
-		log(level, obj == null ? "null" : obj.toString());
+		if (isLogged(level)) log(level, obj, null, null, null, 0, null); // turned into a string on the write thread
 	}
 	public void log(LogLevel level, String msg, Throwable t) {
-		if (msg != null) log(level, msg);
-		if (t == null) return;
-		log(level, t.getClass().getName() + ": " + String.valueOf(t.getMessage()));
-		logTrace(level, t);
-		while ((t = t.getCause()) != null) {
-			log(level, "Caused by " + t.getClass().getName() + ": " + String.valueOf(t.getMessage()));
-			logTrace(level, t);
-		}
+		if (isLogged(level)) log(level, msg, null, null, null, 0, t);
 	}
 	public void log(LogLevel level, Throwable t) {
-		log(level, (t == null ? "Exception" : t.getClass().getSimpleName()) + " in '" + Thread.currentThread().getName() + "'", t);
+		if (isLogged(level))
+			log(level, (t == null ? "Exception" : t.getClass().getSimpleName()) + " in '" + Thread.currentThread().getName() + "'", t);
 	}
 	public void log(LogLevel level, Object obj, Throwable t) {
-		log(level, obj == null ? "null" : obj.toString(), t);
+		if (isLogged(level)) log(level, obj, null, null, null, 0, t);
 	}
-	private void logTrace(LogLevel level, Throwable t) {
-		StackTraceElement[] steArray;
-		if (t != null && (steArray = t.getStackTrace()) != null) {
-			for (int i = 0; i < 15 && i < steArray.length; ++i)
-				log(level, "    " + steArray[i]);
-			if (steArray.length > 15)
-				log(level, String.format("... and %d more.", steArray.length - 15));
+	private void logFormatted(LogLevel level, String format, Object arg) {
+		if (isLogged(level)) log(level, format, arg, null, null, 1, throwableCandidate(format, arg, 1));
+	}
+	private void logFormatted(LogLevel level, String format, Object arg1, Object arg2) {
+		if (isLogged(level)) log(level, format, arg1, arg2, null, 2, throwableCandidate(format, arg2, 2));
+	}
+	private void logFormatted(LogLevel level, String format, Object[] args) {
+		if (isLogged(level)) {
+			int argCount = args == null ? 0 : args.length;
+			log(level, format, null, null, args, argCount, argCount == 0 ? null : throwableCandidate(format, args[argCount - 1], argCount));
 		}
 	}
 	
+	/**
+	 * @return the last argument if it is a throwable with no placeholder left for it, formatting ignores surplus arguments
+	 */
+	private static Throwable throwableCandidate(String format, Object last, int argCount) {
+		if (!(last instanceof Throwable t) || format == null) return null;
+		int placeholders = 0;
+		for (int i = format.indexOf("{}"); i >= 0 && placeholders < argCount; i = format.indexOf("{}", i + 2))
+			placeholders++;
+		return placeholders < argCount ? t : null;
+	}
+	
 	public void trace(Object obj)                                        { log(LogLevel.TRACE, obj); }
 	public void trace(Throwable t)                                       { log(LogLevel.TRACE, t); }
 	public void trace(Object obj, Throwable t)                           { log(LogLevel.TRACE, obj); }
 	@Override public void trace(String msg)                              { log(LogLevel.TRACE, msg); }
-	@Override public void trace(String format, Object arg)               { log(LogLevel.TRACE, format(format, arg)); }
-	@Override public void trace(String format, Object arg1, Object arg2) { log(LogLevel.TRACE, format(format, arg1, arg2)); }
-	@Override public void trace(String format, Object... args)           { log(LogLevel.TRACE, format(format, args)); }
+	@Override public void trace(String format, Object arg)               { logFormatted(LogLevel.TRACE, format, arg); }
+	@Override public void trace(String format, Object arg1, Object arg2) { logFormatted(LogLevel.TRACE, format, arg1, arg2); }
+	@Override public void trace(String format, Object... args)           { logFormatted(LogLevel.TRACE, format, args); }
 	@Override public void trace(String msg, Throwable t)                 { log(LogLevel.TRACE, msg, t); }
 	@Override public void trace(Marker marker, String msg)                              { trace(msg); }
 	@Override public void trace(Marker marker, String format, Object arg)               { trace(format, arg); }
@@ -253,9 +363,9 @@ public class LoggerImpl implements Logger {
 	public void debug(Throwable t)                                       { log(LogLevel.DEBUG, t); }
 	public void debug(Object obj, Throwable t)                           { log(LogLevel.DEBUG, obj, t); }
 	@Override public void debug(String msg)                              { log(LogLevel.DEBUG, msg); }
-	@Override public void debug(String format, Object arg)               { log(LogLevel.DEBUG, format(format, arg)); }
-	@Override public void debug(String format, Object arg1, Object arg2) { log(LogLevel.DEBUG, format(format, arg1, arg2)); }
-	@Override public void debug(String format, Object... args)           { log(LogLevel.DEBUG, format(format, args)); }
+	@Override public void debug(String format, Object arg)               { logFormatted(LogLevel.DEBUG, format, arg); }
+	@Override public void debug(String format, Object arg1, Object arg2) { logFormatted(LogLevel.DEBUG, format, arg1, arg2); }
+	@Override public void debug(String format, Object... args)           { logFormatted(LogLevel.DEBUG, format, args); }
 	@Override public void debug(String msg, Throwable t)                 { log(LogLevel.DEBUG, msg, t); }
 	@Override public void debug(Marker marker, String msg)                              { debug(msg); }
 	@Override public void debug(Marker marker, String format, Object arg)               { debug(format, arg); }
@@ -267,9 +377,9 @@ public class LoggerImpl implements Logger {
 	public void info (Throwable t)                                       { log(LogLevel.INFO , t); }
 	public void info (Object obj, Throwable t)                           { log(LogLevel.INFO , obj, t); }
 	@Override public void info (String msg)                              { log(LogLevel.INFO , msg); }
-	@Override public void info (String format, Object arg)               { log(LogLevel.INFO , format(format, arg)); }
-	@Override public void info (String format, Object arg1, Object arg2) { log(LogLevel.INFO , format(format, arg1, arg2)); }
-	@Override public void info (String format, Object... args)           { log(LogLevel.INFO , format(format, args)); }
+	@Override public void info (String format, Object arg)               { logFormatted(LogLevel.INFO , format, arg); }
+	@Override public void info (String format, Object arg1, Object arg2) { logFormatted(LogLevel.INFO , format, arg1, arg2); }
+	@Override public void info (String format, Object... args)           { logFormatted(LogLevel.INFO , format, args); }
 	@Override public void info (String msg, Throwable t)                 { log(LogLevel.INFO , msg, t); }
 	@Override public void info (Marker marker, String msg)                              { info (msg); }
 	@Override public void info (Marker marker, String format, Object arg)               { info (format, arg); }
@@ -281,9 +391,9 @@ public class LoggerImpl implements Logger {
 	public void warn (Throwable t)                                       { log(LogLevel.WARN , t); }
 	public void warn (Object obj, Throwable t)                           { log(LogLevel.WARN , obj, t); }
 	@Override public void warn (String msg)                              { log(LogLevel.WARN , msg); }
-	@Override public void warn (String format, Object arg)               { log(LogLevel.WARN , format(format, arg)); }
-	@Override public void warn (String format, Object arg1, Object arg2) { log(LogLevel.WARN , format(format, arg1, arg2)); }
-	@Override public void warn (String format, Object... args)           { log(LogLevel.WARN , format(format, args)); }
+	@Override public void warn (String format, Object arg)               { logFormatted(LogLevel.WARN , format, arg); }
+	@Override public void warn (String format, Object arg1, Object arg2) { logFormatted(LogLevel.WARN , format, arg1, arg2); }
+	@Override public void warn (String format, Object... args)           { logFormatted(LogLevel.WARN , format, args); }
 	@Override public void warn (String msg, Throwable t)                 { log(LogLevel.WARN , msg, t); }
 	@Override public void warn (Marker marker, String msg)                              { warn (msg); }
 	@Override public void warn (Marker marker, String format, Object arg)               { warn (format, arg); }
@@ -295,9 +405,9 @@ public class LoggerImpl implements Logger {
 	public void error(Throwable t)                                       { log(LogLevel.ERROR, t); }
 	public void error(Object obj, Throwable t)                           { log(LogLevel.ERROR, obj, t); }
 	@Override public void error(String msg)                              { log(LogLevel.ERROR, msg); }
-	@Override public void error(String format, Object arg)               { log(LogLevel.ERROR, format(format, arg)); }
-	@Override public void error(String format, Object arg1, Object arg2) { log(LogLevel.ERROR, format(format, arg1, arg2)); }
-	@Override public void error(String format, Object... args)           { log(LogLevel.ERROR, format(format, args)); }
+	@Override public void error(String format, Object arg)               { logFormatted(LogLevel.ERROR, format, arg); }
+	@Override public void error(String format, Object arg1, Object arg2) { logFormatted(LogLevel.ERROR, format, arg1, arg2); }
+	@Override public void error(String format, Object... args)           { logFormatted(LogLevel.ERROR, format, args); }
 	@Override public void error(String msg, Throwable t)                 { log(LogLevel.ERROR, msg, t); }
 	@Override public void error(Marker marker, String msg)                              { error(msg); }
 	@Override public void error(Marker marker, String format, Object arg)               { error(format, arg); }
@@ -311,16 +421,16 @@ public class LoggerImpl implements Logger {
 	@Deprecated public final void fatal(Throwable t)             { log(LogLevel.FATAL, t); }
 	@Deprecated public final void fatal(Object obj, Throwable t) { log(LogLevel.FATAL, obj, t); }
 	
-	@Override public boolean isTraceEnabled() { return true; }
-	@Override public boolean isTraceEnabled(Marker marker) { return true; }
-	@Override public boolean isDebugEnabled() { return true; }
-	@Override public boolean isDebugEnabled(Marker marker) { return true; }
-	@Override public boolean isInfoEnabled() { return true; }
-	@Override public boolean isInfoEnabled(Marker marker) { return true; }
-	@Override public boolean isWarnEnabled() { return true; }
-	@Override public boolean isWarnEnabled(Marker marker) { return true; }
-	@Override public boolean isErrorEnabled() { return true; }
-	@Override public boolean isErrorEnabled(Marker marker) { return true; }
+	@Override public boolean isTraceEnabled() { return isLogged(LogLevel.TRACE); }
+	@Override public boolean isTraceEnabled(Marker marker) { return isTraceEnabled(); }
+	@Override public boolean isDebugEnabled() { return isLogged(LogLevel.DEBUG); }
+	@Override public boolean isDebugEnabled(Marker marker) { return isDebugEnabled(); }
+	@Override public boolean isInfoEnabled() { return isLogged(LogLevel.INFO); }
+	@Override public boolean isInfoEnabled(Marker marker) { return isInfoEnabled(); }
+	@Override public boolean isWarnEnabled() { return isLogged(LogLevel.WARN); }
+	@Override public boolean isWarnEnabled(Marker marker) { return isWarnEnabled(); }
+	@Override public boolean isErrorEnabled() { return isLogged(LogLevel.ERROR); }
+	@Override public boolean isErrorEnabled(Marker marker) { return isErrorEnabled(); }
 	
 	public void close() {
 		this.localPrintStreams.forEach(PrintStream::close);
@@ -328,8 +438,146 @@ public class LoggerImpl implements Logger {
 	}
 	
 	
-	private static String format(String format, Object... args) {
-		return MessageFormatter.basicArrayFormat(format, args);
+	/**
+	 * A slot of the ring, reused once written. Only the fields up to {@link #sequence} are written by the logging thread,
+	 * the volatile write of the sequence publishes them to the write thread.
+	 */
+	private static class Event {
+		private LogLevel level;
+		private long millis;
+		private String thread, name;
+		private boolean global; // logged through globalLog, formatted slightly differently
+		private Object message; // format if there are arguments
+		private Object arg1, arg2; // the first arguments, to log without allocating an array
+		private Object[] args; // all arguments if more than two
+		private int argCount;
+		private Throwable thrown;
+		private volatile long sequence;
+		
+		private Event(long sequence) {
+			this.sequence = sequence;
+		}
+		
+		private void set(LogLevel level, String name, boolean global, Object message, Object arg1, Object arg2, Object[] args, int argCount, Throwable thrown) {
+			this.level = level;
+			this.millis = System.currentTimeMillis();
+			this.thread = Thread.currentThread().getName();
+			this.name = name;
+			this.global = global;
+			this.message = message;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+			this.args = args;
+			this.argCount = argCount;
+			this.thrown = thrown;
+		}
+		
+		private void clear() { // don't keep objects alive until the slot is reused
+			this.message = this.arg1 = this.arg2 = null;
+			this.args = null;
+			this.thrown = null;
+		}
+	}
+	
+	/**
+	 * Turns events into lines, owned by a single thread.
+	 */
+	private static class Formatter {
+		private long second = Long.MIN_VALUE;
+		private String time;
+		
+		private void format(Event event, StringBuilder sb) {
+			String message;
+			if (event.argCount == 0)
+				message = String.valueOf(event.message);
+			else if (event.args != null)
+				message = MessageFormatter.basicArrayFormat((String) event.message, event.args);
+			else message = MessageFormatter.basicArrayFormat((String) event.message, event.argCount == 1 ? new Object[] { event.arg1 } : new Object[] { event.arg1, event.arg2 });
+			Throwable t = event.thrown;
+			if (t == null || event.message != null)
+				line(event, message, sb);
+			if (t == null) return;
+			line(event, t.getClass().getName() + ": " + t.getMessage(), sb);
+			trace(event, t, sb);
+			while ((t = t.getCause()) != null) {
+				line(event, "Caused by " + t.getClass().getName() + ": " + t.getMessage(), sb);
+				trace(event, t, sb);
+			}
+		}
+		
+		private void trace(Event event, Throwable t, StringBuilder sb) {
+			StackTraceElement[] steArray = t.getStackTrace();
+			for (int i = 0; i < 15 && i < steArray.length; ++i)
+				line(event, "    " + steArray[i], sb);
+			if (steArray.length > 15)
+				line(event, "... and %d more.".formatted(steArray.length - 15), sb);
+		}
+		
+		private void line(Event event, String message, StringBuilder sb) {
+			if (event.millis / 1000 != this.second) {
+				this.second = event.millis / 1000;
+				this.time = LOG_DF.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(event.millis), ZoneId.systemDefault()));
+			}
+			sb.append('[').append(this.time).append(event.global ? "] [" : " | ").append(event.thread)
+					.append("] [").append(event.name).append(" | ").append(event.level).append("]: ").append(message)
+					.append(LINE_SEPARATOR);
+		}
+	}
+	
+	/**
+	 * Either a print stream or a file, the file is written in batches without any extra buffering.
+	 */
+	private static class Sink {
+		private final PrintStream stream;
+		private final FileChannel channel;
+		private final boolean debug;
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final ByteBuffer buf;
+		private boolean failed;
+		
+		private Sink(PrintStream stream, FileChannel channel, boolean debug) {
+			this.stream = stream;
+			this.channel = channel;
+			this.debug = debug;
+			this.buf = channel == null ? null : ByteBuffer.allocateDirect(BATCH_CHARS);
+		}
+		
+		private void write(CharSequence text) {
+			if (text.isEmpty()) return;
+			if (this.stream != null) {
+				this.stream.append(text);
+				this.stream.flush();
+				return;
+			}
+			if (this.failed) return;
+			try {
+				CharBuffer chars = CharBuffer.wrap(text);
+				this.encoder.reset();
+				CoderResult result;
+				do {
+					result = this.encoder.encode(chars, this.buf, true);
+					if (result.isUnderflow())
+						result = this.encoder.flush(this.buf);
+					this.buf.flip();
+					while (this.buf.hasRemaining())
+						this.channel.write(this.buf);
+					this.buf.clear();
+				} while (result.isOverflow());
+			} catch (IOException e) {
+				this.failed = true;
+				System.err.println("Cannot write log file, logging to it stopped: " + e);
+			}
+		}
+		
+		private void close() {
+			if (this.stream != null)
+				this.stream.close();
+			else try {
+				this.channel.close();
+			} catch (IOException e) { }
+		}
 	}
 	
 	public static enum LogLevel {
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2023 Cheos
+ * MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package dev.cheos.stitz.tools;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+import dev.cheos.stitz.audio.record.Recording;
+import dev.cheos.stitz.gsm.*;
+import dev.cheos.stitz.logging.LoggerImpl;
+
+/**
+ * Converts between 8 kHz 16 bit mono WAV and raw toast GSM (.gsm) files,
+ * single files or whole directory trees. Files are processed in parallel on a
+ * fork/join pool, large files are additionally split into chunks.
+ * <p>
+ * GSM codecs carry state from frame to frame, so every chunk starts a few
+ * seconds early to let its state converge with the one the previous chunk ends
+ * in. Whether it did is checked once all chunks are done, a chunk that did not
+ * converge is redone serially, which keeps the output identical to a serial run.
+ * <p>
+ * Call recordings (.srec) are exported to WAV as well, mixed down to mono unless requested otherwise.
+ */
+public class Transcoder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Transcoder.class);
+	public static final int DEFAULT_CHUNK_FRAMES = 15_000; // 5 minutes
+	private static final int ENCODER_OVERLAP = 200; // the offset compensation filter takes seconds to converge
+	private static final int DECODER_OVERLAP = 64;
+	private static final int SAMPLE_RATE = 8000;
+	private static final int PCM_FRAME_BYTES = GSMDecoder.FRAME_SAMPLES * 2;
+	private static final int WAV_HEADER_BYTES = 44;
+	private static final long MAX_FILE_BYTES = Integer.MAX_VALUE; // files are mapped whole, about 37 hours of PCM audio
+	private final ForkJoinPool pool;
+	private final int chunkFrames;
+	private final boolean stereo;
+	private final AtomicInteger files = new AtomicInteger(), failed = new AtomicInteger(), chunks = new AtomicInteger(), redone = new AtomicInteger();
+	private final AtomicLong frames = new AtomicLong();
+	
+	/**
+	 * @param threads number of worker threads
+	 * @param chunkFrames frames per chunk large files are split into, 0 to never split files
+	 * @param stereo whether recordings are exported with both directions on separate channels
+	 */
+	public Transcoder(int threads, int chunkFrames, boolean stereo) {
+		Preconditions.checkArgument(threads > 0, "thread count must be positive, got %s", threads);
+		Preconditions.checkArgument(chunkFrames == 0 || chunkFrames >= ENCODER_OVERLAP, "chunks must be at least %s frames, got %s", ENCODER_OVERLAP, chunkFrames);
+		this.pool = new ForkJoinPool(threads);
+		this.chunkFrames = chunkFrames;
+		this.stereo = stereo;
+	}
+	
+	public static void main(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors(), chunkFrames = DEFAULT_CHUNK_FRAMES;
+		boolean debug = false, stereo = false;
+		List<String> paths = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++)
+				switch (args[i]) {
+					case "--threads" -> threads = Integer.parseInt(args[++i]);
+					case "--chunk" -> chunkFrames = Integer.parseInt(args[++i]);
+					case "--debug" -> debug = true;
+					case "--stereo" -> stereo = true;
+					default -> paths.add(args[i]);
+				}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			paths.clear();
+		}
+		if (paths.size() != 2) {
+			System.err.println("usage: Transcoder [--threads n] [--chunk frames] [--stereo] [--debug] <input file or directory> <output file or directory>");
+			System.err.println("converts .wav (8 kHz 16 bit mono) to .gsm and .gsm to .wav, splitting files into chunks of 20 ms frames (0 disables splitting)");
+			System.err.println("call recordings (.srec) are exported to .wav, with both directions on separate channels if --stereo is given");
+			System.exit(1);
+		}
+		
+		LoggerImpl.addGlobalPrintStream(System.out, debug);
+		Transcoder transcoder = new Transcoder(threads, chunkFrames, stereo);
+		try {
+			boolean success = transcoder.transcode(Path.of(paths.get(0)), Path.of(paths.get(1)));
+			LoggerImpl.shutdown();
+			System.exit(success ? 0 : 2);
+		} catch (IOException | IllegalArgumentException e) {
+			LOGGER.error("Exception transcoding {}", paths.get(0), e);
+			LoggerImpl.shutdown();
+			System.exit(2);
+		}
+	}
+	
+	/**
+	 * Transcodes a single file or all .wav, .gsm and .srec files below a directory, mirroring its structure in the output directory.
+	 * @return whether all files were converted successfully
+	 */
+	public boolean transcode(Path input, Path output) throws IOException {
+		List<FileTask> tasks = new ArrayList<>();
+		if (Files.isDirectory(input)) {
+			try (Stream<Path> walk = Files.walk(input)) {
+				walk.filter(Files::isRegularFile)
+						.filter(path -> kind(path) != null)
+						.forEach(path -> tasks.add(new FileTask(path, output.resolve(swapExtension(input.relativize(path).toString())))));
+			}
+		} else {
+			Preconditions.checkArgument(kind(input) != null, "Unsupported input file %s, expected .wav, .gsm or .srec", input);
+			tasks.add(new FileTask(input, Files.isDirectory(output) ? output.resolve(swapExtension(input.getFileName().toString())) : output));
+		}
+		
+		long start = System.nanoTime();
+		this.pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		double seconds = (System.nanoTime() - start) / 1e9, audioSeconds = this.frames.get() * GSMDecoder.FRAME_SAMPLES / (double) SAMPLE_RATE;
+		LOGGER.info("transcoded {} of {} files ({} s of audio) in {} s ({}x real time) using {} threads, {} chunks, {} redone serially",
+				this.files.get() - this.failed.get(), this.files.get(), Math.round(audioSeconds), "%.2f".formatted(seconds),
+				Math.round(audioSeconds / Math.max(seconds, 1e-3)), this.pool.getParallelism(), this.chunks.get(), this.redone.get());
+		return this.failed.get() == 0;
+	}
+	
+	private static String kind(Path path) {
+		String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+		return name.endsWith(".wav") ? "wav" : name.endsWith(".gsm") ? "gsm" : name.endsWith(Recording.EXTENSION) ? "srec" : null;
+	}
+	
+	private static String swapExtension(String name) {
+		int dot = name.lastIndexOf('.');
+		return name.substring(0, dot) + (name.substring(dot).equalsIgnoreCase(".wav") ? ".gsm" : ".wav"); // recordings are exported to .wav as well
+	}
+	
+	/**
+	 * @return number of chunks to split the given number of frames into
+	 */
+	private int chunkCount(int frames) {
+		return this.chunkFrames == 0 || frames < 2 * this.chunkFrames ? 1 : (frames + this.chunkFrames - 1) / this.chunkFrames;
+	}
+	
+	private void encode(Path input, Path output) throws IOException {
+		checkSize(input, Files.size(input));
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer wav = in.map(MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.LITTLE_ENDIAN);
+			ShortBuffer pcm = findPcmData(wav, input).asShortBuffer();
+			int frames = (pcm.limit() + GSMDecoder.FRAME_SAMPLES - 1) / GSMDecoder.FRAME_SAMPLES; // the last frame is padded with silence
+			MappedByteBuffer gsm = out.map(MapMode.READ_WRITE, 0, (long) frames * GSMDecoder.FRAME_BYTES);
+			
+			int count = chunkCount(frames);
+			List<EncodeChunk> chunks = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				chunks.add(new EncodeChunk(pcm, gsm, (int) ((long) frames * i / count), (int) ((long) frames * (i + 1) / count)));
+			RecursiveAction.invokeAll(chunks);
+			
+			for (int i = 1; i < count; i++) {
+				EncodeChunk prev = chunks.get(i - 1), chunk = chunks.get(i);
+				if (chunk.startState.hasSameState(prev.encoder)) continue;
+				LOGGER.debug("encoder state did not converge at frame {} of {}, redoing chunk serially", chunk.start, input);
+				this.redone.incrementAndGet();
+				chunk.encoder.copyStateFrom(prev.encoder);
+				chunk.encode(chunk.start);
+			}
+			gsm.force();
+			this.frames.addAndGet(frames);
+			this.chunks.addAndGet(count);
+		}
+	}
+	
+	private void decode(Path input, Path output) throws IOException {
+		long inputBytes = Files.size(input), wavBytes = WAV_HEADER_BYTES + inputBytes / GSMDecoder.FRAME_BYTES * PCM_FRAME_BYTES;
+		checkSize(input, inputBytes);
+		if (wavBytes > MAX_FILE_BYTES)
+			throw new IOException("%s is too long to be decoded, the WAV file would be %d bytes, at most %d are supported".formatted(input, wavBytes, MAX_FILE_BYTES));
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer gsm = in.map(MapMode.READ_ONLY, 0, in.size());
+			int frames = (int) (in.size() / GSMDecoder.FRAME_BYTES);
+			if (in.size() % GSMDecoder.FRAME_BYTES != 0)
+				LOGGER.warn("{} is not a multiple of {} bytes long, ignoring trailing {} bytes", input, GSMDecoder.FRAME_BYTES, in.size() % GSMDecoder.FRAME_BYTES);
+			MappedByteBuffer wav = out.map(MapMode.READ_WRITE, 0, WAV_HEADER_BYTES + (long) frames * PCM_FRAME_BYTES);
+			wav.order(ByteOrder.LITTLE_ENDIAN);
+			writeWavHeader(wav, (long) frames * PCM_FRAME_BYTES);
+			
+			int count = chunkCount(frames);
+			List<DecodeChunk> chunks = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				chunks.add(new DecodeChunk(gsm, wav, (int) ((long) frames * i / count), (int) ((long) frames * (i + 1) / count)));
+			RecursiveAction.invokeAll(chunks);
+			
+			for (int i = 1; i < count; i++) {
+				DecodeChunk prev = chunks.get(i - 1), chunk = chunks.get(i);
+				if (chunk.startState.hasSameState(prev.decoder)) continue;
+				LOGGER.debug("decoder state did not converge at frame {} of {}, redoing chunk serially", chunk.start, input);
+				this.redone.incrementAndGet();
+				chunk.decoder.copyStateFrom(prev.decoder);
+				chunk.decode(chunk.start);
+			}
+			wav.force();
+			this.frames.addAndGet(frames);
+			this.chunks.addAndGet(count);
+		}
+	}
+	
+	private void export(Path input, Path output) throws IOException { // records are sequential, nothing to split
+		long samples = Recording.open(input).exportWav(output, this.stereo);
+		this.frames.addAndGet(samples / GSMDecoder.FRAME_SAMPLES);
+		this.chunks.incrementAndGet();
+	}
+	
+	/**
+	 * @return little endian view of the samples in the data chunk
+	 */
+	private static ByteBuffer findPcmData(ByteBuffer wav, Path path) throws IOException {
+		if (wav.limit() < 12 || wav.getInt(0) != 0x46464952 /* RIFF */ || wav.getInt(8) != 0x45564157 /* WAVE */)
+			throw new IOException("%s is not a RIFF WAVE file".formatted(path));
+		boolean formatChecked = false;
+		for (int pos = 12; pos + 8 <= wav.limit(); ) {
+			int id = wav.getInt(pos), size = wav.getInt(pos + 4);
+			if (size < 0 || pos + 8L + size > wav.limit()) size = wav.limit() - pos - 8; // tolerate truncated files and streaming headers
+			if (id == 0x20746D66 /* fmt */) {
+				int format = wav.getShort(pos + 8) & 0xFFFF, channels = wav.getShort(pos + 10), rate = wav.getInt(pos + 12), bits = wav.getShort(pos + 22);
+				if (format != 1 || channels != 1 || rate != SAMPLE_RATE || bits != 16)
+					throw new IOException("%s has format %d, %d channels, %d Hz, %d bits, expected PCM (1), 1 channel, %d Hz, 16 bits".formatted(path, format, channels, rate, bits, SAMPLE_RATE));
+				formatChecked = true;
+			} else if (id == 0x61746164 /* data */) {
+				if (!formatChecked) throw new IOException("%s has no fmt chunk before its data".formatted(path));
+				return wav.slice(pos + 8, size & ~1).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			pos += 8 + size + (size & 1); // chunks are word aligned
+		}
+		throw new IOException("%s has no data chunk".formatted(path));
+	}
+	
+	private static void checkSize(Path input, long bytes) throws IOException {
+		if (bytes > MAX_FILE_BYTES)
+			throw new IOException("%s is too large to be transcoded, it is %d bytes, at most %d are supported".formatted(input, bytes, MAX_FILE_BYTES));
+	}
+	
+	private static void writeWavHeader(ByteBuffer wav, long dataBytes) { // sizes are unsigned 32 bit
+		wav.putInt(0, 0x46464952).putInt(4, (int) (36 + dataBytes)).putInt(8, 0x45564157)
+				.putInt(12, 0x20746D66).putInt(16, 16)
+				.putShort(20, (short) 1).putShort(22, (short) 1).putInt(24, SAMPLE_RATE).putInt(28, SAMPLE_RATE * 2)
+				.putShort(32, (short) 2).putShort(34, (short) 16)
+				.putInt(36, 0x61746164).putInt(40, (int) dataBytes);
+	}
+	
+	
+	@SuppressWarnings("serial")
+	private class FileTask extends RecursiveAction {
+		private final Path input, output;
+		
+		FileTask(Path input, Path output) {
+			this.input = input;
+			this.output = output;
+		}
+		
+		@Override
+		protected void compute() {
+			Transcoder.this.files.incrementAndGet();
+			try {
+				if (this.output.getParent() != null)
+					Files.createDirectories(this.output.getParent());
+				switch (kind(this.input)) {
+					case "wav" -> encode(this.input, this.output);
+					case "srec" -> export(this.input, this.output);
+					default -> decode(this.input, this.output);
+				}
+				LOGGER.debug("transcoded {} to {}", this.input, this.output);
+			} catch (IOException | RuntimeException e) { // keep going with the other files
+				Transcoder.this.failed.incrementAndGet();
+				LOGGER.error("Exception transcoding {}", this.input, e);
+			}
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	private static class EncodeChunk extends RecursiveAction {
+		private final ShortBuffer pcm;
+		private final ByteBuffer gsm;
+		private final int start, end;
+		private final short[] samples = new short[GSMDecoder.FRAME_SAMPLES];
+		private final byte[] frame = new byte[GSMDecoder.FRAME_BYTES];
+		private final GSMEncoder encoder = new GSMEncoder(), startState = new GSMEncoder();
+		
+		EncodeChunk(ShortBuffer pcm, ByteBuffer gsm, int start, int end) {
+			this.pcm = pcm;
+			this.gsm = gsm;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			for (int i = Math.max(0, this.start - ENCODER_OVERLAP); i < this.start; i++) { // warm up, output is discarded
+				read(i);
+				this.encoder.encode(this.samples, 0, this.frame, 0);
+			}
+			this.startState.copyStateFrom(this.encoder);
+			encode(this.start);
+		}
+		
+		void encode(int from) {
+			for (int i = from; i < this.end; i++) {
+				read(i);
+				this.encoder.encode(this.samples, 0, this.frame, 0);
+				this.gsm.put(i * GSMDecoder.FRAME_BYTES, this.frame);
+			}
+		}
+		
+		private void read(int frame) {
+			int offset = frame * GSMDecoder.FRAME_SAMPLES, length = Math.min(GSMDecoder.FRAME_SAMPLES, this.pcm.limit() - offset);
+			this.pcm.get(offset, this.samples, 0, length);
+			Arrays.fill(this.samples, length, GSMDecoder.FRAME_SAMPLES, (short) 0);
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	private static class DecodeChunk extends RecursiveAction {
+		private final ByteBuffer gsm, wav;
+		private final int start, end;
+		private final byte[] frame = new byte[GSMDecoder.FRAME_BYTES];
+		private final GSMDecoder decoder = new GSMDecoder(), startState = new GSMDecoder();
+		private final ByteBuffer discard = ByteBuffer.allocate(PCM_FRAME_BYTES);
+		
+		DecodeChunk(ByteBuffer gsm, ByteBuffer wav, int start, int end) {
+			this.gsm = gsm;
+			this.wav = wav;
+			this.start = start;
+			this.end = end;
+		}
+		
+		@Override
+		protected void compute() {
+			for (int i = Math.max(0, this.start - DECODER_OVERLAP); i < this.start; i++) // warm up, output is discarded
+				decodeFrame(i, this.discard.clear());
+			this.startState.copyStateFrom(this.decoder);
+			decode(this.start);
+		}
+		
+		void decode(int from) {
+			ByteBuffer out = this.wav.slice(WAV_HEADER_BYTES + from * PCM_FRAME_BYTES, (this.end - from) * PCM_FRAME_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = from; i < this.end; i++)
+				decodeFrame(i, out);
+		}
+		
+		private void decodeFrame(int frame, ByteBuffer out) {
+			this.gsm.get(frame * GSMDecoder.FRAME_BYTES, this.frame);
+			try {
+				this.decoder.decode(this.frame, 0, out);
+			} catch (InvalidGSMFrameException e) {
+				throw new UncheckedIOException(new IOException("invalid GSM frame %d".formatted(frame), e));
+			}
+		}
+	}
+}
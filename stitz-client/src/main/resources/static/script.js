@@ -1,10 +1,10 @@
 // -- generic definitions -- //
 const $ = id => document.querySelector(id);
 
-const call = (message, persistent = false) => {
+const call = (command, ...args) => {
     return new Promise((resolve, reject) => window.javaCall({
-        request: message,
-        persistent: persistent,
+        request: JSON.stringify({command: command, args: args}),
+        persistent: false,
         onSuccess: resolve,
         onFailure: (error_code, error_message) => reject({code: error_code, message: error_message})
     }));
@@ -30,6 +30,34 @@ const handle = (message) => {
 
 addEventListener('contextmenu', event => event.preventDefault());
 
+// functions the client may call, see UIMessageRouter
+const uiFunctions = () => ({
+    'require-login': promptLogin,
+    callIncoming: callIncoming,
+    showCallOutgoing: showCallOutgoing,
+    setInCall: setInCall,
+    updateState: updateState,
+    showError: showError
+});
+
+const subscribe = () => {
+    window.javaCall({
+        request: JSON.stringify({command: 'subscribe'}),
+        persistent: true,
+        onSuccess: json => {
+            let event = JSON.parse(json);
+            if (event.message !== undefined) {
+                handle(event.message);
+                return;
+            }
+            let fn = uiFunctions()[event.function];
+            if (fn) fn(...event.args);
+            else console.log(`unknown ui function ${event.function}`);
+        },
+        onFailure: (error_code, error_message) => console.log(`subscription failed: ${error_code} ${error_message}`)
+    });
+};
+
 
 const loadSettings = async _ => {
     await call('audioRefreshDevices');
@@ -85,13 +113,13 @@ const loadSettings = async _ => {
 };
 
 const saveSettings = async _ => {
-    call(`setDisplayName ${$('#settings-input-display-name').value}`);
-    call(`audioSetIn ${$('#settings-select-audio-in').value}`);
-    call(`audioSetOut ${$('#settings-select-audio-out').value}`);
-    call(`audioSetClip ${$('#settings-select-audio-clip').value}`);
-    call(`audioSetInVolume ${$('#settings-input-audio-in-volume').value * 100}`);
-    call(`audioSetOutVolume ${$('#settings-input-audio-out-volume').value * 100}`);
-    call(`audioSetClipVolume ${$('#settings-input-audio-clip-volume').value * 100}`);
+    call('setDisplayName', $('#settings-input-display-name').value);
+    call('audioSetIn', $('#settings-select-audio-in').value);
+    call('audioSetOut', $('#settings-select-audio-out').value);
+    call('audioSetClip', $('#settings-select-audio-clip').value);
+    call('audioSetInVolume', $('#settings-input-audio-in-volume').value * 100);
+    call('audioSetOutVolume', $('#settings-input-audio-out-volume').value * 100);
+    call('audioSetClipVolume', $('#settings-input-audio-clip-volume').value * 100);
 };
 
 const callIncoming = async (callerName, callerNumber) => {
@@ -125,12 +153,12 @@ const promptLogin = async () => {
 };
 
 const login = async _ => {
-    let result = await call(`setDisplayName ${$('#login-modal-display-name').value}`).then(r => { return { code: 0, message: r }}, r => r);
+    let result = await call('setDisplayName', $('#login-modal-display-name').value).then(r => { return { code: 0, message: r }}, r => r);
     if (result.code !== 0) {
         loginFailure(result);
         return;
     }
-    call(`login ${$('#login-modal-username').value} ${$('#login-modal-password').value} ${$('#login-modal-persist').checked}`)
+    call('login', $('#login-modal-username').value, $('#login-modal-password').value, $('#login-modal-persist').checked)
     .then(loginSuccess)
     .catch(loginFailure);
 };
@@ -156,15 +184,29 @@ const logout = async _ => {
 
 const callInputAppend = str => {
     $('#call-input').value += str;
+    updateSuggestions();
 };
 
 const callInputDel = _ => {
     let value = $('#call-input').value;
     $('#call-input').value = value.substring(0, value.length - 1);
+    updateSuggestions();
+};
+
+// contacts and recent numbers matching the number or name typed so far
+const updateSuggestions = async _ => {
+    let prefix = $('#call-input').value;
+    let suggestions = prefix === '' ? [] : JSON.parse(await call('suggest', prefix, 8));
+    $('#call-suggestions').replaceChildren(...suggestions.map(suggestion => {
+        let option = document.createElement('option');
+        option.value = suggestion.number;
+        option.label = suggestion.name ?? '';
+        return option;
+    }));
 };
 
 const startCall = _ => {
-    call(`callCall ${$('#call-input').value}`);
+    call('callCall', $('#call-input').value);
 };
 
 const showCallOutgoing = (peerName = '', peerNumber = '') => {
@@ -174,7 +216,7 @@ const showCallOutgoing = (peerName = '', peerNumber = '') => {
 };
 
 const setInCall = (inCall, peerName = '', peerNumber = '') => {
-    call(`debuglog setInCall({},'{}','{}') ${inCall} ${peerName} ${peerNumber}`);
+    call('debuglog', 'setInCall({},\'{}\',\'{}\')', inCall, peerName, peerNumber);
     if (!inCall)
         $('#call-input').value = '';
     $('#not-in-call').classList.toggle('hidden', inCall);
@@ -193,18 +235,40 @@ const updateCallTimestamp = millis => {
     $('#call-duration').innerText = `${hours}:${zeroPad(minutes, 2)}:${zeroPad(seconds, 2)}`;
 };
 
-const toggleMute = async _ => {
-    await call('audioSetMute');
-    $('#call-mute-btn').classList.toggle('muted', (await call('audioGetMute')) === 'true');
-    $('#call-deafen-btn').classList.toggle('deafened', (await call('audioGetDeafen')) === 'true'); // update deafen button in case we un-mute (and thus un-deafen) while deafened
+// state pushed by the client, only changed and cleared keys are sent
+const state = {};
+let renderScheduled = false;
+let durationTimer = null;
+
+const updateState = (changes, cleared = []) => {
+    Object.assign(state, changes);
+    cleared.forEach(key => delete state[key]);
+    if (renderScheduled) return;
+    renderScheduled = true;
+    requestAnimationFrame(renderState); // coalesce all updates until the next frame
 };
 
-const toggleDeafen = async _ => {
-    await call('audioSetDeafen');
-    $('#call-mute-btn').classList.toggle('muted', (await call('audioGetMute')) === 'true'); // deafen will typically mute, too
-    $('#call-deafen-btn').classList.toggle('deafened', (await call('audioGetDeafen')) === 'true');
+const renderState = _ => {
+    renderScheduled = false;
+    $('#call-mute-btn').classList.toggle('muted', state.muted === true);
+    $('#call-deafen-btn').classList.toggle('deafened', state.deafened === true);
+    if (state.callStart == null) {
+        clearInterval(durationTimer);
+        durationTimer = null;
+        $('#call-duration').innerText = '';
+    } else if (durationTimer === null) { // the duration ticks locally, only the start is sent
+        const tick = _ => updateCallTimestamp(Date.now() - state.callStart);
+        tick();
+        durationTimer = setInterval(tick, 500);
+    }
+    $('#call-quality').innerText = state.roundTrip == null ? '' : `${state.roundTrip} ms, ${state.loss ?? 0}% loss`;
+    $('#call-mic-level').style.width = `${state.micLevel ?? 0}%`;
 };
 
+const toggleMute = _ => call('audioSetMute'); // buttons are updated through state pushes
+
+const toggleDeafen = _ => call('audioSetDeafen');
+
 const hangupCall = _ => {
     call('callHangup');
     $('#call-outgoing-modal').close();
@@ -217,6 +281,7 @@ const showError = reason => {
 
 // -- add listeners to dom elements -- //
 document.addEventListener('DOMContentLoaded', () => {
+    subscribe();
     $('#settings-btn').addEventListener('click', loadSettings);
     $('#settings-modal-save-btn').addEventListener('click', saveSettings);
     $('#logout-btn').addEventListener('click', logout);
@@ -236,6 +301,7 @@ document.addEventListener('DOMContentLoaded', () => {
     $('#call-hangup-btn').addEventListener('click', hangupCall);
     $('#call-mute-btn').addEventListener('click', toggleMute);
     $('#call-deafen-btn').addEventListener('click', toggleDeafen);
+    $('#call-input').addEventListener('input', updateSuggestions);
     $('#call-input').addEventListener('keydown', event => { if (event.code === 'Enter' || event.code === 'NumpadEnter') startCall(); });
     $('#settings-input-audio-in-volume').addEventListener('input', () => $('#settings-audio-in-volume-display').innerText = `${$('#settings-input-audio-in-volume').value}%`);
     $('#settings-input-audio-out-volume').addEventListener('input', () => $('#settings-audio-out-volume-display').innerText = `${$('#settings-input-audio-out-volume').value}%`);